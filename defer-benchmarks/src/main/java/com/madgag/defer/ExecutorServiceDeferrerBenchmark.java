@@ -0,0 +1,68 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how many tasks per second a single thread can defer and have run,
+ * deferring them in batches and waiting for each batch to finish.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+public class ExecutorServiceDeferrerBenchmark {
+	
+	private static final int TASKS_PER_BATCH = 1000;
+	
+	@Param({ "1", "4" })
+	int concurrency;
+	
+	private ExecutorServiceDeferrer deferrer;
+	
+	@Setup
+	public void setUp() {
+		deferrer = new ExecutorServiceDeferrer(QueueConfiguration.DEFAULT.withConcurrency(concurrency));
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		deferrer.shutdown(10, SECONDS);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(TASKS_PER_BATCH)
+	public void deferAndRun() throws InterruptedException {
+		CountDownLatch batchFinished = new CountDownLatch(TASKS_PER_BATCH);
+		for (int i = 0; i < TASKS_PER_BATCH; i++) {
+			deferrer.defer(new CountDownTask(batchFinished));
+		}
+		batchFinished.await();
+	}
+	
+	@SuppressWarnings("serial")
+	static class CountDownTask implements Deferrable {
+		private final transient CountDownLatch latch;
+		
+		CountDownTask(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			latch.countDown();
+		}
+	}
+}
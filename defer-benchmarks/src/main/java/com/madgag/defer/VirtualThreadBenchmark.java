@@ -0,0 +1,85 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how long it takes to run 10000 tasks that each block for 10ms,
+ * as I/O-bound tasks do, on a pool of platform threads and on virtual
+ * threads. Virtual threads need the benchmarks to be run on Java 21 or
+ * later - on earlier versions, both modes use platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.tracePinnedThreads=short")
+public class VirtualThreadBenchmark {
+
+	private static final int TASKS = 10000;
+	private static final long BLOCKING_MILLIS = 10;
+
+	/**
+	 * The size of the platform thread pool - virtual threads are limited
+	 * only by the number of tasks.
+	 */
+	private static final int PLATFORM_THREADS = 200;
+
+	@Param({ "false", "true" })
+	boolean virtualThreads;
+
+	private ExecutorServiceDeferrer deferrer;
+
+	@Setup
+	public void setUp() {
+		deferrer = new ExecutorServiceDeferrer(QueueConfiguration.DEFAULT
+				.withVirtualThreads(virtualThreads)
+				.withConcurrency(virtualThreads ? TASKS : PLATFORM_THREADS)
+				.withCapacity(TASKS));
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		deferrer.shutdown(10, SECONDS);
+	}
+
+	@Benchmark
+	public void deferAndRunBlockingTasks() throws InterruptedException {
+		CountDownLatch allFinished = new CountDownLatch(TASKS);
+		for (int i = 0; i < TASKS; i++) {
+			deferrer.defer(new BlockingTask(allFinished));
+		}
+		allFinished.await();
+	}
+
+	@SuppressWarnings("serial")
+	static class BlockingTask implements Deferrable {
+		private final transient CountDownLatch latch;
+
+		BlockingTask(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			try {
+				Thread.sleep(BLOCKING_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				latch.countDown();
+			}
+		}
+	}
+}
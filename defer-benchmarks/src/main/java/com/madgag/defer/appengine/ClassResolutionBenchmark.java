@@ -0,0 +1,133 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.benchmarks.PayloadTask;
+
+/**
+ * Deserialisation of common task shapes through a plain
+ * <code>ObjectInputStream</code>, against the class resolution cache of
+ * {@link ObjectSerialisation} - with and without an allow-list - and of
+ * {@link CompactObjectSerialisation}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+public class ClassResolutionBenchmark {
+
+	@Param({ "payload", "fields", "graph" })
+	String shape;
+
+	private ObjectSerialisation objectSerialisation;
+	private ObjectSerialisation allowListSerialisation;
+	private CompactObjectSerialisation compactSerialisation;
+	private byte[] serializedTask;
+	private byte[] compactSerializedTask;
+
+	@Setup
+	public void setUp() {
+		objectSerialisation = new ObjectSerialisation();
+		objectSerialisation.setBase64Payloads(false);
+		allowListSerialisation = new ObjectSerialisation();
+		allowListSerialisation.setBase64Payloads(false);
+		allowListSerialisation.setAllowedClasses("java.util.ArrayList, java.util.HashMap, com.madgag.defer.benchmarks.");
+		compactSerialisation = new CompactObjectSerialisation();
+		compactSerialisation.setBase64Payloads(false);
+		Deferrable task = taskOfShape(shape);
+		serializedTask = objectSerialisation.serialize(task);
+		compactSerializedTask = compactSerialisation.serialize(task);
+	}
+
+	@Benchmark
+	public Object plainObjectInputStream() throws Exception {
+		ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serializedTask));
+		try {
+			return objectIn.readObject();
+		} finally {
+			objectIn.close();
+		}
+	}
+
+	@Benchmark
+	public Object cachingObjectInputStream() {
+		return objectSerialisation.deserialize(serializedTask);
+	}
+
+	@Benchmark
+	public Object cachingObjectInputStreamWithAllowList() {
+		return allowListSerialisation.deserialize(serializedTask);
+	}
+
+	@Benchmark
+	public Object compactObjectInputStream() {
+		return compactSerialisation.deserialize(compactSerializedTask);
+	}
+
+	private static Deferrable taskOfShape(String shape) {
+		if (shape.equals("payload")) {
+			return new PayloadTask(100);
+		}
+		if (shape.equals("fields")) {
+			return new FieldsTask("user@example.com", 42L, 7, true);
+		}
+		List<Map<String, Integer>> entries = new ArrayList<Map<String, Integer>>();
+		for (int i = 0; i < 20; i++) {
+			Map<String, Integer> entry = new HashMap<String, Integer>();
+			entry.put("id", i);
+			entry.put("count", i * 10);
+			entries.add(entry);
+		}
+		return new GraphTask(new FieldsTask("owner", 1L, 2, false), entries);
+	}
+
+	@SuppressWarnings("serial")
+	static class FieldsTask implements Deferrable {
+		private final String email;
+		private final long id;
+		private final Integer attempt;
+		private final boolean notify;
+
+		FieldsTask(String email, long id, Integer attempt, boolean notify) {
+			this.email = email;
+			this.id = id;
+			this.attempt = attempt;
+			this.notify = notify;
+		}
+
+		public void run() {
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class GraphTask implements Deferrable {
+		private final FieldsTask parent;
+		private final List<Map<String, Integer>> entries;
+
+		GraphTask(FieldsTask parent, List<Map<String, Integer>> entries) {
+			this.parent = parent;
+			this.entries = entries;
+		}
+
+		public void run() {
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.ByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.madgag.defer.benchmarks.PayloadTask;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+public class ObjectSerialisationBenchmark {
+	
+	@Param({ "100", "10000", "1000000" })
+	int payloadSize;
+	
+	@Param({ "false", "true" })
+	boolean base64;
+	
+	/**
+	 * 'java' for the default {@link ObjectSerialisation}, 'compact' for
+	 * {@link CompactObjectSerialisation}.
+	 */
+	@Param({ "java", "compact" })
+	String codec;
+	
+	private ObjectSerialisation objectSerialisation;
+	private PayloadTask task;
+	private byte[] serializedTask;
+	
+	@Setup
+	public void setUp() {
+		objectSerialisation = codec.equals("compact") ? new CompactObjectSerialisation() : new ObjectSerialisation();
+		objectSerialisation.setBase64Payloads(base64);
+		task = new PayloadTask(payloadSize);
+		serializedTask = objectSerialisation.serialize(task);
+	}
+	
+	@Benchmark
+	public byte[] serialize() {
+		return objectSerialisation.serialize(task);
+	}
+	
+	@Benchmark
+	public Object deserialize() {
+		return objectSerialisation.deserialize(serializedTask);
+	}
+	
+	@Benchmark
+	public Object deserializeStream() {
+		return objectSerialisation.deserialize(new ByteArrayInputStream(serializedTask));
+	}
+}
@@ -0,0 +1,200 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.madgag.defer.benchmarks.PayloadTask;
+
+/**
+ * Runs a mixed load of tasks through the whole defer round trip - from
+ * {@link TaskQueueDeferrer}, through a {@link TaskQueueEmulator}, to the
+ * {@link DeferrableExecutingServlet} - against the local datastore stub,
+ * and reports the latency from each task being deferred to it having run,
+ * and the throughput.
+ *
+ * <p>Small tasks are queued inline on the 'inline' queue; tasks too large
+ * to queue even compressed are spilled to the datastore, on the 'spilled'
+ * queue. Both queues share the emulator's dispatcher threads. Settings are
+ * given as <code>name=value</code> arguments, eg:
+ * <blockquote>
+ * <code>java -cp defer-benchmarks/target/benchmarks.jar com.madgag.defer.appengine.RoundTripLoadTest tasks=50000 spilledRatio=0.2</code>
+ * </blockquote>
+ */
+public class RoundTripLoadTest {
+
+	private static final Map<String, String> DEFAULT_SETTINGS = new HashMap<String, String>();
+	static {
+		DEFAULT_SETTINGS.put("tasks", "10000");
+		DEFAULT_SETTINGS.put("spilledRatio", "0.1");
+		DEFAULT_SETTINGS.put("inlineSize", "1000");
+		DEFAULT_SETTINGS.put("spilledSize", "50000");
+		DEFAULT_SETTINGS.put("producers", "4");
+		DEFAULT_SETTINGS.put("dispatchers", "8");
+	}
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new HashMap<String, String>(DEFAULT_SETTINGS);
+		for (String arg : args) {
+			String[] setting = arg.split("=", 2);
+			if (setting.length != 2 || !DEFAULT_SETTINGS.containsKey(setting[0])) {
+				System.err.println("Unknown setting '" + arg + "' - settings are " + DEFAULT_SETTINGS);
+				System.exit(1);
+			}
+			settings.put(setting[0], setting[1]);
+		}
+		System.out.println("Settings: " + settings);
+
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		helper.setUp();
+		try {
+			new RoundTripLoadTest().run(Integer.parseInt(settings.get("tasks")), Double.parseDouble(settings.get("spilledRatio")),
+					Integer.parseInt(settings.get("inlineSize")), Integer.parseInt(settings.get("spilledSize")),
+					Integer.parseInt(settings.get("producers")), Integer.parseInt(settings.get("dispatchers")));
+		} finally {
+			helper.tearDown();
+		}
+		System.exit(0); // the local stubs leave non-daemon threads running
+	}
+
+	private final ConcurrentMap<String, List<Long>> latencies = new ConcurrentHashMap<String, List<Long>>();
+
+	void run(final int tasks, final double spilledRatio, int inlineSize, int spilledSize, int producers, int dispatchers) throws Exception {
+		ObjectSerialisation taskCodec = new ObjectSerialisation();
+		TaskStore taskStore = new TaskStore(DatastoreServiceFactory.getDatastoreService(), taskCodec);
+		TaskQueueEmulator emulator = new TaskQueueEmulator(new DeferrableExecutingServlet(new TaskPayloadProcessor(taskStore), taskCodec), dispatchers);
+		emulator.setDispatchListener(new TaskQueueEmulator.DispatchListener() {
+			public void dispatched(String queueName, String taskName, long enqueuedAtNanos, int attempts, boolean succeeded) {
+				if (succeeded) {
+					latenciesOf(queueName).add(System.nanoTime() - enqueuedAtNanos);
+				}
+			}
+		});
+		final TaskQueueDeferrer deferrer = emulator.newDeferrer(taskStore, taskCodec);
+		final PayloadTask inlineTask = new PayloadTask(inlineSize), spilledTask = new PayloadTask(spilledSize);
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		final CountDownLatch deferred = new CountDownLatch(producers);
+		final AtomicLong failedDeferrals = new AtomicLong();
+
+		long start = System.nanoTime();
+		for (int producer = 0; producer < producers; producer++) {
+			final int producerTasks = tasks / producers + (producer < tasks % producers ? 1 : 0);
+			final Random random = new Random(producer);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					try {
+						for (int i = 0; i < producerTasks; i++) {
+							boolean spilled = random.nextDouble() < spilledRatio;
+							try {
+								deferrer.defer(spilled ? spilledTask : inlineTask, spilled ? "spilled" : "inline");
+							} catch (RuntimeException e) {
+								failedDeferrals.incrementAndGet();
+							}
+						}
+					} finally {
+						deferred.countDown();
+					}
+				}
+			}, "load-test-producer-" + (producer + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+		deferred.await();
+		long deferredNanos = System.nanoTime() - start;
+		boolean drained = emulator.awaitIdle(10, MINUTES);
+		long totalNanos = System.nanoTime() - start;
+		emulator.stop();
+
+		System.out.printf("Deferred %d tasks in %.2fs (%.0f tasks/s), %d failed to defer%n",
+				tasks, seconds(deferredNanos), tasks / seconds(deferredNanos), failedDeferrals.get());
+		System.out.printf("Ran %d tasks in %.2fs (%.0f tasks/s), with %d retries and %d given up on%s%n",
+				ran(), seconds(totalNanos), ran() / seconds(totalNanos), emulator.retries(), emulator.abandonedTasks(),
+				drained ? "" : " - timed out before all had run");
+		System.out.printf("Payload tiers: %d inline, %d compressed, %d spilled%n", deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.INLINE),
+				deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.COMPRESSED), deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.SPILLED));
+		System.out.println();
+		System.out.printf("%-10s %8s", "queue", "tasks");
+		for (double percentile : PERCENTILES) {
+			System.out.printf(" %10s", percentile == 100 ? "max ms" : "p" + format(percentile) + " ms");
+		}
+		System.out.println();
+		List<String> queueNames = new ArrayList<String>(latencies.keySet());
+		Collections.sort(queueNames);
+		List<Long> all = new ArrayList<Long>();
+		for (String queueName : queueNames) {
+			all.addAll(latencies.get(queueName));
+			printLatencies(queueName, latencies.get(queueName));
+		}
+		printLatencies("all", all);
+	}
+
+	private List<Long> latenciesOf(String queueName) {
+		List<Long> queueLatencies = latencies.get(queueName);
+		if (queueLatencies == null) {
+			queueLatencies = Collections.synchronizedList(new ArrayList<Long>());
+			List<Long> existingLatencies = latencies.putIfAbsent(queueName, queueLatencies);
+			if (existingLatencies != null) {
+				queueLatencies = existingLatencies;
+			}
+		}
+		return queueLatencies;
+	}
+
+	private int ran() {
+		int ran = 0;
+		for (List<Long> queueLatencies : latencies.values()) {
+			ran += queueLatencies.size();
+		}
+		return ran;
+	}
+
+	private static void printLatencies(String name, List<Long> latencies) {
+		long[] sorted = new long[latencies.size()];
+		synchronized (latencies) {
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = latencies.get(i);
+			}
+		}
+		Arrays.sort(sorted);
+		System.out.printf("%-10s %8d", name, sorted.length);
+		for (double percentile : PERCENTILES) {
+			double millis = sorted.length == 0 ? 0 : NANOSECONDS.toMicros(sorted[indexOf(percentile, sorted.length)]) / 1000.0;
+			System.out.printf(" %10.2f", millis);
+		}
+		System.out.println();
+	}
+
+	/**
+	 * @return The index of the given percentile in a sorted array, by the
+	 * nearest-rank method.
+	 */
+	private static int indexOf(double percentile, int length) {
+		return Math.max(0, (int) Math.ceil(percentile / 100 * length) - 1);
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static String format(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+	}
+}
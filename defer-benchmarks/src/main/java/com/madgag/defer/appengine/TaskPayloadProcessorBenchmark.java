@@ -0,0 +1,87 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.benchmarks.PayloadTask;
+
+/**
+ * Processes a task payload that is either the task itself, or the key of
+ * the task's entity in the local datastore stub - which is fetched,
+ * deserialized and deleted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // the local stubs leave non-daemon threads running
+public class TaskPayloadProcessorBenchmark {
+	
+	/**
+	 * The processor, and the local datastore stub behind it - recreated for
+	 * each iteration, so that entities piling up don't skew later iterations.
+	 */
+	@State(Scope.Thread)
+	public static class Processor {
+		@Param({ "1000", "50000" })
+		int payloadSize;
+		
+		private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		TaskStore taskStore;
+		TaskPayloadProcessor taskPayloadProcessor;
+		PayloadTask task;
+		byte[] serializedTask;
+		
+		@Setup(Level.Iteration)
+		public void setUp() {
+			helper.setUp();
+			ObjectSerialisation objectSerialisation = new ObjectSerialisation();
+			taskStore = new TaskStore(DatastoreServiceFactory.getDatastoreService(), objectSerialisation);
+			taskPayloadProcessor = new TaskPayloadProcessor(taskStore);
+			task = new PayloadTask(payloadSize);
+			serializedTask = objectSerialisation.serialize(task);
+		}
+		
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			helper.tearDown();
+		}
+	}
+	
+	/**
+	 * A processor with a freshly stored task entity for each invocation, as
+	 * processing the payload deletes it.
+	 */
+	@State(Scope.Thread)
+	public static class ProcessorWithStoredTask extends Processor {
+		Key key;
+		
+		@Setup(Level.Invocation)
+		public void storeTask() {
+			key = taskStore.store(serializedTask);
+		}
+	}
+	
+	@Benchmark
+	public void processInlinePayload(Processor processor) {
+		processor.taskPayloadProcessor.processPayload(processor.task);
+	}
+	
+	@Benchmark
+	public void processKeyPayload(ProcessorWithStoredTask processor) {
+		processor.taskPayloadProcessor.processPayload(processor.key);
+	}
+}
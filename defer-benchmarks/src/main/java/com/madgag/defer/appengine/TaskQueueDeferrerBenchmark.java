@@ -0,0 +1,69 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.benchmarks.PayloadTask;
+
+/**
+ * Defers tasks to the local task queue stub. Payloads of 1,000 bytes are
+ * queued inline; payloads of 50,000 random bytes can't be compressed to fit,
+ * and are spilled to the local datastore stub.
+ * 
+ * <p>The stubs are recreated for each iteration, so the tasks piling up in
+ * them don't skew later iterations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // the local stubs leave non-daemon threads running
+public class TaskQueueDeferrerBenchmark {
+	
+	/**
+	 * The local task queue only knows the default queue, without a queue.xml.
+	 */
+	private static final DeferOptions DEFAULT_QUEUE = DeferOptions.Builder.queueName("default");
+	
+	@Param({ "1000", "50000" })
+	int payloadSize;
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(), new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+	private TaskQueueDeferrer deferrer;
+	private PayloadTask task;
+	
+	@Setup(Level.Iteration)
+	public void setUp() {
+		helper.setUp();
+		ObjectSerialisation objectSerialisation = new ObjectSerialisation();
+		deferrer = new TaskQueueDeferrer(new TaskStore(DatastoreServiceFactory.getDatastoreService(), objectSerialisation), objectSerialisation);
+		task = new PayloadTask(payloadSize);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		helper.tearDown();
+	}
+	
+	@Benchmark
+	public TaskHandle defer() {
+		return deferrer.defer(task, DEFAULT_QUEUE);
+	}
+}
@@ -0,0 +1,461 @@
+package com.madgag.defer.appengine;
+
+import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSizeBytes;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.labs.taskqueue.Queue;
+import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * An in-process stand-in for the App Engine task queue, dispatching the
+ * tasks added to its queues to a real {@link DeferrableExecutingServlet} on
+ * a pool of dispatcher threads - so the whole round trip, from
+ * {@link TaskQueueDeferrer} to {@link TaskPayloadProcessor}, can be run
+ * without the dev server, or a network.
+ *
+ * <p>As on App Engine, adds of tasks over {@link com.google.appengine.api.labs.taskqueue.QueueConstants#maxTaskSizeBytes()}
+ * fail with an {@link IllegalArgumentException}, adds of a task name that
+ * has been used before fail with a {@link TaskAlreadyExistsException} (the
+ * whole batch, if it is in a batch), tasks with a countdown or ETA aren't
+ * dispatched until they are due, and a task whose request throws, or
+ * responds with an error status, is dispatched again after an exponential
+ * backoff. Unlike App Engine, any queue name may be used, tasks are
+ * dispatched as fast as the dispatcher threads allow, task names are
+ * remembered for as long as the emulator runs, and transactional adds are
+ * not enlisted in their transaction.
+ *
+ * <p>The dispatcher threads run in the API environment of the thread that
+ * created the emulator, so that tasks can use the local datastore stub set
+ * up on it.
+ */
+public class TaskQueueEmulator {
+
+	private static final Logger log = Logger.getLogger(TaskQueueEmulator.class.getName());
+
+	static final String TASK_NAME_HEADER = "X-AppEngine-TaskName";
+	static final String RETRY_COUNT_HEADER = "X-AppEngine-TaskRetryCount";
+
+	/**
+	 * Receives each task once it has been dispatched successfully, or
+	 * given up on.
+	 */
+	public interface DispatchListener {
+		/**
+		 * @param enqueuedAtNanos When the task was added, by {@link System#nanoTime()}.
+		 * @param attempts How many times the task was dispatched.
+		 * @param succeeded false if the task was given up on.
+		 */
+		void dispatched(String queueName, String taskName, long enqueuedAtNanos, int attempts, boolean succeeded);
+	}
+
+	private static final DispatchListener NO_LISTENER = new DispatchListener() {
+		public void dispatched(String queueName, String taskName, long enqueuedAtNanos, int attempts, boolean succeeded) {
+		}
+	};
+
+	private final DeferrableExecutingServlet servlet;
+	private final ApiProxy.Environment environment;
+	private final ConcurrentMap<String, EmulatedQueue> queues = new ConcurrentHashMap<String, EmulatedQueue>();
+	private final Set<String> usedTaskNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final DelayQueue<EmulatedTask> dueTasks = new DelayQueue<EmulatedTask>();
+	private final List<Thread> dispatchers = new ArrayList<Thread>();
+	private final AtomicLong taskCount = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong abandonedTasks = new AtomicLong();
+
+	/** Tasks added but not yet finished with - also the monitor {@link #awaitIdle(long, TimeUnit)} waits on. */
+	private final AtomicInteger outstandingTasks = new AtomicInteger();
+
+	private volatile DispatchListener listener = NO_LISTENER;
+	private volatile int maxAttempts = 10;
+	private volatile long minBackoffMillis = 100;
+	private volatile long maxBackoffMillis = 10000;
+
+	/**
+	 * Starts the dispatcher threads.
+	 */
+	public TaskQueueEmulator(DeferrableExecutingServlet servlet, int dispatcherThreads) {
+		this.servlet = servlet;
+		this.environment = ApiProxy.getCurrentEnvironment();
+		for (int i = 0; i < dispatcherThreads; i++) {
+			Thread dispatcher = new Thread(new Dispatcher(), "task-queue-emulator-" + (i + 1));
+			dispatcher.setDaemon(true);
+			dispatchers.add(dispatcher);
+		}
+		for (Thread dispatcher : dispatchers) {
+			dispatcher.start();
+		}
+	}
+
+	public void setDispatchListener(DispatchListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets how many times a failing task is dispatched before it is given up
+	 * on - by default, 10.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Sets the backoff before a failed task is dispatched again - doubled
+	 * after each failure, from 100ms up to 10s by default.
+	 */
+	public void setRetryBackoffMillis(long minBackoffMillis, long maxBackoffMillis) {
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public Queue getQueue(String queueName) {
+		EmulatedQueue queue = queues.get(queueName);
+		if (queue == null) {
+			queue = new EmulatedQueue(queueName);
+			EmulatedQueue existingQueue = queues.putIfAbsent(queueName, queue);
+			if (existingQueue != null) {
+				queue = existingQueue;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * @return A deferrer adding its tasks to this emulator's queues.
+	 */
+	public TaskQueueDeferrer newDeferrer(TaskStore taskStore, TaskCodec taskCodec) {
+		return new TaskQueueDeferrer(taskStore, taskCodec) {
+			@Override
+			Queue queueFor(String queueName) {
+				return getQueue(queueName);
+			}
+		};
+	}
+
+	/**
+	 * Waits until every task added has been dispatched successfully or given
+	 * up on.
+	 *
+	 * @return false if tasks were still outstanding when the timeout elapsed.
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (outstandingTasks) {
+			for (long remaining = unit.toNanos(timeout); outstandingTasks.get() > 0; remaining = deadline - System.nanoTime()) {
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(outstandingTasks, remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of times a task was dispatched again after failing.
+	 */
+	public long retries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return The number of tasks given up on after {@link #setMaxAttempts(int) max attempts}.
+	 */
+	public long abandonedTasks() {
+		return abandonedTasks.get();
+	}
+
+	/**
+	 * Stops the dispatcher threads, abandoning tasks not yet dispatched.
+	 */
+	public void stop() {
+		for (Thread dispatcher : dispatchers) {
+			dispatcher.interrupt();
+		}
+	}
+
+	private void finished(EmulatedTask task, boolean succeeded) {
+		try {
+			listener.dispatched(task.queueName, task.taskName, task.enqueuedAtNanos, task.attempts, succeeded);
+		} finally {
+			if (outstandingTasks.decrementAndGet() == 0) {
+				synchronized (outstandingTasks) {
+					outstandingTasks.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatches a task to the servlet, as the task queue would.
+	 *
+	 * @return true if the request succeeded.
+	 */
+	private boolean dispatch(EmulatedTask task) {
+		StatusRecorder response = new StatusRecorder();
+		try {
+			servlet.doPost(requestFor(task), (HttpServletResponse) proxy(HttpServletResponse.class, response));
+		} catch (RuntimeException e) {
+			log.log(FINE, "Task " + task.taskName + " on '" + task.queueName + "' queue failed", e);
+			return false;
+		}
+		return response.status < 300;
+	}
+
+	private HttpServletRequest requestFor(final EmulatedTask task) {
+		return (HttpServletRequest) proxy(HttpServletRequest.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("getContentLength")) {
+					return task.payload.length;
+				}
+				if (name.equals("getInputStream")) {
+					final ByteArrayInputStream payload = new ByteArrayInputStream(task.payload);
+					return new ServletInputStream() {
+						@Override
+						public int read() throws IOException {
+							return payload.read();
+						}
+
+						@Override
+						public int read(byte[] b, int off, int len) {
+							return payload.read(b, off, len);
+						}
+					};
+				}
+				if (name.equals("getHeader")) {
+					return headersOf(task).get(args[0]);
+				}
+				if (name.equals("getMethod")) {
+					return "POST";
+				}
+				throw new UnsupportedOperationException("Not emulated: HttpServletRequest." + name);
+			}
+		});
+	}
+
+	private Map<String, String> headersOf(EmulatedTask task) {
+		Map<String, String> headers = new ConcurrentHashMap<String, String>();
+		headers.put(DeferrableExecutingServlet.QUEUE_NAME_HEADER, task.queueName);
+		headers.put(TASK_NAME_HEADER, task.taskName);
+		headers.put(RETRY_COUNT_HEADER, String.valueOf(task.attempts - 1));
+		return headers;
+	}
+
+	private static Object proxy(Class<?> type, final InvocationHandler handler) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					return method.getName().equals("equals") ? proxy == args[0]
+							: method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+							: type(proxy) + "@" + Integer.toHexString(System.identityHashCode(proxy));
+				}
+				return handler.invoke(proxy, method, args);
+			}
+		});
+	}
+
+	private static String type(Object proxy) {
+		return proxy.getClass().getInterfaces()[0].getSimpleName();
+	}
+
+	/**
+	 * Reads one of the package-private properties of task options.
+	 */
+	private static Object property(TaskOptions taskOptions, String getter) {
+		try {
+			Method method = TaskOptions.class.getDeclaredMethod(getter);
+			method.setAccessible(true);
+			return method.invoke(taskOptions);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("TaskOptions has no " + getter + "() in this SDK", e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private class EmulatedQueue implements Queue {
+		private final String queueName;
+
+		EmulatedQueue(String queueName) {
+			this.queueName = queueName;
+		}
+
+		public String getQueueName() {
+			return queueName;
+		}
+
+		public TaskHandle add() {
+			return add(TaskOptions.Builder.withDefaults());
+		}
+
+		public TaskHandle add(TaskOptions taskOptions) {
+			return add(Collections.singletonList(taskOptions)).get(0);
+		}
+
+		public List<TaskHandle> add(Iterable<TaskOptions> taskOptions) {
+			List<EmulatedTask> tasks = new ArrayList<EmulatedTask>();
+			for (TaskOptions options : taskOptions) {
+				tasks.add(taskFor(options));
+			}
+			List<String> addedNames = new ArrayList<String>();
+			for (EmulatedTask task : tasks) {
+				if (!usedTaskNames.add(task.taskName)) {
+					usedTaskNames.removeAll(addedNames);
+					throw new TaskAlreadyExistsException("Task name already used: " + task.taskName);
+				}
+				addedNames.add(task.taskName);
+			}
+			List<TaskHandle> handles = new ArrayList<TaskHandle>(tasks.size());
+			for (EmulatedTask task : tasks) {
+				outstandingTasks.incrementAndGet();
+				dueTasks.add(task);
+				handles.add(new TaskHandle(task.taskName, queueName, task.dueAtMillis));
+			}
+			return handles;
+		}
+
+		public TaskHandle add(Transaction txn, TaskOptions taskOptions) {
+			return add(taskOptions);
+		}
+
+		public List<TaskHandle> add(Transaction txn, Iterable<TaskOptions> taskOptions) {
+			return add(taskOptions);
+		}
+
+		private EmulatedTask taskFor(TaskOptions options) {
+			byte[] payload = (byte[]) property(options, "getPayload");
+			if (payload == null) {
+				payload = new byte[0];
+			}
+			if (payload.length > maxTaskSizeBytes()) {
+				throw new IllegalArgumentException("Task size too large");
+			}
+			String taskName = (String) property(options, "getTaskName");
+			if (taskName == null) {
+				taskName = "task" + taskCount.incrementAndGet();
+			}
+			long nowMillis = System.currentTimeMillis();
+			Long etaMillis = (Long) property(options, "getEtaMillis");
+			Long countdownMillis = (Long) property(options, "getCountdownMillis");
+			long dueAtMillis = etaMillis != null ? etaMillis : countdownMillis != null ? nowMillis + countdownMillis : nowMillis;
+			return new EmulatedTask(queueName, taskName, payload, dueAtMillis);
+		}
+	}
+
+	private static class EmulatedTask implements Delayed {
+		final String queueName;
+		final String taskName;
+		final byte[] payload;
+		final long enqueuedAtNanos = System.nanoTime();
+		final long dueAtMillis;
+		volatile long nextAttemptAtMillis;
+		volatile int attempts = 0;
+
+		EmulatedTask(String queueName, String taskName, byte[] payload, long dueAtMillis) {
+			this.queueName = queueName;
+			this.taskName = taskName;
+			this.payload = payload;
+			this.dueAtMillis = dueAtMillis;
+			this.nextAttemptAtMillis = dueAtMillis;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextAttemptAtMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long difference = nextAttemptAtMillis - ((EmulatedTask) other).nextAttemptAtMillis;
+			return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+		}
+	}
+
+	private class Dispatcher implements Runnable {
+		public void run() {
+			if (environment != null) {
+				ApiProxy.setEnvironmentForCurrentThread(environment);
+			}
+			try {
+				while (true) {
+					EmulatedTask task = dueTasks.take();
+					try {
+						dispatchAttempt(task);
+					} catch (RuntimeException e) {
+						log.log(WARNING, "Dispatch listener failed", e);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+
+		private void dispatchAttempt(EmulatedTask task) {
+			task.attempts++;
+			if (dispatch(task)) {
+				finished(task, true);
+			} else if (task.attempts >= maxAttempts) {
+				log.warning("Giving up on task " + task.taskName + " on '" + task.queueName + "' queue after " + task.attempts + " attempts");
+				abandonedTasks.incrementAndGet();
+				finished(task, false);
+			} else {
+				retries.incrementAndGet();
+				long backoffMillis = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(task.attempts - 1, 30));
+				task.nextAttemptAtMillis = System.currentTimeMillis() + backoffMillis;
+				dueTasks.add(task);
+			}
+		}
+	}
+
+	/**
+	 * Records the status a servlet sets on its response - 200 if it sets none.
+	 */
+	private static class StatusRecorder implements InvocationHandler {
+		volatile int status = 200;
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("setStatus") || name.equals("sendError")) {
+				status = (Integer) args[0];
+			}
+			Class<?> returnType = method.getReturnType();
+			if (returnType == boolean.class) {
+				return false;
+			}
+			if (returnType == int.class) {
+				return name.equals("getStatus") ? status : 0;
+			}
+			return null;
+		}
+	}
+}
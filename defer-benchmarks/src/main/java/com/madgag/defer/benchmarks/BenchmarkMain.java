@@ -0,0 +1,24 @@
+package com.madgag.defer.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, accepting the usual JMH command-line options, but
+ * writing results as JSON by default (to <code>jmh-result.json</code>), so
+ * that runs on different commits can be compared.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+		if (!commandLineOptions.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		new Runner(options.build()).run();
+	}
+}
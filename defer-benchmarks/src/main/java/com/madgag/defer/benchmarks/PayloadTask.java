@@ -0,0 +1,23 @@
+package com.madgag.defer.benchmarks;
+
+import java.util.Random;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * A task that does nothing, carrying a payload of random - and so
+ * incompressible - bytes.
+ */
+@SuppressWarnings("serial")
+public class PayloadTask implements Deferrable {
+	
+	private final byte[] payload;
+	
+	public PayloadTask(int payloadSize) {
+		payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+	}
+
+	public void run() {
+	}
+}
@@ -0,0 +1,154 @@
+package com.madgag.defer.appengine;
+
+import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSizeBytes;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.labs.taskqueue.Queue;
+import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+
+public class TaskQueueEmulatorTest {
+
+	private static final AtomicInteger runs = new AtomicInteger();
+	private static volatile int failuresBeforeSuccess;
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private final List<Dispatch> dispatches = Collections.synchronizedList(new ArrayList<Dispatch>());
+	private TaskQueueEmulator emulator;
+	private TaskQueueDeferrer deferrer;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		runs.set(0);
+		failuresBeforeSuccess = 0;
+		ObjectSerialisation taskCodec = new ObjectSerialisation();
+		TaskStore taskStore = new TaskStore(DatastoreServiceFactory.getDatastoreService(), taskCodec);
+		emulator = new TaskQueueEmulator(new DeferrableExecutingServlet(new TaskPayloadProcessor(taskStore), taskCodec), 2);
+		emulator.setDispatchListener(new TaskQueueEmulator.DispatchListener() {
+			public void dispatched(String queueName, String taskName, long enqueuedAtNanos, int attempts, boolean succeeded) {
+				dispatches.add(new Dispatch(System.nanoTime() - enqueuedAtNanos, attempts, succeeded));
+			}
+		});
+		deferrer = emulator.newDeferrer(taskStore, taskCodec);
+	}
+
+	@After
+	public void tearDown() {
+		emulator.stop();
+		helper.tearDown();
+	}
+
+	@Test
+	public void shouldRejectATaskOverTheSizeLimit() throws Exception {
+		Queue queue = emulator.getQueue("q");
+
+		try {
+			queue.add(TaskOptions.Builder.payload(new byte[maxTaskSizeBytes() + 1], "application/octet-stream"));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		queue.add(TaskOptions.Builder.payload(new byte[maxTaskSizeBytes()], "application/octet-stream"));
+	}
+
+	@Test
+	public void shouldRejectABatchHoldingAUsedTaskNameWithoutUsingItsOtherNames() throws Exception {
+		Queue queue = emulator.getQueue("q");
+		queue.add(TaskOptions.Builder.taskName("a"));
+
+		try {
+			queue.add(asList(TaskOptions.Builder.taskName("b"), TaskOptions.Builder.taskName("a")));
+			fail();
+		} catch (TaskAlreadyExistsException e) {
+		}
+		queue.add(TaskOptions.Builder.taskName("b"));
+		try {
+			emulator.getQueue("other").add(TaskOptions.Builder.taskName("a"));
+			fail();
+		} catch (TaskAlreadyExistsException e) {
+		}
+	}
+
+	@Test
+	public void shouldNotDispatchATaskBeforeItsCountdownOrEtaIsDue() throws Exception {
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.countdownMillis(300));
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.etaMillis(System.currentTimeMillis() + 300));
+
+		assertThat(emulator.awaitIdle(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(2));
+		for (Dispatch dispatch : dispatches) {
+			assertThat(dispatch.latencyNanos >= MILLISECONDS.toNanos(290), is(true)); // ETA has millisecond resolution
+		}
+	}
+
+	@Test
+	public void shouldDispatchAFailingTaskAgainAfterADoublingBackoff() throws Exception {
+		emulator.setRetryBackoffMillis(100, 1000);
+		failuresBeforeSuccess = 2;
+
+		deferrer.defer(new CountingTask());
+
+		assertThat(emulator.awaitIdle(5, SECONDS), is(true));
+		assertThat(emulator.retries(), equalTo(2L));
+		assertThat(runs.get(), equalTo(3));
+		Dispatch dispatch = dispatches.get(0);
+		assertThat(dispatch.attempts, equalTo(3));
+		assertThat(dispatch.succeeded, is(true));
+		assertThat(dispatch.latencyNanos >= MILLISECONDS.toNanos(100 + 200), is(true));
+	}
+
+	@Test
+	public void shouldGiveUpOnATaskAfterMaxAttempts() throws Exception {
+		emulator.setRetryBackoffMillis(1, 1);
+		emulator.setMaxAttempts(3);
+		failuresBeforeSuccess = Integer.MAX_VALUE;
+
+		deferrer.defer(new CountingTask());
+
+		assertThat(emulator.awaitIdle(5, SECONDS), is(true));
+		assertThat(emulator.abandonedTasks(), equalTo(1L));
+		assertThat(runs.get(), equalTo(3));
+		assertThat(dispatches.get(0).succeeded, is(false));
+	}
+
+	private static class Dispatch {
+		final long latencyNanos;
+		final int attempts;
+		final boolean succeeded;
+
+		Dispatch(long latencyNanos, int attempts, boolean succeeded) {
+			this.latencyNanos = latencyNanos;
+			this.attempts = attempts;
+			this.succeeded = succeeded;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class CountingTask implements Deferrable {
+		public void run() {
+			if (runs.incrementAndGet() <= failuresBeforeSuccess) {
+				throw new RuntimeException("Failing attempt " + runs.get());
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.madgag.defer.appengine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many adds to one queue may be in flight at once, adjusting the
+ * limit to what the task queue is seen to bear - additive increase,
+ * multiplicative decrease.
+ *
+ * <p>Each add that succeeds quickly while the limit is in use raises the
+ * limit by about one per limit's worth of adds. The limit is halved when
+ * adds start failing - once the smoothed error rate passes
+ * {@link #ERROR_RATE_THRESHOLD} - or slowing down - once the smoothed add
+ * latency is more than {@link #LATENCY_TOLERANCE} times the baseline, the
+ * latency of an unloaded add. Adds started before a decrease don't trigger
+ * another, so a burst of failures from adds in flight together halves the
+ * limit once, not once for each of them.
+ */
+class AdaptiveLimiter {
+
+	static final double INITIAL_LIMIT = 10;
+	static final double MIN_LIMIT = 1;
+	static final double BACKOFF_RATIO = 0.5;
+	static final double LATENCY_TOLERANCE = 2.0;
+	static final double ERROR_RATE_THRESHOLD = 0.1;
+
+	/** The weight of each add in the smoothed latency and error rate. */
+	private static final double SMOOTHING = 0.1;
+	/** How fast the baseline follows latencies above it, in case adds have simply become slower. */
+	private static final double BASELINE_DRIFT = 0.01;
+
+	private final double maxLimit;
+
+	private double limit = INITIAL_LIMIT;
+	private int inFlight;
+	private double baselineLatencyNanos = -1;
+	private double smoothedLatencyNanos;
+	private double errorRate;
+	private long lastDecreaseNanos = Long.MIN_VALUE;
+
+	AdaptiveLimiter(double maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Takes a permit without waiting.
+	 *
+	 * @return false if the limit is reached.
+	 */
+	synchronized boolean tryAcquire() {
+		if (inFlight >= permits()) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Takes a permit, waiting up to the given time for one.
+	 *
+	 * @return false if no permit became free in time.
+	 */
+	synchronized boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (inFlight >= permits()) {
+			long remainingNanos = deadline - System.nanoTime();
+			if (remainingNanos <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Takes a permit, waiting as long as it takes for one.
+	 */
+	synchronized void acquire() throws InterruptedException {
+		while (inFlight >= permits()) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Returns a permit, adjusting the limit by how the add went.
+	 *
+	 * @param startNanos When the add started, by {@link System#nanoTime()}.
+	 * @param endNanos When the add finished.
+	 * @param failed Whether the add failed.
+	 */
+	synchronized void release(long startNanos, long endNanos, boolean failed) {
+		boolean saturated = inFlight * 2 >= permits();
+		inFlight--;
+		errorRate += ((failed ? 1 : 0) - errorRate) * SMOOTHING;
+		boolean congested;
+		if (failed) {
+			congested = errorRate > ERROR_RATE_THRESHOLD;
+		} else {
+			congested = slow(endNanos - startNanos);
+		}
+		if (congested) {
+			if (startNanos > lastDecreaseNanos) {
+				limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+				lastDecreaseNanos = endNanos;
+			}
+		} else if (!failed && saturated) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of adds currently allowed in flight at once.
+	 */
+	synchronized int permits() {
+		return (int) limit;
+	}
+
+	synchronized int inFlight() {
+		return inFlight;
+	}
+
+	private boolean slow(long latencyNanos) {
+		if (baselineLatencyNanos < 0) {
+			baselineLatencyNanos = smoothedLatencyNanos = latencyNanos;
+			return false;
+		}
+		if (latencyNanos < baselineLatencyNanos) {
+			baselineLatencyNanos = latencyNanos;
+		} else {
+			baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) * BASELINE_DRIFT;
+		}
+		smoothedLatencyNanos += (latencyNanos - smoothedLatencyNanos) * SMOOTHING;
+		return smoothedLatencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE;
+	}
+}
@@ -0,0 +1,241 @@
+package com.madgag.defer.appengine;
+
+import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSizeBytes;
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.labs.taskqueue.QueueFailureException;
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrer;
+
+/**
+ * A deferrer that packs small tasks into {@link DeferrableBatch}es, cutting
+ * the number of tasks queued - and executed - by as many times as there are
+ * tasks in a batch.
+ *
+ * <p>Tasks are buffered per queue, and a queue's batch is sent to the
+ * underlying deferrer once adding another task would take it past the byte
+ * budget - by default, just under the
+ * {@link com.google.appengine.api.labs.taskqueue.QueueConstants#maxTaskSizeBytes() maximum task size}
+ * - or, when the next task is deferred to the queue, once the batch is
+ * older than the window. App Engine does not allow background threads, so
+ * nothing flushes a batch while no tasks are being deferred: call
+ * {@link #flush()} at the end of every request that defers tasks, or they
+ * will wait for the next one - and are lost if the instance is shut down.
+ *
+ * <p>Tasks too large to share a batch, and tasks deferred with a countdown,
+ * ETA or task name, are deferred straight away on their own.
+ *
+ * <p>The handle returned for each task completes with the {@link TaskHandle}
+ * of the batch it was queued in, or fails if the batch couldn't be queued.
+ */
+@Singleton
+public class BatchingDeferrer implements Deferrer<Future<TaskHandle>> {
+
+	private static final Logger log = Logger.getLogger(BatchingDeferrer.class.getName());
+
+	public static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+	/**
+	 * Room left below the maximum task size by the default byte budget for
+	 * the serialization of the batch itself. Members serialized together
+	 * share their class descriptors, so a batch is usually smaller than the
+	 * sum of its members serialized alone.
+	 */
+	static final int BATCH_OVERHEAD_BYTES = 1024;
+
+	private final Deferrer<TaskHandle> deferrer;
+	private final TaskCodec taskCodec;
+	private final long windowMillis;
+	private final int byteBudget;
+	/** Guarded by <code>this</code>. */
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+	@Inject
+	public BatchingDeferrer(TaskQueueDeferrer deferrer, TaskCodec taskCodec) {
+		this(deferrer, taskCodec, DEFAULT_WINDOW_MILLIS, maxTaskSizeBytes() - BATCH_OVERHEAD_BYTES);
+	}
+
+	/**
+	 * @param windowMillis How long a batch may wait for more tasks.
+	 * @param byteBudget The most serialized bytes of tasks in a batch.
+	 */
+	public BatchingDeferrer(Deferrer<TaskHandle> deferrer, TaskCodec taskCodec, long windowMillis, int byteBudget) {
+		this.deferrer = deferrer;
+		this.taskCodec = taskCodec;
+		this.windowMillis = windowMillis;
+		this.byteBudget = byteBudget;
+	}
+
+	public Future<TaskHandle> defer(Deferrable task) {
+		return defer(task, TaskQueueDeferrer.DEFAULT_QUEUE_NAME);
+	}
+
+	/**
+	 * @throws QueueFailureException If an error occurs serializing the task,
+	 * or queuing it on its own.
+	 */
+	public Future<TaskHandle> defer(Deferrable task, String queueName) {
+		int size = taskCodec.serialize(task).length;
+		if (size > byteBudget) {
+			return PendingTaskHandle.alreadyQueued(deferrer.defer(task, queueName));
+		}
+		long now = System.currentTimeMillis();
+		Batch full = null;
+		PendingTaskHandle handle;
+		synchronized (this) {
+			Batch batch = batches.get(queueName);
+			if (batch != null && (batch.bytes + size > byteBudget || now - batch.startedAt >= windowMillis)) {
+				full = batches.remove(queueName);
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(now);
+				batches.put(queueName, batch);
+			}
+			handle = batch.add(task, size);
+		}
+		if (full != null) {
+			try {
+				send(queueName, full);
+			} catch (RuntimeException e) {
+				// the failure is reported through the handles of the tasks in the batch
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * Defers a task in a batch unless it has a countdown, ETA or task name,
+	 * in which case it is deferred on its own straight away.
+	 */
+	public Future<TaskHandle> defer(Deferrable task, DeferOptions options) {
+		if (options.getCountdownMillis() != null || options.getEtaMillis() != null || options.getTaskName() != null) {
+			return PendingTaskHandle.alreadyQueued(deferrer.defer(task, options));
+		}
+		return defer(task, options.getQueueName() == null ? TaskQueueDeferrer.DEFAULT_QUEUE_NAME : options.getQueueName());
+	}
+
+	public List<Future<TaskHandle>> deferAll(Collection<? extends Deferrable> tasks, String queueName) {
+		List<Future<TaskHandle>> handles = new ArrayList<Future<TaskHandle>>(tasks.size());
+		for (Deferrable task : tasks) {
+			handles.add(defer(task, queueName));
+		}
+		return handles;
+	}
+
+	/**
+	 * Queues the batches of every queue, however small.
+	 *
+	 * @throws RuntimeException The first failure to queue a batch, once all
+	 * have been attempted.
+	 */
+	public void flush() {
+		Map<String, Batch> flushing;
+		synchronized (this) {
+			flushing = new HashMap<String, Batch>(batches);
+			batches.clear();
+		}
+		RuntimeException firstFailure = null;
+		for (Map.Entry<String, Batch> entry : flushing.entrySet()) {
+			try {
+				send(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				if (firstFailure == null) {
+					firstFailure = e;
+				}
+			}
+		}
+		if (firstFailure != null) {
+			throw firstFailure;
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting to be sent in a batch.
+	 */
+	public synchronized int pendingTasks() {
+		int pending = 0;
+		for (Batch batch : batches.values()) {
+			pending += batch.members.size();
+		}
+		return pending;
+	}
+
+	private void send(String queueName, Batch batch) {
+		try {
+			batch.queued(deferrer.defer(new DeferrableBatch(batch.members), queueName));
+		} catch (RuntimeException e) {
+			log.log(SEVERE, "Failed to queue batch of " + batch.members.size() + " tasks to '" + queueName + "' queue", e);
+			batch.failed(e);
+			throw e;
+		}
+	}
+
+	private static class Batch {
+		final long startedAt;
+		final List<Deferrable> members = new ArrayList<Deferrable>();
+		final List<PendingTaskHandle> handles = new ArrayList<PendingTaskHandle>();
+		int bytes = 0;
+
+		Batch(long startedAt) {
+			this.startedAt = startedAt;
+		}
+
+		PendingTaskHandle add(Deferrable task, int size) {
+			PendingTaskHandle handle = new PendingTaskHandle();
+			members.add(task);
+			handles.add(handle);
+			bytes += size;
+			return handle;
+		}
+
+		void queued(TaskHandle taskHandle) {
+			for (PendingTaskHandle handle : handles) {
+				handle.queued(taskHandle);
+			}
+		}
+
+		void failed(Throwable failure) {
+			for (PendingTaskHandle handle : handles) {
+				handle.failed(failure);
+			}
+		}
+	}
+
+	private static class PendingTaskHandle extends FutureTask<TaskHandle> {
+		private static final Runnable NOTHING = new Runnable() {
+			public void run() {}
+		};
+
+		PendingTaskHandle() {
+			super(NOTHING, null);
+		}
+
+		static PendingTaskHandle alreadyQueued(TaskHandle taskHandle) {
+			PendingTaskHandle handle = new PendingTaskHandle();
+			handle.queued(taskHandle);
+			return handle;
+		}
+
+		void queued(TaskHandle taskHandle) {
+			set(taskHandle);
+		}
+
+		void failed(Throwable failure) {
+			setException(failure);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.madgag.defer.appengine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * An <code>ObjectInputStream</code> that resolves classes through a
+ * {@link ClassResolutionCache}, instead of searching the stack for a
+ * classloader and loading the class afresh for every class in every
+ * payload - and that rejects classes missing from an optional
+ * {@link ClassAllowList}.
+ */
+class CachingObjectInputStream extends ObjectInputStream {
+
+	final ClassResolutionCache classResolutionCache;
+	private final ClassAllowList allowList;
+
+	/**
+	 * @param allowList The classes that may be read, or null to allow any.
+	 */
+	CachingObjectInputStream(InputStream in, ClassResolutionCache classResolutionCache, ClassAllowList allowList) throws IOException {
+		super(in);
+		this.classResolutionCache = classResolutionCache;
+		this.allowList = allowList;
+	}
+
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		checkAllowed(desc.getName());
+		try {
+			return classResolutionCache.classNamed(desc.getName());
+		} catch (ClassNotFoundException e) {
+			return super.resolveClass(desc); // primitive types
+		}
+	}
+
+	@Override
+	protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+		for (String interfaceName : interfaces) {
+			checkAllowed(interfaceName);
+		}
+		return super.resolveProxyClass(interfaces);
+	}
+
+	/**
+	 * @throws InvalidClassException If the class is not on the allow-list.
+	 */
+	void checkAllowed(String className) throws InvalidClassException {
+		if (allowList != null && !allowList.allows(className)) {
+			throw new InvalidClassException(className, "class is not allowed in task payloads");
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.madgag.defer.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The classes that may appear in a task payload, given as a comma-separated
+ * list of class names and package prefixes (ending in '.'), eg:
+ * <blockquote>
+ * <code>com.example.tasks., java.util.ArrayList, java.util.HashMap</code>
+ * </blockquote>
+ *
+ * <p>Besides the listed classes, the classes of this library, datastore
+ * keys, strings, boxed primitives and arrays of allowed classes are always
+ * allowed. Any other class in a payload fails it before the class is even
+ * loaded, so a payload can't be used to instantiate classes the app never
+ * meant to defer.
+ */
+class ClassAllowList {
+
+	private static final List<String> ALWAYS_ALLOWED_PREFIXES = Arrays.asList(
+			"com.madgag.defer.", "com.google.appengine.api.datastore.");
+
+	private static final Set<String> ALWAYS_ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(
+			String.class.getName(), Boolean.class.getName(), Byte.class.getName(), Character.class.getName(),
+			Short.class.getName(), Integer.class.getName(), Long.class.getName(), Float.class.getName(),
+			Double.class.getName(), Number.class.getName(), Enum.class.getName()));
+
+	private final Set<String> classNames = new HashSet<String>(ALWAYS_ALLOWED_CLASSES);
+	private final List<String> packagePrefixes = new ArrayList<String>(ALWAYS_ALLOWED_PREFIXES);
+	/**
+	 * Only allowed names are remembered - rejected names come from payloads,
+	 * so remembering them would let payloads grow the map without bound.
+	 */
+	private final ConcurrentMap<String, Boolean> allowedClassNames = new ConcurrentHashMap<String, Boolean>();
+
+	ClassAllowList(String allowedClasses) {
+		for (String entry : allowedClasses.split(",")) {
+			String trimmed = entry.trim();
+			if (trimmed.endsWith(".")) {
+				packagePrefixes.add(trimmed);
+			} else if (trimmed.length() > 0) {
+				classNames.add(trimmed);
+			}
+		}
+	}
+
+	boolean allows(String className) {
+		if (allowedClassNames.containsKey(className)) {
+			return true;
+		}
+		boolean allowed = decide(componentClassNameOf(className));
+		if (allowed) {
+			allowedClassNames.putIfAbsent(className, Boolean.TRUE);
+		}
+		return allowed;
+	}
+
+	private boolean decide(String className) {
+		if (className == null || classNames.contains(className)) {
+			return true;
+		}
+		for (String packagePrefix : packagePrefixes) {
+			if (className.startsWith(packagePrefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The name of the innermost component class of an array class
+	 * name like <code>[[Lcom.example.Foo;</code>, the name itself if it isn't
+	 * an array, or null for arrays of primitives.
+	 */
+	private static String componentClassNameOf(String className) {
+		int dimensions = 0;
+		while (dimensions < className.length() && className.charAt(dimensions) == '[') {
+			dimensions++;
+		}
+		if (dimensions == 0) {
+			return className;
+		}
+		if (className.charAt(dimensions) != 'L') {
+			return null;
+		}
+		return className.substring(dimensions + 1, className.length() - 1);
+	}
+}
@@ -0,0 +1,90 @@
+package com.madgag.defer.appengine;
+
+import java.io.InvalidClassException;
+import java.io.ObjectStreamClass;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The local classes, and their serialisation descriptors, that class names
+ * in task payloads resolve to through one classloader - cached, so each
+ * class is looked up once per app version rather than once per payload.
+ *
+ * <p>Classes are resolved against the classloader, falling back to the
+ * classloader of this library. The cached classes hold on to their
+ * classloader, so a cache is held by the {@link ObjectSerialisation} that
+ * uses it, never statically - it goes when the app holding the codec does,
+ * rather than pinning the app's classloader after a redeploy.
+ */
+class ClassResolutionCache {
+
+	private final ClassLoader classLoader;
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	private final ConcurrentMap<String, ObjectStreamClass> descriptors = new ConcurrentHashMap<String, ObjectStreamClass>();
+	private final ConcurrentMap<String, Integer> fieldsFingerprints = new ConcurrentHashMap<String, Integer>();
+
+	ClassResolutionCache(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * @return The current thread's context classloader, or failing that the
+	 * classloader of this library.
+	 */
+	static ClassLoader currentClassLoader() {
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		return classLoader == null ? ClassResolutionCache.class.getClassLoader() : classLoader;
+	}
+
+	boolean isFor(ClassLoader classLoader) {
+		return this.classLoader == classLoader;
+	}
+
+	Class<?> classNamed(String className) throws ClassNotFoundException {
+		Class<?> clazz = classes.get(className);
+		if (clazz == null) {
+			clazz = load(className);
+			classes.putIfAbsent(className, clazz);
+		}
+		return clazz;
+	}
+
+	/**
+	 * @throws InvalidClassException If the class is not serializable.
+	 */
+	ObjectStreamClass descriptorFor(String className) throws ClassNotFoundException, InvalidClassException {
+		ObjectStreamClass desc = descriptors.get(className);
+		if (desc == null) {
+			desc = ObjectStreamClass.lookup(classNamed(className));
+			if (desc == null) {
+				throw new InvalidClassException(className, "class is not serializable");
+			}
+			descriptors.putIfAbsent(className, desc);
+		}
+		return desc;
+	}
+
+	/**
+	 * @see CompactObjectSerialisation#fieldsFingerprintOf(ObjectStreamClass)
+	 */
+	int fieldsFingerprintFor(String className) throws ClassNotFoundException, InvalidClassException {
+		Integer fingerprint = fieldsFingerprints.get(className);
+		if (fingerprint == null) {
+			fingerprint = CompactObjectSerialisation.fieldsFingerprintOf(descriptorFor(className));
+			fieldsFingerprints.putIfAbsent(className, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	private Class<?> load(String className) throws ClassNotFoundException {
+		try {
+			return Class.forName(className, false, classLoader);
+		} catch (ClassNotFoundException e) {
+			ClassLoader libraryClassLoader = ClassResolutionCache.class.getClassLoader();
+			if (libraryClassLoader == classLoader) {
+				throw e;
+			}
+			return Class.forName(className, false, libraryClassLoader);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.madgag.defer.appengine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+
+/**
+ * A {@link TaskCodec} that writes each class descriptor as just its class
+ * name, serialVersionUID and a 4-byte fingerprint of its fields, rather than
+ * the full field-by-field description written by standard java
+ * serialisation. This saves tens of bytes for each distinct class in the
+ * payload, and most of the cost of reading the class descriptors back when
+ * the task is executed.
+ * 
+ * <p>On deserialisation, class descriptors are resolved against the local
+ * classes, and cached for the lifetime of the classloader - that is, once
+ * per app version. Because the stream doesn't describe the fields of the
+ * classes it contains, the classes must be serialisation-compatible between
+ * the app version enqueuing a task and the one executing it. A class whose
+ * serialVersionUID differs is rejected, as with standard java serialisation
+ * - and so is one whose serializable fields have been added, removed,
+ * renamed or retyped, even if it has declared a fixed serialVersionUID, as
+ * most tasks do. Rejected payloads are logged and not retried, like any
+ * other undecodable payload, rather than read into the wrong fields.
+ * 
+ * <p>Payloads written by the default {@link ObjectSerialisation} codec are
+ * still decoded, so switching to this codec is safe while older tasks are
+ * in flight - but app versions that pre-date this codec can't decode its
+ * payloads, so it should only be enabled once those versions have drained
+ * their queues.
+ */
+public class CompactObjectSerialisation extends ObjectSerialisation {
+	
+	@Override
+	ObjectOutputStream objectOutputStreamFor(OutputStream out) throws IOException {
+		out.write(COMPACT_FORMAT);
+		return new CompactObjectOutputStream(out);
+	}
+	
+	/**
+	 * @return A hash of the names and types of the serializable fields of
+	 * the class, in the order java serialisation writes them.
+	 */
+	static int fieldsFingerprintOf(ObjectStreamClass desc) {
+		int fingerprint = 1;
+		for (ObjectStreamField field : desc.getFields()) {
+			fingerprint = 31 * fingerprint + field.getName().hashCode();
+			fingerprint = 31 * fingerprint + (field.isPrimitive() ? field.getTypeCode() : field.getTypeString().hashCode());
+		}
+		return fingerprint;
+	}
+	
+	static class CompactObjectOutputStream extends ObjectOutputStream {
+
+		CompactObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			writeUTF(desc.getName());
+			writeLong(desc.getSerialVersionUID());
+			writeInt(fieldsFingerprintOf(desc));
+		}
+	}
+	
+	static class CompactObjectInputStream extends CachingObjectInputStream {
+		
+		CompactObjectInputStream(InputStream in, ClassResolutionCache classResolutionCache, ClassAllowList allowList) throws IOException {
+			super(in, classResolutionCache, allowList);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			String className = readUTF();
+			long serialVersionUID = readLong();
+			checkAllowed(className);
+			ObjectStreamClass desc = classResolutionCache.descriptorFor(className);
+			if (desc.getSerialVersionUID() != serialVersionUID) {
+				throw new InvalidClassException(className, "local class incompatible: stream classdesc serialVersionUID = "
+						+ serialVersionUID + ", local class serialVersionUID = " + desc.getSerialVersionUID());
+			}
+			int fieldsFingerprint = readInt();
+			int localFieldsFingerprint = classResolutionCache.fieldsFingerprintFor(className);
+			if (fieldsFingerprint != localFieldsFingerprint) {
+				throw new InvalidClassException(className, "local class incompatible: stream classdesc fields fingerprint = "
+						+ fieldsFingerprint + ", local class fields fingerprint = " + localFieldsFingerprint);
+			}
+			return desc;
+		}
+		
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) {
+			return desc.forClass();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.madgag.defer.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrer;
+
+/**
+ * A deferrer whose handles are {@link TaskCompletion}s: each task is
+ * wrapped in a {@link TrackedDeferrable}, which writes a completion marker
+ * once the task is done, and deferred with the underlying deferrer - by
+ * default, a {@link TaskQueueDeferrer}, but a {@link BatchingDeferrer}
+ * works too, as batch members are tracked individually.
+ *
+ * <p>Tracking costs a datastore put for every task run, so only defer
+ * tasks through this deferrer when something will wait on them.
+ */
+@Singleton
+public class CompletionTrackingDeferrer implements Deferrer<TaskCompletion> {
+
+	private final Deferrer<?> deferrer;
+	private final TaskCompletions completions;
+
+	@Inject
+	public CompletionTrackingDeferrer(TaskQueueDeferrer deferrer, TaskCompletions completions) {
+		this((Deferrer<?>) deferrer, completions);
+	}
+
+	public CompletionTrackingDeferrer(Deferrer<?> deferrer, TaskCompletions completions) {
+		this.deferrer = deferrer;
+		this.completions = completions;
+	}
+
+	public TaskCompletion defer(Deferrable task) {
+		TaskCompletion completion = completions.newCompletion();
+		deferrer.defer(new TrackedDeferrable(completion.getId(), task));
+		return completion;
+	}
+
+	public TaskCompletion defer(Deferrable task, String queueName) {
+		TaskCompletion completion = completions.newCompletion();
+		deferrer.defer(new TrackedDeferrable(completion.getId(), task), queueName);
+		return completion;
+	}
+
+	public TaskCompletion defer(Deferrable task, DeferOptions options) {
+		TaskCompletion completion = completions.newCompletion();
+		deferrer.defer(new TrackedDeferrable(completion.getId(), task), options);
+		return completion;
+	}
+
+	public List<TaskCompletion> deferAll(Collection<? extends Deferrable> tasks, String queueName) {
+		List<TaskCompletion> handles = new ArrayList<TaskCompletion>(tasks.size());
+		List<TrackedDeferrable> trackedTasks = new ArrayList<TrackedDeferrable>(tasks.size());
+		for (Deferrable task : tasks) {
+			TaskCompletion completion = completions.newCompletion();
+			handles.add(completion);
+			trackedTasks.add(new TrackedDeferrable(completion.getId(), task));
+		}
+		deferrer.deferAll(trackedTasks, queueName);
+		return handles;
+	}
+}
@@ -0,0 +1,204 @@
+package com.madgag.defer.appengine;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.pipeline.JoinStore;
+import com.madgag.defer.pipeline.PipelineStep;
+
+/**
+ * A {@link JoinStore} keeping each join in the datastore, as an entity
+ * holding the serialized step, and up to {@link #MAX_SHARDS} shard entities
+ * recording which predecessors have arrived.
+ *
+ * <p>Each shard is a root entity - its own entity group - so predecessors
+ * arriving at once contend only with the others on their shard, rather
+ * than all queuing for one entity group's write rate. An arrival adds the
+ * predecessor to its shard in a transaction, then sums the shards with one
+ * batch get; only an arrival that finds every predecessor in takes a
+ * transaction on the join entity itself, to claim the step for its
+ * predecessor alone. The join and its shards are deleted once the step is
+ * released.
+ *
+ * <p>Joins of abandoned pipelines - and shards written by predecessors
+ * retried after their join completed - are left for {@link #sweepJoins(long, int)}.
+ */
+@Singleton
+public class DatastoreJoinStore implements JoinStore {
+
+	static final String JOIN_KIND = Deferrable.class.getName() + "Join";
+	static final String SHARD_KIND = JOIN_KIND + "Shard";
+	static final String STEP_PROPERTY = "step";
+	static final String COMPLETED_BY_PROPERTY = "completedBy";
+	static final String ARRIVED_PROPERTY = "arrived";
+	static final String CREATED_AT_PROPERTY = "createdAt";
+
+	static final int MAX_SHARDS = 16;
+	static final int MAX_TRANSACTION_ATTEMPTS = 5;
+
+	private final DatastoreService datastoreService;
+	private final TaskCodec taskCodec;
+
+	@Inject
+	public DatastoreJoinStore(DatastoreService datastoreService, TaskCodec taskCodec) {
+		this.datastoreService = datastoreService;
+		this.taskCodec = taskCodec;
+	}
+
+	public void createJoins(List<PipelineStep> steps) {
+		List<Entity> joins = new ArrayList<Entity>(steps.size());
+		for (PipelineStep step : steps) {
+			Entity join = new Entity(joinKeyOf(step.getPipelineId(), step.getStepId()));
+			join.setUnindexedProperty(STEP_PROPERTY, new Blob(taskCodec.serialize(step)));
+			join.setProperty(CREATED_AT_PROPERTY, new Date());
+			joins.add(join);
+		}
+		datastoreService.put(joins);
+	}
+
+	public PipelineStep arrive(String pipelineId, int stepId, int predecessorId) {
+		Key joinKey = joinKeyOf(pipelineId, stepId);
+		Entity join;
+		try {
+			join = datastoreService.get(joinKey);
+		} catch (EntityNotFoundException e) {
+			return null; // already completed
+		}
+		PipelineStep step = (PipelineStep) taskCodec.deserialize(((Blob) join.getProperty(STEP_PROPERTY)).getBytes());
+		List<Key> shardKeys = shardKeysOf(joinKey, step.getPredecessorCount());
+		recordArrival(shardKeys.get(predecessorId % shardKeys.size()), predecessorId);
+		if (arrivals(shardKeys) < step.getPredecessorCount() || !claim(joinKey, predecessorId)) {
+			return null;
+		}
+		return step;
+	}
+
+	public void release(PipelineStep step) {
+		Key joinKey = joinKeyOf(step.getPipelineId(), step.getStepId());
+		List<Key> keys = new ArrayList<Key>(shardKeysOf(joinKey, step.getPredecessorCount()));
+		keys.add(joinKey);
+		datastoreService.delete(keys);
+	}
+
+	/**
+	 * Deletes joins and shards created more than <code>maxAgeMillis</code> ago.
+	 *
+	 * @param limit The most entities of each kind to delete.
+	 * @return The number of entities deleted.
+	 */
+	int sweepJoins(long maxAgeMillis, int limit) {
+		Date cutoff = new Date(System.currentTimeMillis() - maxAgeMillis);
+		List<Key> expired = new ArrayList<Key>();
+		for (String kind : new String[] { JOIN_KIND, SHARD_KIND }) {
+			Query query = new Query(kind).addFilter(CREATED_AT_PROPERTY, Query.FilterOperator.LESS_THAN, cutoff).setKeysOnly();
+			for (Entity entity : datastoreService.prepare(query).asIterable(FetchOptions.Builder.withLimit(limit))) {
+				expired.add(entity.getKey());
+			}
+		}
+		if (!expired.isEmpty()) {
+			datastoreService.delete(expired);
+		}
+		return expired.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void recordArrival(Key shardKey, int predecessorId) {
+		for (int attempt = 1; ; attempt++) {
+			Transaction txn = datastoreService.beginTransaction();
+			try {
+				Entity shard;
+				try {
+					shard = datastoreService.get(txn, shardKey);
+				} catch (EntityNotFoundException e) {
+					shard = new Entity(shardKey);
+					shard.setProperty(CREATED_AT_PROPERTY, new Date());
+				}
+				List<Long> arrived = (List<Long>) shard.getProperty(ARRIVED_PROPERTY);
+				arrived = arrived == null ? new ArrayList<Long>() : new ArrayList<Long>(arrived);
+				if (arrived.contains((long) predecessorId)) {
+					return; // a retried predecessor
+				}
+				arrived.add((long) predecessorId);
+				shard.setUnindexedProperty(ARRIVED_PROPERTY, arrived);
+				datastoreService.put(txn, shard);
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				if (attempt >= MAX_TRANSACTION_ATTEMPTS) {
+					throw e;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	private int arrivals(List<Key> shardKeys) {
+		int arrivals = 0;
+		for (Entity shard : datastoreService.get(shardKeys).values()) {
+			List<?> arrived = (List<?>) shard.getProperty(ARRIVED_PROPERTY);
+			arrivals += arrived == null ? 0 : arrived.size();
+		}
+		return arrivals;
+	}
+
+	/**
+	 * @return true if the join is now marked as completed by this
+	 * predecessor, false if another predecessor completed it.
+	 */
+	private boolean claim(Key joinKey, int predecessorId) {
+		for (int attempt = 1; ; attempt++) {
+			Transaction txn = datastoreService.beginTransaction();
+			try {
+				Entity join = datastoreService.get(txn, joinKey);
+				Long completedBy = (Long) join.getProperty(COMPLETED_BY_PROPERTY);
+				if (completedBy != null) {
+					return completedBy == predecessorId;
+				}
+				join.setUnindexedProperty(COMPLETED_BY_PROPERTY, (long) predecessorId);
+				datastoreService.put(txn, join);
+				txn.commit();
+				return true;
+			} catch (EntityNotFoundException e) {
+				return false;
+			} catch (ConcurrentModificationException e) {
+				if (attempt >= MAX_TRANSACTION_ATTEMPTS) {
+					throw e;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	private static Key joinKeyOf(String pipelineId, int stepId) {
+		return KeyFactory.createKey(JOIN_KIND, pipelineId + ":" + stepId);
+	}
+
+	private static List<Key> shardKeysOf(Key joinKey, int predecessorCount) {
+		int shards = Math.min(predecessorCount, MAX_SHARDS);
+		List<Key> shardKeys = new ArrayList<Key>(shards);
+		for (int i = 0; i < shards; i++) {
+			shardKeys.add(KeyFactory.createKey(SHARD_KIND, joinKey.getName() + ":" + i));
+		}
+		return shardKeys;
+	}
+}
@@ -0,0 +1,19 @@
+package com.madgag.defer.appengine;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.madgag.defer.pipeline.Pipelines;
+
+/**
+ * {@link Pipelines} whose steps are queued by a {@link TaskQueueDeferrer},
+ * with their joins in a {@link DatastoreJoinStore}. {@link TaskPayloadProcessor}
+ * attaches each step to it as the step is executed.
+ */
+@Singleton
+public class DatastorePipelines extends Pipelines {
+
+	@Inject
+	public DatastorePipelines(TaskQueueDeferrer deferrer, DatastoreJoinStore joinStore) {
+		super(deferrer, joinStore);
+	}
+}
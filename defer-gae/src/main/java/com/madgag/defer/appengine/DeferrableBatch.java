@@ -0,0 +1,100 @@
+package com.madgag.defer.appengine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.PermanentTaskFailure;
+
+/**
+ * Many small tasks packed into a single queued task by a
+ * {@link BatchingDeferrer}.
+ *
+ * <p>{@link TaskPayloadProcessor} runs the members in turn, each in
+ * isolation: a member that fails permanently is dropped, and if any fail
+ * with a retryable failure, only those members are deferred again, as a new
+ * batch, after a countdown that doubles with each failed attempt. Members
+ * left to run when the {@link TaskDeadline} is near are deferred again at
+ * once.
+ */
+public class DeferrableBatch implements Deferrable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long FIRST_RETRY_COUNTDOWN_MILLIS = 1000;
+	static final long MAX_RETRY_COUNTDOWN_MILLIS = 60 * 60 * 1000;
+
+	/**
+	 * An array rather than a list, so that a payload holding a batch needs
+	 * no collection class on the {@link ObjectSerialisation#ALLOWED_CLASSES allow-list}.
+	 */
+	private final Deferrable[] members;
+	private final int failedAttempts;
+
+	DeferrableBatch(List<Deferrable> members) {
+		this(members, 0);
+	}
+
+	private DeferrableBatch(List<Deferrable> members, int failedAttempts) {
+		this.members = members.toArray(new Deferrable[members.size()]);
+		this.failedAttempts = failedAttempts;
+	}
+
+	public List<Deferrable> getMembers() {
+		return Collections.unmodifiableList(Arrays.asList(members));
+	}
+
+	/**
+	 * @return How many times members of this batch have been retried.
+	 */
+	public int getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	/**
+	 * @return A batch of the members that failed, to be deferred again.
+	 */
+	DeferrableBatch retrying(List<Deferrable> failedMembers) {
+		return new DeferrableBatch(failedMembers, failedAttempts + 1);
+	}
+
+	/**
+	 * @return A batch of the members there was no time to run, to be
+	 * deferred again.
+	 */
+	DeferrableBatch continuing(List<Deferrable> remainingMembers) {
+		return new DeferrableBatch(remainingMembers, failedAttempts);
+	}
+
+	/**
+	 * @return How long to wait before running the members that failed.
+	 */
+	long retryCountdownMillis() {
+		return Math.min(FIRST_RETRY_COUNTDOWN_MILLIS << Math.min(failedAttempts, 20), MAX_RETRY_COUNTDOWN_MILLIS);
+	}
+
+	/**
+	 * Runs the members in turn, for when the batch is executed by something
+	 * other than {@link TaskPayloadProcessor}. Permanent failures are
+	 * dropped, and the first retryable failure is rethrown once every member
+	 * has run - so the whole batch is retried.
+	 */
+	public void run() {
+		RuntimeException firstFailure = null;
+		for (Deferrable member : members) {
+			try {
+				member.run();
+			} catch (PermanentTaskFailure e) {
+				// dropped
+			} catch (RuntimeException e) {
+				if (firstFailure == null) {
+					firstFailure = e;
+				}
+			}
+		}
+		if (firstFailure != null) {
+			throw firstFailure;
+		}
+	}
+}
@@ -17,14 +17,19 @@ import com.google.inject.Singleton;
 public class DeferrableExecutingServlet extends HttpServlet {
     
     private static final Logger log = Logger.getLogger( DeferrableExecutingServlet.class.getName() );
+    
+    /**
+     * The header in which the task queue names the queue a task came from.
+     */
+    static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
 
     private final TaskPayloadProcessor taskPayloadProcessor;
-    private final ObjectSerialisation objectSerialisation;
+    private final TaskCodec taskCodec;
     
 	@Inject
-	public DeferrableExecutingServlet(TaskPayloadProcessor taskPayloadProcessor, ObjectSerialisation objectSerialisation) {
+	public DeferrableExecutingServlet(TaskPayloadProcessor taskPayloadProcessor, TaskCodec taskCodec) {
 		this.taskPayloadProcessor = taskPayloadProcessor;
-		this.objectSerialisation = objectSerialisation;
+		this.taskCodec = taskCodec;
 		
 	}
     
@@ -43,15 +48,18 @@ public class DeferrableExecutingServlet extends HttpServlet {
         
         Object payload=payloadFrom(request);
         if (payload!=null) {
-        	taskPayloadProcessor.processPayload(payload);
+        	taskPayloadProcessor.processPayload(payload, request.getHeader(QUEUE_NAME_HEADER));
         }
     }
 
+	/**
+	 * Decodes the payload straight from the request stream, so the request
+	 * body is never copied in full, and is read to its end whatever the
+	 * reported content length (which is -1 for chunked requests).
+	 */
 	private Object payloadFrom(HttpServletRequest req) {
 		try {
-            byte[] bytesIn = new byte[ req.getContentLength() ];
-            req.getInputStream().readLine( bytesIn, 0, bytesIn.length );
-            return objectSerialisation.deserialize( bytesIn );
+            return taskCodec.deserialize( req.getInputStream() );
         } catch ( IOException e ) {
             log.log(SEVERE, "Error deserializing task", e );
         }
@@ -3,43 +3,171 @@ package com.madgag.defer.appengine;
 import static org.apache.commons.codec.binary.Base64.decodeBase64;
 import static org.apache.commons.codec.binary.Base64.encodeBase64;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.codec.binary.Base64InputStream;
+
+import com.google.appengine.api.labs.taskqueue.QueueConstants;
 import com.google.appengine.api.labs.taskqueue.QueueFailureException;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
-class ObjectSerialisation {
+/**
+ * The default {@link TaskCodec}, using standard java serialisation.
+ * 
+ * <p>Payloads are Base64-encoded on the development server (see
+ * {@link #setBase64Payloads(boolean)}).
+ * 
+ * <p>A java serialisation stream always begins with the same magic number,
+ * the first byte of which serves as the format header of these payloads -
+ * so they are byte-for-byte identical to payloads written before format
+ * headers were introduced.
+ */
+public class ObjectSerialisation implements TaskCodec {
     
 	private static final Logger log = Logger.getLogger( TaskStore.class.getName() );
 	
+	/**
+	 * Format header of standard java serialisation payloads: the high byte of
+	 * {@link java.io.ObjectStreamConstants#STREAM_MAGIC STREAM_MAGIC}.
+	 */
+	static final byte JAVA_FORMAT = (byte) 0xAC;
+	
+	/**
+	 * Format header of {@link CompactObjectSerialisation} payloads.
+	 */
+	static final byte COMPACT_FORMAT = 0x01;
+	
+	/**
+	 * Format header of {@link #compress(byte[]) compressed} payloads, which
+	 * are followed by the Deflate-compressed bytes of a payload in one of the
+	 * other formats.
+	 */
+	static final byte DEFLATED_FORMAT = 0x02;
+	
+	/**
+	 * Per-thread serialisation buffers larger than this are discarded after
+	 * use rather than kept for the next task.
+	 */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	
+	private static final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+		@Override
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream( 1024 );
+		}
+	};
+	
+	/**
+	 * Name of the optional boolean constant that overrides whether payloads
+	 * are Base64-encoded, eg:
+	 * <blockquote>
+	 * <code>bindConstant().annotatedWith(Names.named(ObjectSerialisation.BASE64_PAYLOADS)).to(false);</code>
+	 * </blockquote>
+	 */
+	public static final String BASE64_PAYLOADS = "defer.base64Payloads";
+	
+	private boolean base64Payloads = isDevelopment();
+	
     private static boolean isDevelopment() {
-    	return true;
-//        return ( SystemProperty.environment.value() ==
-//                    SystemProperty.Environment.Value.Development );
+        return SystemProperty.environment.get() != null // unset when not running on App Engine at all
+                && ( SystemProperty.environment.value() ==
+                    SystemProperty.Environment.Value.Development );
+    }
+    
+    /**
+     * By default, payloads are only Base64-encoded on the development server,
+     * as a workaround for issue #2097 - in production the raw bytes are sent,
+     * leaving the full {@link QueueConstants#maxTaskSizeBytes()} available
+     * for the task. Payloads of either kind can always be deserialized.
+     */
+    @Inject(optional = true)
+    void setBase64Payloads( @Named(BASE64_PAYLOADS) boolean base64Payloads ) {
+        this.base64Payloads = base64Payloads;
+    }
+    
+    /**
+     * Name of the optional string constant listing the classes that may be
+     * deserialized from task payloads, as comma-separated class names and
+     * package prefixes (ending in '.'), eg:
+     * <blockquote>
+     * <code>bindConstant().annotatedWith(Names.named(ObjectSerialisation.ALLOWED_CLASSES)).to("com.example.tasks., java.util.ArrayList");</code>
+     * </blockquote>
+     * The classes of this library, datastore keys, strings, boxed primitives
+     * and arrays of allowed classes are always allowed.
+     */
+    public static final String ALLOWED_CLASSES = "defer.allowedClasses";
+    
+    private ClassAllowList allowList;
+    
+    /**
+     * By default any class may be deserialized. With an allow-list set, a
+     * payload containing any other class is rejected before that class is
+     * loaded - it is logged and not retried, like any other undecodable
+     * payload.
+     */
+    @Inject(optional = true)
+    void setAllowedClasses( @Named(ALLOWED_CLASSES) String allowedClasses ) {
+        this.allowList = new ClassAllowList( allowedClasses );
+    }
+    
+    /**
+     * The class resolution cache of the classloader tasks were last
+     * deserialized with. Only one is kept, so a codec never holds on to a
+     * classloader that has stopped being used - an app uses the one.
+     */
+    private volatile ClassResolutionCache classResolutionCache;
+    
+    ClassResolutionCache classResolutionCache() {
+        ClassLoader classLoader = ClassResolutionCache.currentClassLoader();
+        ClassResolutionCache cache = classResolutionCache;
+        if ( cache == null || !cache.isFor( classLoader ) ) {
+            cache = new ClassResolutionCache( classLoader );
+            classResolutionCache = cache;
+        }
+        return cache;
     }
     
     /**
-     * Deserialize an object from a byte array. Does not throw any exceptions;
-     * instead, exceptions are logged and null is returned.
+     * Deserialize an object from a byte array, whatever format it was
+     * serialized with. Does not throw any exceptions; instead, exceptions are
+     * logged and null is returned.
      * 
      * @param bytesIn A byte array containing a previously serialized object.
      * @return An object instance, or null if an exception occurred.
      */
     public Object deserialize( byte[] bytesIn ) {
+        return deserialize( new ByteArrayInputStream( bytesIn ) );
+    }
+    
+    /**
+     * Deserialize an object directly from a stream, whatever format it was
+     * serialized with - Base64 decoding and decompression are done as the
+     * stream is read, rather than on copies of the whole payload. Does not
+     * throw any exceptions; instead, exceptions are logged and null is
+     * returned.
+     * 
+     * @param in A stream containing a previously serialized object.
+     * @return An object instance, or null if an exception occurred.
+     */
+    public Object deserialize( InputStream in ) {
         ObjectInputStream objectIn = null;
         try {
-            if ( isDevelopment() ) { // workaround for issue #2097
-                bytesIn = decodeBase64( bytesIn );
-            }
-            objectIn = new ObjectInputStream( new BufferedInputStream(
-                                        new ByteArrayInputStream( bytesIn ) ) );
+            objectIn = objectInputStreamFor( in, true );
             return objectIn.readObject();
         } catch ( Exception e ) {
             log.log( Level.SEVERE, "Error deserializing task", e );
@@ -54,6 +182,47 @@ class ObjectSerialisation {
         }
     }
     
+    /**
+     * Format headers are never valid Base64 characters, so a payload that
+     * doesn't start with one must have been Base64-encoded.
+     */
+    private static boolean isBase64( byte[] bytesIn ) {
+        return bytesIn.length > 0 && isBase64Header( bytesIn[0] );
+    }
+    
+    private static boolean isBase64Header( byte header ) {
+        return header != JAVA_FORMAT && header != COMPACT_FORMAT && header != DEFLATED_FORMAT;
+    }
+    
+    /**
+     * Reads the format header of a payload and wraps the stream in whatever
+     * decoding it needs. Base64 encoding is only expected as the outermost
+     * layer, and compression only directly inside it.
+     */
+    private ObjectInputStream objectInputStreamFor( InputStream in, boolean outermost ) throws IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream( in, 1 );
+        int header = pushbackIn.read();
+        if ( header == -1 ) {
+            throw new StreamCorruptedException( "empty payload" );
+        }
+        if ( outermost && isBase64Header( (byte) header ) ) {
+            pushbackIn.unread( header );
+            return objectInputStreamFor( new Base64InputStream( pushbackIn ), false );
+        }
+        switch ( (byte) header ) {
+        case JAVA_FORMAT:
+            pushbackIn.unread( header ); // part of the java serialisation stream header
+            return new CachingObjectInputStream( pushbackIn, classResolutionCache(), allowList );
+        case COMPACT_FORMAT:
+            return new CompactObjectSerialisation.CompactObjectInputStream( pushbackIn, classResolutionCache(), allowList );
+        case DEFLATED_FORMAT:
+            if ( in instanceof InflaterInputStream ) {
+                break;
+            }
+            return objectInputStreamFor( new InflaterInputStream( pushbackIn ), false );
+        }
+        throw new StreamCorruptedException( "unknown payload format: " + header );
+    }
     
     /**
      * Serialize an object into a byte array.
@@ -64,18 +233,61 @@ class ObjectSerialisation {
      * serialization process.
      */
     public byte[] serialize( Object obj ) {
+        ByteArrayOutputStream bytesOut = buffers.get();
+        bytesOut.reset();
         try {
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-            ObjectOutputStream objectOut = new ObjectOutputStream( 
-                                                new BufferedOutputStream( bytesOut ) );
+            ObjectOutputStream objectOut = objectOutputStreamFor( bytesOut );
             objectOut.writeObject( obj );
             objectOut.close();
-            if ( isDevelopment() ) { // workaround for issue #2097
+            if ( base64Payloads ) { // workaround for issue #2097
                 return encodeBase64( bytesOut.toByteArray() );
             }
             return bytesOut.toByteArray();
         } catch ( IOException e ) {
             throw new QueueFailureException( e );
+        } finally {
+            if ( bytesOut.size() > MAX_RETAINED_BUFFER_SIZE ) {
+                buffers.remove();
+            }
         }
     }
+    
+    /**
+     * Compress a payload with Deflate at its fastest level - payloads that
+     * are large enough to need compressing are often highly repetitive, so
+     * even the fastest level usually gains most of what is available.
+     * 
+     * @param bytesIn A byte array containing a serialized object.
+     * @return The compressed payload, or null if compression didn't make it
+     * any smaller.
+     */
+    public byte[] compress( byte[] bytesIn ) {
+        boolean base64 = isBase64( bytesIn );
+        byte[] rawBytes = base64 ? decodeBase64( bytesIn ) : bytesIn;
+        if ( rawBytes.length > 0 && rawBytes[0] == DEFLATED_FORMAT ) {
+            return null; // already compressed
+        }
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream( rawBytes.length / 2 );
+        bytesOut.write( DEFLATED_FORMAT );
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try {
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream( bytesOut, deflater );
+            deflaterOut.write( rawBytes );
+            deflaterOut.close();
+        } catch ( IOException e ) {
+            throw new QueueFailureException( e );
+        } finally {
+            deflater.end();
+        }
+        byte[] compressedBytes = base64 ? encodeBase64( bytesOut.toByteArray() ) : bytesOut.toByteArray();
+        return compressedBytes.length < bytesIn.length ? compressedBytes : null;
+    }
+    
+    /**
+     * Creates the stream an object is serialized with, writing any format
+     * header needed to identify the stream to {@link #deserialize(byte[])}.
+     */
+    ObjectOutputStream objectOutputStreamFor( OutputStream out ) throws IOException {
+        return new ObjectOutputStream( out );
+    }
 }
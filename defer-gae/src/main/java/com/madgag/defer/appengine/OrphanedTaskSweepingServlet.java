@@ -0,0 +1,63 @@
+package com.madgag.defer.appengine;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Deletes the datastore entities of spilled tasks that were never cleaned
+ * up, old {@link TaskCompletions completion markers} and the joins of
+ * abandoned {@link DatastorePipelines pipelines}, and flushes this
+ * instance's pending deletes - to be requested periodically by a cron job,
+ * for instance:
+ * <blockquote><pre>
+ * &lt;cron>
+ *   &lt;url>/_defer/sweep?maxAgeHours=168&lt;/url>
+ *   &lt;schedule>every 1 hours&lt;/schedule>
+ * &lt;/cron>
+ * </pre></blockquote>
+ *
+ * <p>The <code>maxAgeHours</code> parameter must be longer than any task
+ * can wait to run, retries included, than anything will wait on a
+ * completion, and than any pipeline takes to run: defaults to
+ * {@value #DEFAULT_MAX_AGE_HOURS} hours.
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class OrphanedTaskSweepingServlet extends HttpServlet {
+
+    static final int DEFAULT_MAX_AGE_HOURS = 7 * 24;
+    /**
+     * The most entities deleted per request, to stay well within the request deadline.
+     */
+    static final int MAX_ENTITIES_PER_SWEEP = 500;
+
+    private final TaskStore taskStore;
+    private final TaskCompletions taskCompletions;
+    private final DatastoreJoinStore joinStore;
+
+    @Inject
+    public OrphanedTaskSweepingServlet(TaskStore taskStore, TaskCompletions taskCompletions, DatastoreJoinStore joinStore) {
+        this.taskStore = taskStore;
+        this.taskCompletions = taskCompletions;
+        this.joinStore = joinStore;
+    }
+
+    @Override
+    public void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        String maxAgeHours = request.getParameter( "maxAgeHours" );
+        long maxAgeMillis = ( maxAgeHours == null ? DEFAULT_MAX_AGE_HOURS : Long.parseLong( maxAgeHours ) ) * 60 * 60 * 1000;
+        taskStore.flushDeletes();
+        int swept = taskStore.sweepOrphans( maxAgeMillis, MAX_ENTITIES_PER_SWEEP );
+        int sweptMarkers = taskCompletions.sweepMarkers( maxAgeMillis, MAX_ENTITIES_PER_SWEEP );
+        int sweptJoins = joinStore.sweepJoins( maxAgeMillis, MAX_ENTITIES_PER_SWEEP );
+        response.setContentType( "text/plain" );
+        response.getWriter().println( "Swept " + swept + " orphaned tasks, " + sweptMarkers + " completion markers and "
+                + sweptJoins + " pipeline join entities" );
+    }
+}
@@ -0,0 +1,144 @@
+package com.madgag.defer.appengine;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Holds the payloads of tasks this instance has stored recently, so that a
+ * task run on the instance that deferred it - as tasks with a short
+ * countdown often are - is read without a datastore get. Bind an instance
+ * to enable it, eg:
+ * <blockquote>
+ * <code>bind(PayloadCache.class).toInstance(new PayloadCache(16 * 1024 * 1024));</code>
+ * </blockquote>
+ *
+ * <p>Payloads are weighed by their size in bytes, and the least recently
+ * used are evicted to keep the total within the budget. A payload larger
+ * than 1/{@link #MAX_ENTRY_FRACTION} of the budget isn't cached at all, so
+ * one large payload can't flush out many small ones.
+ *
+ * <p>Payloads are only ever written once, so a cached payload is never
+ * stale while its entity exists - and the {@link TaskStore} removes it
+ * whenever it deletes, or schedules the deletion of, the entity. A payload
+ * whose task ran on another instance stays until evicted.
+ */
+public class PayloadCache {
+
+	static final int MAX_ENTRY_FRACTION = 8;
+
+	private final long maxBytes;
+	/** Guarded by itself, as is <code>bytesHeld</code>. */
+	private final LinkedHashMap<Key, byte[]> payloads = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	private long bytesHeld = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes The most payload bytes to hold.
+	 */
+	public PayloadCache(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be at least 1: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	void put(Key key, byte[] payload) {
+		if (payload.length > maxBytes / MAX_ENTRY_FRACTION) {
+			return;
+		}
+		synchronized (payloads) {
+			byte[] replaced = payloads.put(key, payload);
+			bytesHeld += payload.length - (replaced == null ? 0 : replaced.length);
+			for (Iterator<byte[]> eldest = payloads.values().iterator(); bytesHeld > maxBytes; ) {
+				bytesHeld -= eldest.next().length;
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return The payload, or null if it isn't cached.
+	 */
+	byte[] get(Key key) {
+		byte[] payload;
+		synchronized (payloads) {
+			payload = payloads.get(key);
+		}
+		(payload == null ? misses : hits).incrementAndGet();
+		return payload;
+	}
+
+	void invalidate(Key key) {
+		synchronized (payloads) {
+			byte[] removed = payloads.remove(key);
+			if (removed != null) {
+				bytesHeld -= removed.length;
+			}
+		}
+	}
+
+	void invalidateAll(Collection<Key> keys) {
+		synchronized (payloads) {
+			for (Key key : keys) {
+				byte[] removed = payloads.remove(key);
+				if (removed != null) {
+					bytesHeld -= removed.length;
+				}
+			}
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The proportion of lookups answered from the cache, or 0 if
+	 * there have been none.
+	 */
+	public double hitRatio() {
+		long hits = this.hits.get(), lookups = hits + misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return The number of payloads evicted to stay within the budget.
+	 */
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The total size of the payloads held.
+	 */
+	public long bytesHeld() {
+		synchronized (payloads) {
+			return bytesHeld;
+		}
+	}
+
+	/**
+	 * @return The number of payloads held.
+	 */
+	public int size() {
+		synchronized (payloads) {
+			return payloads.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PayloadCache[" + size() + " payloads, " + bytesHeld() + "/" + maxBytes + " bytes, hit ratio " + hitRatio() + "]";
+	}
+}
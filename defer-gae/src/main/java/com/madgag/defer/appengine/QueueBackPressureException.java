@@ -0,0 +1,17 @@
+package com.madgag.defer.appengine;
+
+import com.google.appengine.api.labs.taskqueue.QueueFailureException;
+
+/**
+ * Thrown when a task is not queued because too many adds to its queue are
+ * already in flight - no add was attempted, so the task can safely be
+ * deferred again later.
+ */
+public class QueueBackPressureException extends QueueFailureException {
+
+	private static final long serialVersionUID = 1L;
+
+	public QueueBackPressureException(String queueName) {
+		super("Too many tasks being added to queue '" + queueName + "'");
+	}
+}
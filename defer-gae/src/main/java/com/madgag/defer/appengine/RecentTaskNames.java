@@ -0,0 +1,122 @@
+package com.madgag.defer.appengine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The names of tasks this instance has queued recently, so that a task
+ * deferred again under the same name can be dropped without a round trip to
+ * the task queue - which would only reject it.
+ *
+ * <p>Names are held in an LRU map with the time they were queued, and are
+ * trusted for the length of the window, which must be shorter than the time
+ * the task queue keeps the tombstones of named tasks. In front of the map,
+ * a bloom filter answers 'never seen' for most new names without taking the
+ * map's lock. The filter has two generations, the older discarded each
+ * window, so names that have left the window eventually leave the filter.
+ */
+class RecentTaskNames {
+
+	private static final int BLOOM_FILTER_BITS = 1 << 17;
+	private static final int BLOOM_FILTER_HASHES = 4;
+
+	private final long windowMillis;
+	private final Map<String, Long> queuedAt;
+
+	private volatile AtomicLongArray currentFilter = newFilter();
+	private volatile AtomicLongArray previousFilter = newFilter();
+	/** Guarded by <code>queuedAt</code>. */
+	private long currentFilterStartedAt;
+
+	/**
+	 * @param capacity The most names to remember.
+	 * @param windowMillis How long to remember each name for.
+	 */
+	RecentTaskNames(final int capacity, long windowMillis) {
+		this.windowMillis = windowMillis;
+		this.queuedAt = new LinkedHashMap<String, Long>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return true if the name was queued by this instance within the window.
+	 */
+	boolean contains(String taskName, long nowMillis) {
+		if (!mightContain(currentFilter, taskName) && !mightContain(previousFilter, taskName)) {
+			return false;
+		}
+		synchronized (queuedAt) {
+			Long queuedAtMillis = queuedAt.get(taskName);
+			if (queuedAtMillis == null) {
+				return false;
+			}
+			if (nowMillis - queuedAtMillis >= windowMillis) {
+				queuedAt.remove(taskName);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Records that a task with the given name is known to the task queue.
+	 */
+	void add(String taskName, long nowMillis) {
+		synchronized (queuedAt) {
+			if (nowMillis - currentFilterStartedAt >= windowMillis) {
+				previousFilter = currentFilter;
+				currentFilter = newFilter();
+				currentFilterStartedAt = nowMillis;
+			}
+			queuedAt.put(taskName, nowMillis);
+		}
+		AtomicLongArray filter = currentFilter;
+		int hash = taskName.hashCode();
+		int step = secondHash(hash);
+		for (int i = 0; i < BLOOM_FILTER_HASHES; i++, hash += step) {
+			setBit(filter, hash & (BLOOM_FILTER_BITS - 1));
+		}
+	}
+
+	private static boolean mightContain(AtomicLongArray filter, String taskName) {
+		int hash = taskName.hashCode();
+		int step = secondHash(hash);
+		for (int i = 0; i < BLOOM_FILTER_HASHES; i++, hash += step) {
+			int bit = hash & (BLOOM_FILTER_BITS - 1);
+			if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Derives the step between probes from the name's hash, so the probes of
+	 * two names that share a first probe still diverge. Always odd, so it
+	 * never steps zero bits.
+	 */
+	private static int secondHash(int hash) {
+		int mixed = hash * 0x9E3779B9;
+		return (mixed ^ (mixed >>> 16)) | 1;
+	}
+
+	private static void setBit(AtomicLongArray filter, int bit) {
+		int index = bit >>> 6;
+		long mask = 1L << bit;
+		long word;
+		do {
+			word = filter.get(index);
+		} while ((word & mask) == 0 && !filter.compareAndSet(index, word, word | mask));
+	}
+
+	private static AtomicLongArray newFilter() {
+		return new AtomicLongArray(BLOOM_FILTER_BITS / 64);
+	}
+}
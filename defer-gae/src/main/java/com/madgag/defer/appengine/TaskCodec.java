@@ -0,0 +1,68 @@
+package com.madgag.defer.appengine;
+
+import java.io.InputStream;
+
+import com.google.appengine.api.labs.taskqueue.QueueFailureException;
+import com.google.inject.ImplementedBy;
+
+/**
+ * Converts task payloads - {@link com.madgag.defer.Deferrable Deferrable}
+ * instances, or the datastore {@link com.google.appengine.api.datastore.Key
+ * Key}s of spilled tasks - to and from bytes.
+ * 
+ * <p>The first byte of an encoded payload identifies its format, so that a
+ * codec can continue to decode tasks written by a differently-configured
+ * codec that are still in flight.
+ * 
+ * <p>To use the {@link CompactObjectSerialisation compact codec}, bind it in
+ * your Guice module:
+ * <blockquote>
+ * <code>bind(TaskCodec.class).to(CompactObjectSerialisation.class);</code>
+ * </blockquote>
+ */
+@ImplementedBy(ObjectSerialisation.class)
+public interface TaskCodec {
+    
+    /**
+     * Serialize an object into a byte array.
+     * 
+     * @param obj An object to be serialized.
+     * @return A byte array containing the serialized object
+     * @throws QueueFailureException If an I/O error occurs during the
+     * serialization process.
+     */
+    byte[] serialize( Object obj );
+    
+    /**
+     * Deserialize an object from a byte array. Does not throw any exceptions;
+     * instead, exceptions are logged and null is returned.
+     * 
+     * @param bytesIn A byte array containing a previously serialized object.
+     * @return An object instance, or null if an exception occurred.
+     */
+    Object deserialize( byte[] bytesIn );
+    
+    /**
+     * Deserialize an object directly from a stream holding a payload written
+     * by {@link #serialize(Object)} or {@link #compress(byte[])}, without
+     * first reading the whole payload into memory. Does not throw any
+     * exceptions; instead, exceptions are logged and null is returned.
+     * 
+     * @param in A stream containing a previously serialized object.
+     * @return An object instance, or null if an exception occurred.
+     */
+    Object deserialize( InputStream in );
+    
+    /**
+     * Compress a payload previously returned by {@link #serialize(Object)},
+     * for tasks that are too large to queue as they are. The compressed
+     * payload must be accepted by {@link #deserialize(byte[])} in place of
+     * the original.
+     * 
+     * @param bytesIn A byte array containing a serialized object.
+     * @return The compressed payload, or null if compression didn't make it
+     * any smaller.
+     */
+    byte[] compress( byte[] bytesIn );
+    
+}
@@ -0,0 +1,83 @@
+package com.madgag.defer.appengine;
+
+import static java.util.Collections.singleton;
+
+import java.util.concurrent.TimeUnit;
+
+import com.madgag.defer.Completion;
+import com.madgag.defer.CompletionCallback;
+import com.madgag.defer.SettableCompletion;
+
+/**
+ * The completion of a task deferred by a {@link CompletionTrackingDeferrer},
+ * learnt of by polling its completion marker through {@link TaskCompletions}.
+ *
+ * <p>Nothing polls in the background - App Engine allows no background
+ * threads - so a completion only becomes done when it is
+ * {@link #await(long, TimeUnit) awaited}, or when {@link TaskCompletions#poll()}
+ * is called while it has callbacks waiting on it or has been looked up with
+ * {@link TaskCompletions#completionOf(String)}. Callbacks are called on the
+ * thread that polled.
+ */
+public class TaskCompletion extends SettableCompletion {
+
+	private final String id;
+	private final TaskCompletions completions;
+	private TaskCompletion followed;
+
+	TaskCompletion(String id, TaskCompletions completions) {
+		this.id = id;
+		this.completions = completions;
+	}
+
+	/**
+	 * @return The id the task's completion marker is written under, from
+	 * which {@link TaskCompletions#completionOf(String)} finds this
+	 * completion again - in a later request, say.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	boolean hasWaitingCallbacks() {
+		return hasCallbacks();
+	}
+
+	/**
+	 * Completes this once the given completion, watched under the same id,
+	 * is done.
+	 */
+	void follow(TaskCompletion watchedCompletion) {
+		synchronized (this) {
+			if (followed == watchedCompletion) {
+				return;
+			}
+			followed = watchedCompletion;
+		}
+		watchedCompletion.whenDone(new CompletionCallback() {
+			public void done(Completion completion) {
+				complete(completion.isFailed());
+			}
+		});
+	}
+
+	/**
+	 * Polls for the task's completion marker until it is found, or the
+	 * timeout elapses.
+	 */
+	@Override
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return completions.awaitAll(singleton(this), timeout, unit);
+	}
+
+	/**
+	 * Registers a callback, to be called once a poll finds the task done.
+	 */
+	@Override
+	public void whenDone(CompletionCallback callback) {
+		super.whenDone(callback);
+		if (!isDone()) {
+			completions.watch(this);
+		}
+	}
+}
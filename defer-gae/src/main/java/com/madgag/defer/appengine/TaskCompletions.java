@@ -0,0 +1,241 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.madgag.defer.Deferrable;
+
+/**
+ * Writes and polls the completion markers of tasks deferred by a
+ * {@link CompletionTrackingDeferrer}.
+ *
+ * <p>A marker is a tiny datastore entity, named for the completion id,
+ * written by {@link TaskPayloadProcessor} once the task has run
+ * successfully or failed permanently. Completions that are being waited
+ * on - awaited, or with callbacks registered - are watched by this
+ * instance, and each {@link #poll()} looks up the markers of all of them
+ * with batch gets: however many waiters share a completion, and however
+ * many completions are being waited on, a poll costs one datastore call per
+ * {@link #MAX_KEYS_PER_GET} completions.
+ *
+ * <p>Markers are kept until {@link #sweepMarkers(long, int)} deletes them,
+ * so a completion can be found done by a waiter arriving long after the
+ * task ran - the {@link OrphanedTaskSweepingServlet} sweeps them along
+ * with orphaned tasks.
+ *
+ * <p>A task whose payload can't be decoded never writes a marker, so its
+ * waiters see it as never done.
+ */
+@Singleton
+public class TaskCompletions {
+
+	private static final Logger log = Logger.getLogger(TaskCompletions.class.getName());
+
+	static final String ENTITY_KIND = Deferrable.class.getName() + "Completion";
+	static final String FAILED_PROPERTY = "failed";
+	static final String COMPLETED_AT_PROPERTY = "completedAt";
+
+	/**
+	 * The most markers looked up with one batch get.
+	 */
+	static final int MAX_KEYS_PER_GET = 500;
+
+	static final long FIRST_POLL_INTERVAL_MILLIS = 50;
+	static final long MAX_POLL_INTERVAL_MILLIS = 1000;
+
+	private final DatastoreService datastoreService;
+	private final ConcurrentMap<String, TaskCompletion> watched = new ConcurrentHashMap<String, TaskCompletion>();
+
+	@Inject
+	public TaskCompletions(DatastoreService datastoreService) {
+		this.datastoreService = datastoreService;
+	}
+
+	/**
+	 * @return A completion with a new id, for a task about to be deferred.
+	 */
+	TaskCompletion newCompletion() {
+		return new TaskCompletion(UUID.randomUUID().toString(), this);
+	}
+
+	/**
+	 * @return The completion with the given id - the same instance for every
+	 * caller until it is found done, so they share its lookups. It is watched
+	 * from the first lookup, so polls find it done even if it is never
+	 * awaited.
+	 */
+	public TaskCompletion completionOf(String id) {
+		TaskCompletion completion = new TaskCompletion(id, this);
+		TaskCompletion existing = watched.putIfAbsent(id, completion);
+		return existing != null ? existing : completion;
+	}
+
+	/**
+	 * @return The number of completions being waited on by this instance.
+	 */
+	public int watchedCompletions() {
+		return watched.size();
+	}
+
+	/**
+	 * Watches the given completion - or, if another instance is already
+	 * watched under its id, completes it when that one is found done.
+	 */
+	void watch(TaskCompletion completion) {
+		TaskCompletion existing = watched.putIfAbsent(completion.getId(), completion);
+		if (existing != null && existing != completion) {
+			completion.follow(existing);
+		}
+	}
+
+	/**
+	 * Writes the completion marker of a task, and completes this instance's
+	 * completion for it, if it is watching one. Failing to write the marker
+	 * is logged rather than thrown, as throwing would run the task again.
+	 */
+	void markDone(String id, boolean failed) {
+		Entity marker = new Entity(keyOf(id));
+		marker.setUnindexedProperty(FAILED_PROPERTY, failed);
+		marker.setProperty(COMPLETED_AT_PROPERTY, new Date());
+		try {
+			datastoreService.put(marker);
+		} catch (RuntimeException e) {
+			log.log(SEVERE, "Couldn't write completion marker " + id, e);
+		}
+		TaskCompletion completion = watched.remove(id);
+		if (completion != null) {
+			completion.complete(failed);
+		}
+	}
+
+	/**
+	 * Looks up the markers of every completion being waited on, completing
+	 * those that are done - and so calling their callbacks, on this thread.
+	 *
+	 * @return The number of completions found done.
+	 */
+	public int poll() {
+		List<TaskCompletion> toPoll = new ArrayList<TaskCompletion>(watched.values());
+		int found = 0;
+		for (int from = 0; from < toPoll.size(); from += MAX_KEYS_PER_GET) {
+			List<TaskCompletion> batch = toPoll.subList(from, Math.min(from + MAX_KEYS_PER_GET, toPoll.size()));
+			List<Key> keys = new ArrayList<Key>(batch.size());
+			for (TaskCompletion completion : batch) {
+				keys.add(keyOf(completion.getId()));
+			}
+			Map<Key, Entity> markers = datastoreService.get(keys);
+			for (TaskCompletion completion : batch) {
+				Entity marker = markers.get(keyOf(completion.getId()));
+				if (marker != null) {
+					watched.remove(completion.getId(), completion);
+					completion.complete(Boolean.TRUE.equals(marker.getProperty(FAILED_PROPERTY)));
+					found++;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Polls until all the given completions are done, or the timeout
+	 * elapses, waiting between polls for an interval that starts at
+	 * {@value #FIRST_POLL_INTERVAL_MILLIS}ms and doubles up to
+	 * {@value #MAX_POLL_INTERVAL_MILLIS}ms. Polls are shared with any other
+	 * completions this instance is watching. Completions still not done when
+	 * the timeout elapses stay watched only if they have callbacks waiting.
+	 *
+	 * @return true if all the completions are done.
+	 */
+	public boolean awaitAll(Collection<TaskCompletion> completions, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (long interval = FIRST_POLL_INTERVAL_MILLIS; ; interval = Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS)) {
+			if (!watchUnlessDone(completions)) {
+				return true;
+			}
+			poll();
+			if (allDone(completions)) {
+				return true;
+			}
+			long remainingMillis = MILLISECONDS.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (remainingMillis <= 0) {
+				stopWatchingUnlessWaitedOn(completions);
+				return false;
+			}
+			Thread.sleep(Math.min(interval, remainingMillis));
+		}
+	}
+
+	/**
+	 * Deletes markers written more than <code>maxAgeMillis</code> ago.
+	 *
+	 * @param limit The most markers to delete.
+	 * @return The number of markers deleted.
+	 */
+	int sweepMarkers(long maxAgeMillis, int limit) {
+		Query query = new Query(ENTITY_KIND)
+				.addFilter(COMPLETED_AT_PROPERTY, Query.FilterOperator.LESS_THAN, new Date(System.currentTimeMillis() - maxAgeMillis))
+				.setKeysOnly();
+		List<Key> expired = new ArrayList<Key>();
+		for (Entity entity : datastoreService.prepare(query).asIterable(FetchOptions.Builder.withLimit(limit))) {
+			expired.add(entity.getKey());
+		}
+		if (!expired.isEmpty()) {
+			datastoreService.delete(expired);
+		}
+		return expired.size();
+	}
+
+	private static boolean allDone(Collection<TaskCompletion> completions) {
+		for (TaskCompletion completion : completions) {
+			if (!completion.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if any of the completions is not yet done.
+	 */
+	private boolean watchUnlessDone(Collection<TaskCompletion> completions) {
+		boolean waiting = false;
+		for (TaskCompletion completion : completions) {
+			if (!completion.isDone()) {
+				watch(completion);
+				waiting = true;
+			}
+		}
+		return waiting;
+	}
+
+	private void stopWatchingUnlessWaitedOn(Collection<TaskCompletion> completions) {
+		for (TaskCompletion completion : completions) {
+			if (!completion.hasWaitingCallbacks()) {
+				watched.remove(completion.getId(), completion);
+			}
+		}
+	}
+
+	private static Key keyOf(String id) {
+		return KeyFactory.createKey(ENTITY_KIND, id);
+	}
+}
@@ -0,0 +1,113 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * The time left to the task being run by {@link TaskPayloadProcessor}
+ * before its request is killed. A long task can ask for its deadline with
+ * {@link #current()}, and when it {@link #isNear()}, save its progress in a
+ * continuation and hand that on with {@link #continueWith(Deferrable)} -
+ * so it finishes in slices that each fit in a request, rather than being
+ * killed partway through and retried from the start. Eg:
+ * <blockquote><pre>
+ * public void run() {
+ *     TaskDeadline deadline = TaskDeadline.current();
+ *     while (hasMoreRows()) {
+ *         if (deadline != null &amp;&amp; deadline.isNear()) {
+ *             deadline.continueWith(new ProcessRows(nextRow));
+ *             return;
+ *         }
+ *         processRow(nextRow++);
+ *     }
+ * }
+ * </pre></blockquote>
+ */
+public class TaskDeadline {
+
+	private static final ThreadLocal<TaskDeadline> CURRENT = new ThreadLocal<TaskDeadline>();
+
+	private final long deadlineNanos;
+	private final long marginNanos;
+	private final String queueName;
+	private final TaskQueueDeferrer deferrer;
+	private boolean continued = false;
+
+	TaskDeadline(long startNanos, long deadlineMillis, long marginMillis, String queueName, TaskQueueDeferrer deferrer) {
+		this.deadlineNanos = startNanos + MILLISECONDS.toNanos(deadlineMillis);
+		this.marginNanos = MILLISECONDS.toNanos(marginMillis);
+		this.queueName = queueName;
+		this.deferrer = deferrer;
+	}
+
+	/**
+	 * @return The deadline of the task running on this thread, or null if it
+	 * isn't being run by a {@link TaskPayloadProcessor}.
+	 */
+	public static TaskDeadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * @return The deadline this replaced on the thread, to be restored with
+	 * {@link #restore(TaskDeadline)} when the task has run.
+	 */
+	TaskDeadline enter() {
+		TaskDeadline previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	static void restore(TaskDeadline previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * @return The milliseconds left before the request is killed - negative
+	 * once it is overdue.
+	 */
+	public long remainingMillis() {
+		return NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+	}
+
+	/**
+	 * @return true once there is less time left than the task should need to
+	 * hand on a continuation.
+	 */
+	public boolean isNear() {
+		return deadlineNanos - System.nanoTime() < marginNanos;
+	}
+
+	/**
+	 * Defers the rest of the work, checkpointed in the given continuation, to
+	 * the queue the task came from - after which the task should return
+	 * normally, so that it isn't retried.
+	 *
+	 * @throws IllegalStateException If the {@link TaskPayloadProcessor} has
+	 * no deferrer to defer the continuation with.
+	 */
+	public void continueWith(Deferrable continuation) {
+		if (deferrer == null) {
+			throw new IllegalStateException("No deferrer to defer the continuation " + continuation.getClass().getName() + " with");
+		}
+		if (queueName == null) {
+			deferrer.defer(continuation);
+		} else {
+			deferrer.defer(continuation, queueName);
+		}
+		continued = true;
+	}
+
+	/**
+	 * @return Whether the task has handed on a continuation.
+	 */
+	boolean isContinued() {
+		return continued;
+	}
+}
@@ -1,44 +1,260 @@
 package com.madgag.defer.appengine;
 
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.madgag.defer.DeferOptions;
 import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrables;
 import com.madgag.defer.PermanentTaskFailure;
+import com.madgag.defer.metrics.DeferMetrics;
+import com.madgag.defer.metrics.NoOpDeferMetrics;
+import com.madgag.defer.metrics.DeferMetrics.TaskOutcome;
+import com.madgag.defer.pipeline.PipelineStep;
+import com.madgag.defer.pipeline.Pipelines;
 
+/**
+ * Runs the payloads of queued tasks, each within a {@link TaskDeadline}
+ * counted from when the payload reaches the processor. The members of a
+ * {@link DeferrableBatch} left to run when the deadline is near are deferred
+ * again, rather than risk the whole batch being killed and retried - and a
+ * task that finishes near its deadline, or past it, is logged and counted,
+ * as one that should be split into slices.
+ */
 public class TaskPayloadProcessor {
 
 	private static final Logger log = Logger
 			.getLogger(TaskPayloadProcessor.class.getName());
 
+	/**
+	 * Names of the optional constants configuring the {@link TaskDeadline}
+	 * of each task: how long the request running it may take, in
+	 * milliseconds, and how long before that the deadline is near.
+	 */
+	public static final String TASK_DEADLINE_MILLIS = "defer.taskDeadlineMillis";
+	public static final String DEADLINE_MARGIN_MILLIS = "defer.deadlineMarginMillis";
+
 	private final TaskStore taskStore;
+	private DeferMetrics deferMetrics = NoOpDeferMetrics.INSTANCE;
+	private TaskQueueDeferrer deferrer;
+	private TaskCompletions taskCompletions;
+	private Pipelines pipelines;
+	private long taskDeadlineMillis = 30 * 1000;
+	private long deadlineMarginMillis = 5 * 1000;
+	private final AtomicLong tasksNearDeadline = new AtomicLong();
+	private final AtomicLong tasksContinued = new AtomicLong();
 
 	@Inject
 	public TaskPayloadProcessor(TaskStore taskStore) {
 		this.taskStore = taskStore;
 	}
 
+	@Inject(optional = true)
+	public void setDeferMetrics(DeferMetrics deferMetrics) {
+		this.deferMetrics = deferMetrics;
+	}
+
+	/**
+	 * The deferrer used to defer again just the members of a
+	 * {@link DeferrableBatch} that fail. Without one, a failing member fails
+	 * the whole batch, and every member is run again when it is retried.
+	 */
+	@Inject(optional = true)
+	public void setDeferrer(TaskQueueDeferrer deferrer) {
+		this.deferrer = deferrer;
+	}
+
+	/**
+	 * Where the completion markers of {@link TrackedDeferrable}s are written.
+	 * Without it, tracked tasks are run but their completion is never
+	 * recorded.
+	 */
+	@Inject(optional = true)
+	public void setTaskCompletions(TaskCompletions taskCompletions) {
+		this.taskCompletions = taskCompletions;
+	}
+
+	/**
+	 * The pipelines that {@link PipelineStep}s are attached to before they
+	 * run. Without them, pipeline steps fail.
+	 */
+	@Inject(optional = true)
+	public void setPipelines(DatastorePipelines pipelines) {
+		this.pipelines = pipelines;
+	}
+
+	/**
+	 * By default, a task has the 30 seconds of a task queue request, and its
+	 * deadline is near with 5 seconds of them left.
+	 */
+	@Inject(optional = true)
+	public void setTaskDeadlineMillis(@Named(TASK_DEADLINE_MILLIS) long taskDeadlineMillis) {
+		this.taskDeadlineMillis = taskDeadlineMillis;
+	}
+
+	@Inject(optional = true)
+	public void setDeadlineMarginMillis(@Named(DEADLINE_MARGIN_MILLIS) long deadlineMarginMillis) {
+		this.deadlineMarginMillis = deadlineMarginMillis;
+	}
+
+	/**
+	 * @return The number of tasks that finished, or failed, with their
+	 * deadline near or passed, without handing on a continuation.
+	 */
+	public long tasksNearDeadline() {
+		return tasksNearDeadline.get();
+	}
+
+	/**
+	 * @return The number of tasks that handed on a continuation with
+	 * {@link TaskDeadline#continueWith(Deferrable)}, or batches that deferred
+	 * the members they had no time to run.
+	 */
+	public long tasksContinued() {
+		return tasksContinued.get();
+	}
+
 	void processPayload(Object payload) {
+		processPayload(payload, null);
+	}
+
+	/**
+	 * @param queueName The queue the task was executed from, if known, for
+	 * the metrics.
+	 */
+	void processPayload(Object payload, String queueName) {
+		TaskDeadline deadline = new TaskDeadline(System.nanoTime(), taskDeadlineMillis, deadlineMarginMillis, queueName, deferrer);
 		if (payload instanceof Key) {
 			Key key = (Key) payload;
 			Deferrable task = taskStore.getTask(key);
 			if (task!=null) {
-				run(task);
-				taskStore.deleteEntity(key);
+				runWithin(deadline, task, queueName);
+				taskStore.scheduleDeletion(key);
 			}
 		} else if (payload instanceof Deferrable) {
-			run((Deferrable) payload);
+			runWithin(deadline, (Deferrable) payload, queueName);
 		} else {
 			log.severe("invalid payload type: " + payload.getClass().getName());
 			// don't retry task
 		}
 	}
 
-	private void run(Deferrable task) {
+	private void runWithin(TaskDeadline deadline, Deferrable task, String queueName) {
+		TaskDeadline previous = deadline.enter();
+		try {
+			run(task, queueName);
+		} finally {
+			TaskDeadline.restore(previous);
+			if (deadline.isContinued()) {
+				tasksContinued.incrementAndGet();
+			} else if (deadline.isNear()) { // a task that handed on a continuation was sliced as it should be
+				tasksNearDeadline.incrementAndGet();
+				log.warning("Task " + task.getClass().getName() + " on queue " + queueName + " ended with "
+						+ deadline.remainingMillis() + "ms of its deadline left - it should be split into slices, with TaskDeadline");
+			}
+		}
+	}
+
+	/**
+	 * @return true if the task ran successfully, false if it failed permanently.
+	 */
+	private boolean run(Deferrable task, String queueName) {
+		if (task instanceof DeferrableBatch) {
+			runBatch((DeferrableBatch) task, queueName);
+			return true;
+		}
+		if (task instanceof TrackedDeferrable) {
+			return runTracked((TrackedDeferrable) task, queueName);
+		}
+		if (task instanceof PipelineStep && pipelines != null) {
+			pipelines.attach((PipelineStep) task);
+		}
+		Class<? extends Deferrable> taskClass = Deferrables.taskClassOf(task);
+		long start = System.nanoTime();
 		try {
 			task.run();
-		} catch (PermanentTaskFailure e) {}
+			deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.SUCCEEDED, System.nanoTime() - start);
+			return true;
+		} catch (PermanentTaskFailure e) {
+			deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.FAILED_PERMANENTLY, System.nanoTime() - start);
+			return false;
+		} catch (RuntimeException e) {
+			deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.FAILED, System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a tracked task, and writes its completion marker unless it fails
+	 * with a retryable failure.
+	 */
+	private boolean runTracked(TrackedDeferrable tracked, String queueName) {
+		boolean succeeded = run(tracked.getTask(), queueName);
+		if (taskCompletions == null) {
+			log.warning("No TaskCompletions to record completion " + tracked.getCompletionId());
+		} else {
+			taskCompletions.markDone(tracked.getCompletionId(), !succeeded);
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Runs the members of a batch in turn. Members that fail permanently are
+	 * dropped, and those that fail with a retryable failure are deferred
+	 * again as a new batch - so the batch itself succeeds, unless the failed
+	 * members can't be deferred, when the first failure is rethrown and the
+	 * whole batch is retried.
+	 * 
+	 * <p>Once the deadline is near, the members yet to run are deferred
+	 * again straight away, as a batch of their own.
+	 */
+	private void runBatch(DeferrableBatch batch, String queueName) {
+		List<Deferrable> failedMembers = new ArrayList<Deferrable>();
+		RuntimeException firstFailure = null;
+		List<Deferrable> members = batch.getMembers();
+		TaskDeadline deadline = TaskDeadline.current();
+		boolean sliceAtDeadline = deferrer != null && deadline != null;
+		for (int i = 0; i < members.size(); i++) {
+			Deferrable member = members.get(i);
+			if (i > 0 && sliceAtDeadline && deadline.isNear()) {
+				try {
+					deadline.continueWith(batch.continuing(members.subList(i, members.size())));
+					break;
+				} catch (RuntimeException e) {
+					log.log(WARNING, "Failed to defer " + (members.size() - i) + " batched tasks left at the deadline, so running them now", e);
+					sliceAtDeadline = false;
+				}
+			}
+			try {
+				run(member, queueName);
+			} catch (RuntimeException e) {
+				log.log(WARNING, "Batched task failed: " + member.getClass().getName(), e);
+				failedMembers.add(member);
+				if (firstFailure == null) {
+					firstFailure = e;
+				}
+			}
+		}
+		if (firstFailure == null) {
+			return;
+		}
+		if (deferrer == null) {
+			throw firstFailure;
+		}
+		try {
+			deferrer.defer(batch.retrying(failedMembers),
+					DeferOptions.Builder.queueName(queueName).countdownMillis(batch.retryCountdownMillis()));
+		} catch (RuntimeException e) {
+			log.log(WARNING, "Failed to defer " + failedMembers.size() + " failed batched tasks", e);
+			throw firstFailure;
+		}
 	}
 
 }
@@ -4,32 +4,198 @@ import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSize
 import static com.google.appengine.api.labs.taskqueue.QueueFactory.getQueue;
 import static com.google.appengine.api.labs.taskqueue.TaskOptions.Method.POST;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.labs.taskqueue.Queue;
 import com.google.appengine.api.labs.taskqueue.QueueFailureException;
+import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.labs.taskqueue.TaskHandle;
 import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.appengine.api.labs.taskqueue.TransientFailureException;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.madgag.defer.DeferOptions;
 import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrables;
 import com.madgag.defer.Deferrer;
+import com.madgag.defer.DuplicateTaskException;
+import com.madgag.defer.metrics.DeferMetrics;
+import com.madgag.defer.metrics.NoOpDeferMetrics;
 
+@Singleton
 public class TaskQueueDeferrer implements Deferrer<TaskHandle> {
+	
+	/**
+	 * How a task's payload was queued.
+	 */
+	public enum PayloadTier {
+		/** The serialized task was queued as-is. */
+		INLINE,
+		/** The serialized task was too large, but fitted once compressed. */
+		COMPRESSED,
+		/** The task was stored in the datastore, and its key queued. */
+		SPILLED
+	}
+	
+	/**
+	 * What became of a task deferred with a task name.
+	 */
+	public enum NamedTaskOutcome {
+		/** The task was queued. */
+		QUEUED,
+		/** The name was queued recently by this instance, so the task was dropped without calling the task queue. */
+		DROPPED_LOCALLY,
+		/** The task queue rejected the name. */
+		REJECTED_BY_QUEUE
+	}
+	
+	/**
+	 * What a deferral does when the limit of adds in flight to its queue is
+	 * reached.
+	 */
+	public enum AcquireMode {
+		/** Wait until an add finishes. */
+		BLOCK,
+		/** Wait up to the acquire timeout, then throw a {@link QueueBackPressureException}. */
+		TIMED,
+		/** Throw a {@link QueueBackPressureException} straight away. */
+		FAIL_FAST
+	}
 
     private static final String TASK_CONTENT_TYPE = "application/x-java-serialized-object";
 	private static final Logger log = Logger.getLogger( TaskQueueDeferrer.class.getName() );
+	
+	/**
+	 * The maximum number of tasks the task queue accepts in a single batch add.
+	 */
+	static final int MAX_TASKS_PER_ADD = 100;
+	
+	/**
+	 * The queue used when no queue name is given.
+	 */
+	public static final String DEFAULT_QUEUE_NAME = "deferred";
+	
+	/**
+	 * How many recently queued task names each instance remembers, and for
+	 * how long - well within the time the task queue keeps the tombstones
+	 * of named tasks.
+	 */
+	static final int RECENT_TASK_NAMES_CAPACITY = 10000;
+	static final long RECENT_TASK_NAMES_WINDOW_MILLIS = 10 * 60 * 1000;
+	
+	/**
+	 * Names of the optional constants configuring how deferrals wait for the
+	 * {@link AdaptiveLimiter} of their queue: an {@link AcquireMode}, and
+	 * for {@link AcquireMode#TIMED} the longest wait in milliseconds.
+	 */
+	public static final String ACQUIRE_MODE = "defer.acquireMode";
+	public static final String ACQUIRE_TIMEOUT_MILLIS = "defer.acquireTimeoutMillis";
+	
+	/**
+	 * The most adds each instance lets be in flight to one queue at once,
+	 * however well the task queue is keeping up.
+	 */
+	static final int MAX_ADDS_IN_FLIGHT = 100;
+	
+	/**
+	 * How many times an add that fails transiently is tried in all, and the
+	 * longest wait before the first retry - doubled for each retry after it.
+	 * Each wait is a random time up to that, so adds that failed together
+	 * don't retry together.
+	 */
+	static final int MAX_ADD_ATTEMPTS = 3;
+	static final long RETRY_DELAY_MILLIS = 50;
     
 	private final TaskStore taskStore;
-	private final ObjectSerialisation objectSerialisation;
-	private final String defaultQueueName="deferred";
+	private final TaskCodec taskCodec;
+	private final AtomicLongArray tasksQueuedByTier = new AtomicLongArray(PayloadTier.values().length);
+	private final AtomicLongArray namedTasksByOutcome = new AtomicLongArray(NamedTaskOutcome.values().length);
+	private DeferMetrics deferMetrics = NoOpDeferMetrics.INSTANCE;
+	private final RecentTaskNames recentTaskNames = new RecentTaskNames(RECENT_TASK_NAMES_CAPACITY, RECENT_TASK_NAMES_WINDOW_MILLIS);
+	private final ConcurrentMap<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<String, AdaptiveLimiter>();
+	/**
+	 * Batch adds are limited apart from single adds: each carries up to
+	 * {@link #MAX_TASKS_PER_ADD} tasks, so takes far longer than a single add
+	 * without the queue being any slower, and would otherwise look like
+	 * congestion to the limiter of single adds.
+	 */
+	private final ConcurrentMap<String, AdaptiveLimiter> batchLimiters = new ConcurrentHashMap<String, AdaptiveLimiter>();
+	private final Random retryJitter = new Random();
+	private AcquireMode acquireMode = AcquireMode.BLOCK;
+	private long acquireTimeoutMillis = 1000;
 	
 	@Inject
-	public TaskQueueDeferrer(TaskStore taskStore, ObjectSerialisation objectSerialisation) {
+	public TaskQueueDeferrer(TaskStore taskStore, TaskCodec taskCodec) {
 		this.taskStore = taskStore;
-		this.objectSerialisation = objectSerialisation;
+		this.taskCodec = taskCodec;
 		
 	}
 	
+	@Inject(optional = true)
+	public void setDeferMetrics(DeferMetrics deferMetrics) {
+		this.deferMetrics = deferMetrics;
+	}
+	
+	/**
+	 * By default, a deferral waits for as long as it takes an add to its
+	 * queue to finish when the limit is reached - so enabling the limiter
+	 * never fails a deferral that would otherwise have been queued.
+	 * {@link AcquireMode#TIMED} and {@link AcquireMode#FAIL_FAST} shed load
+	 * instead, and callers must then handle {@link QueueBackPressureException}.
+	 */
+	@Inject(optional = true)
+	public void setAcquireMode(@Named(ACQUIRE_MODE) AcquireMode acquireMode) {
+		this.acquireMode = acquireMode;
+	}
+	
+	@Inject(optional = true)
+	public void setAcquireTimeoutMillis(@Named(ACQUIRE_TIMEOUT_MILLIS) long acquireTimeoutMillis) {
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+	}
+	
+	/**
+	 * @return The number of adds this instance currently lets be in flight to
+	 * the given queue at once.
+	 */
+	public int addsAllowedInFlight(String queueName) {
+		return limiterFor(limiters, queueName).permits();
+	}
+	
+	/**
+	 * @return The number of batch adds this instance currently lets be in
+	 * flight to the given queue at once.
+	 */
+	public int batchAddsAllowedInFlight(String queueName) {
+		return limiterFor(batchLimiters, queueName).permits();
+	}
+	
+	/**
+	 * @return The number of tasks queued using the given payload tier since
+	 * this deferrer was created.
+	 */
+	public long tasksQueued(PayloadTier tier) {
+		return tasksQueuedByTier.get(tier.ordinal());
+	}
+	
+	/**
+	 * @return The number of tasks deferred with a task name that had the
+	 * given outcome since this deferrer was created. The proportion of
+	 * duplicates dropped locally is the filter's hit rate.
+	 */
+	public long namedTasks(NamedTaskOutcome outcome) {
+		return namedTasksByOutcome.get(outcome.ordinal());
+	}
+	
 	
     /**
      * Queues a task for background execution using the configured or default
@@ -49,57 +215,88 @@ public class TaskQueueDeferrer implements Deferrer<TaskHandle> {
      * @return A {@link TaskHandle} for the queued task.
      */
     public TaskHandle defer( Deferrable task ) {
-        return defer( task, defaultQueueName );
+        return defer( task, DEFAULT_QUEUE_NAME );
     }
     
     /**
-     * Queue a task for background execution using the specified queue name and
-     * the specified task options (including the specified task URL).
-     * 
-     * <p>If the task URL is not specified in the task options, the
-     * default task URL is used, even if a task URL is configured via the
-     * <code>taskUrl</code> init parameter. The default task URL takes the form:
+     * Queues a task for background execution using the specified queue name and
+     * the default task URL, which takes the form:
      * <blockquote>
      * <code>/_ah/queue/<i>&lt;queue name></i></code>
      * </blockquote>
      * 
-     * <p>The following task options may be specified:
+     * @param task The task to be executed.
+     * @param queueName The name of the queue.
+     * @throws QueueFailureException If an error occurs serializing the task.
+     * @return A {@link TaskHandle} for the queued task.
+     */
+    public TaskHandle defer( Deferrable task, String queueName ) {
+        return defer( task, DeferOptions.Builder.queueName( queueName ) );
+    }
+
+    /**
+     * Queue a task for background execution using the specified defer options,
+     * which map onto the task options of the queued task:
      * <ul>
      * <li><code>countdownMillis</code></li>
      * <li><code>etaMillis</code></li>
-     * <li><code>taskName</code></li>
-     * <li><code>url</code></li>
+     * <li><code>taskName</code> - the task queue rejects a name that has been
+     * used recently, even by a task that has since run, and this is rethrown
+     * as a {@link DuplicateTaskException}</li>
      * </ul>
      * 
-     * <p>The following task options are ignored:
-     * <ul>
-     * <li><code>header</code></li>
-     * <li><code>headers</code></li>
-     * <li><code>method</code></li>
-     * <li><code>payload</code></li>
-     * </ul>
+     * <p>A task name serves as an idempotency key: names this instance has
+     * queued in the last {@link #RECENT_TASK_NAMES_WINDOW_MILLIS} ms are
+     * remembered, and a task deferred again under one of them is rejected
+     * straight away, without calling the task queue.
      * 
-     * <p>The following task options will throw an {@link IllegalArgumentException}
-     * if specified:
-     * <ul>
-     * <li><code>param</code></li>
-     * </ul>
+     * <p>If no queue name is specified, "deferred" is used.
+     * 
+     * <p>The adds in flight to each queue are limited by an
+     * {@link AdaptiveLimiter}, which backs off as the task queue slows or
+     * fails, and the deferral waits for it as the {@link AcquireMode} says.
+     * An add that fails transiently is tried again, up to
+     * {@link #MAX_ADD_ATTEMPTS} times in all.
      * 
      * @param task The task to be executed.
-     * @param taskOptions The task options.
+     * @param options The defer options.
      * @throws QueueFailureException If an error occurs serializing the task.
-     * @throws IllegalArgumentException If any <code>param</code> task options
-     * are specified.
+     * @throws QueueBackPressureException If too many adds to the queue are in flight, and the {@link AcquireMode} doesn't wait for them.
+     * @throws DuplicateTaskException If the task name has been used recently.
      * @return A {@link TaskHandle} for the queued task.
      */
-    public TaskHandle defer( Deferrable task, String queueName ) {
-        // See issue #2461 (http://code.google.com/p/googleappengine/issues/detail?id=2461).
-        // If this issue is ever resolved, the params should be removed from the TaskOptions.
-    	TaskOptions taskOptions = TaskOptions.Builder.withDefaults();
-        byte[] taskBytes = objectSerialisation.serialize( task );
+    public TaskHandle defer( Deferrable task, DeferOptions options ) {
+        String queueName = options.getQueueName() == null ? DEFAULT_QUEUE_NAME : options.getQueueName();
+        String taskName = options.getTaskName();
+        if ( taskName == null ) {
+            return defer( task, queueName, taskOptionsFor( options ) );
+        }
+        if ( recentTaskNames.contains( taskName, System.currentTimeMillis() ) ) {
+            countNamed( NamedTaskOutcome.DROPPED_LOCALLY );
+            throw new DuplicateTaskException( taskName );
+        }
+        try {
+            TaskHandle taskHandle = defer( task, queueName, taskOptionsFor( options ) );
+            recentTaskNames.add( taskName, System.currentTimeMillis() );
+            countNamed( NamedTaskOutcome.QUEUED );
+            return taskHandle;
+        } catch ( TaskAlreadyExistsException e ) {
+            recentTaskNames.add( taskName, System.currentTimeMillis() );
+            countNamed( NamedTaskOutcome.REJECTED_BY_QUEUE );
+            throw new DuplicateTaskException( taskName, e );
+        }
+    }
+
+    private TaskHandle defer( Deferrable task, String queueName, TaskOptions taskOptions ) {
+        long start = System.nanoTime();
+        byte[] serializedBytes = taskCodec.serialize( task );
+        byte[] taskBytes = withinSizeLimit( serializedBytes );
         if ( taskBytes.length <= maxTaskSizeBytes() ) {
             try {
-                return queueTask( taskBytes, queueName, taskOptions );
+                TaskHandle taskHandle = queueTask( taskBytes, queueName, taskOptions );
+                countQueued( taskBytes == serializedBytes ? PayloadTier.INLINE : PayloadTier.COMPRESSED );
+                deferMetrics.taskDeferred( queueName, Deferrables.taskClassOf( task ), taskBytes.length, false, System.nanoTime() - start );
+                return taskHandle;
             } catch ( IllegalArgumentException e ) {
                 log.warning( e.getMessage() + ": " + taskBytes.length );
                 // task size too large, fall through
@@ -108,13 +305,146 @@ public class TaskQueueDeferrer implements Deferrer<TaskHandle> {
         log.info("Deferring task to '"+queueName+"' queue - "+taskBytes.length);
         Key key = taskStore.store(taskBytes);
         try {
-			return queueTask( objectSerialisation.serialize( key ), queueName, taskOptions );
+			TaskHandle taskHandle = queueTask( taskCodec.serialize( key ), queueName, taskOptions );
+			countQueued( PayloadTier.SPILLED );
+			deferMetrics.taskDeferred( queueName, Deferrables.taskClassOf( task ), taskBytes.length, true, System.nanoTime() - start );
+			return taskHandle;
         } catch ( RuntimeException e ) {
             taskStore.deleteEntity( key ); // delete entity if error queuing task
             throw e;
         }
     }
 
+    /**
+     * Maps defer options onto task queue options.
+     */
+    static TaskOptions taskOptionsFor( DeferOptions options ) {
+        TaskOptions taskOptions = TaskOptions.Builder.withDefaults();
+        if ( options.getCountdownMillis() != null ) {
+            taskOptions.countdownMillis( options.getCountdownMillis() );
+        }
+        if ( options.getEtaMillis() != null ) {
+            taskOptions.etaMillis( options.getEtaMillis() );
+        }
+        if ( options.getTaskName() != null ) {
+            taskOptions.taskName( options.getTaskName() );
+        }
+        return taskOptions;
+    }
+
+
+    /**
+     * Queue a batch of tasks for background execution using the specified
+     * queue name.
+     * 
+     * <p>All payloads that are oversize even when compressed are written to
+     * the datastore with a single
+     * batch put, and tasks are added to the queue in batches of up to
+     * {@link #MAX_TASKS_PER_ADD}, limited by an {@link AdaptiveLimiter} of
+     * their own, apart from single adds. If a batch add fails, the datastore
+     * entities for that batch and for all batches after it are deleted
+     * before the exception is rethrown - tasks in earlier batches remain
+     * queued.
+     * 
+     * <p>Each task is reported to the {@link DeferMetrics} as taking an equal
+     * share of the time taken to defer the tasks up to the end of its batch.
+     * 
+     * @param tasks The tasks to be executed.
+     * @param queueName The queue name.
+     * @throws QueueFailureException If an error occurs serializing the tasks.
+     * @return {@link TaskHandle}s for the queued tasks, in the same order as <code>tasks</code>.
+     */
+    public List<TaskHandle> deferAll( Collection<? extends Deferrable> tasks, String queueName ) {
+        long start = System.nanoTime();
+        List<byte[]> payloads = new ArrayList<byte[]>( tasks.size() );
+        PayloadTier[] tiers = new PayloadTier[ tasks.size() ];
+        int[] payloadSizes = new int[ tasks.size() ];
+        List<Class<? extends Deferrable>> taskClasses = new ArrayList<Class<? extends Deferrable>>( tasks.size() );
+        List<Integer> spilledIndices = new ArrayList<Integer>();
+        List<byte[]> spilledBytes = new ArrayList<byte[]>();
+        for ( Deferrable task : tasks ) {
+            byte[] serializedBytes = taskCodec.serialize( task );
+            byte[] taskBytes = withinSizeLimit( serializedBytes );
+            tiers[ payloads.size() ] = taskBytes == serializedBytes ? PayloadTier.INLINE : PayloadTier.COMPRESSED;
+            payloadSizes[ payloads.size() ] = taskBytes.length;
+            taskClasses.add( Deferrables.taskClassOf( task ) );
+            if ( taskBytes.length > maxTaskSizeBytes() ) {
+                tiers[ payloads.size() ] = PayloadTier.SPILLED;
+                spilledIndices.add( payloads.size() );
+                spilledBytes.add( taskBytes );
+            }
+            payloads.add( taskBytes );
+        }
+        
+        Key[] keys = new Key[ payloads.size() ];
+        if ( !spilledBytes.isEmpty() ) {
+            log.info("Deferring "+spilledBytes.size()+" of "+payloads.size()+" tasks to '"+queueName+"' queue via datastore");
+            List<Key> storedKeys = taskStore.storeAll( spilledBytes );
+            for ( int i = 0; i < storedKeys.size(); i++ ) {
+                int index = spilledIndices.get( i );
+                keys[ index ] = storedKeys.get( i );
+                payloads.set( index, taskCodec.serialize( keys[ index ] ) );
+            }
+        }
+        
+        List<TaskHandle> handles = new ArrayList<TaskHandle>( payloads.size() );
+        for ( int from = 0; from < payloads.size(); from += MAX_TASKS_PER_ADD ) {
+            int to = Math.min( from + MAX_TASKS_PER_ADD, payloads.size() );
+            final List<TaskOptions> batch = new ArrayList<TaskOptions>( to - from );
+            for ( int i = from; i < to; i++ ) {
+                batch.add( withPayload( payloads.get( i ), TaskOptions.Builder.withDefaults() ) );
+            }
+            try {
+                handles.addAll( add( queueName, limiterFor( batchLimiters, queueName ), new QueueAdd<List<TaskHandle>>() {
+                    List<TaskHandle> addTo( Queue queue ) {
+                        return queue.add( batch );
+                    }
+                } ) );
+                long elapsedNanosPerTask = ( System.nanoTime() - start ) / to;
+                for ( int i = from; i < to; i++ ) {
+                    countQueued( tiers[ i ] );
+                    deferMetrics.taskDeferred( queueName, taskClasses.get( i ), payloadSizes[ i ], tiers[ i ] == PayloadTier.SPILLED, elapsedNanosPerTask );
+                }
+            } catch ( RuntimeException e ) {
+                // none of the remaining tasks will be queued, so their entities are garbage
+                taskStore.deleteEntities( storedKeysFrom( keys, from ) );
+                throw e;
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Compresses payloads that are too large to queue inline.
+     * 
+     * @return The compressed payload if the original was too large and
+     * compression made it smaller, or else the original payload.
+     */
+    private byte[] withinSizeLimit( byte[] taskBytes ) {
+        if ( taskBytes.length <= maxTaskSizeBytes() ) {
+            return taskBytes;
+        }
+        byte[] compressedBytes = taskCodec.compress( taskBytes );
+        return compressedBytes == null ? taskBytes : compressedBytes;
+    }
+    
+    private void countQueued( PayloadTier tier ) {
+        tasksQueuedByTier.incrementAndGet( tier.ordinal() );
+    }
+    
+    private void countNamed( NamedTaskOutcome outcome ) {
+        namedTasksByOutcome.incrementAndGet( outcome.ordinal() );
+    }
+
+    private static List<Key> storedKeysFrom( Key[] keys, int from ) {
+        List<Key> storedKeys = new ArrayList<Key>();
+        for ( int i = from; i < keys.length; i++ ) {
+            if ( keys[ i ] != null ) {
+                storedKeys.add( keys[ i ] );
+            }
+        }
+        return storedKeys;
+    }
 
     /**
      * Add a task to the queue.
@@ -124,9 +454,110 @@ public class TaskQueueDeferrer implements Deferrer<TaskHandle> {
      * @param taskOptions The task options.
      * @return
      */
-    private static TaskHandle queueTask( byte[] taskBytes, String queueName, TaskOptions taskOptions ) {
-        TaskOptions taskPayload = taskOptions.method(POST).payload(taskBytes, TASK_CONTENT_TYPE );
-		return getQueue( queueName ).add( taskPayload );
+    private TaskHandle queueTask( byte[] taskBytes, String queueName, final TaskOptions taskOptions ) {
+        withPayload( taskBytes, taskOptions );
+        return add( queueName, limiterFor( limiters, queueName ), new QueueAdd<TaskHandle>() {
+            TaskHandle addTo( Queue queue ) {
+                return queue.add( taskOptions );
+            }
+        } );
+    }
+    
+    /**
+     * Adds to a queue once the given {@link AdaptiveLimiter} allows, trying again
+     * after a short, jittered wait if the add fails transiently.
+     * 
+     * <p>A task that was in fact queued by an add that failed may be queued
+     * twice - or, if it is named, rejected as a duplicate by the retry.
+     * 
+     * @throws QueueBackPressureException If the limiter didn't allow the add.
+     */
+    private <T> T add( String queueName, AdaptiveLimiter limiter, QueueAdd<T> add ) {
+        for ( int attempt = 1; ; attempt++ ) {
+            acquire( limiter, queueName );
+            long start = System.nanoTime();
+            RuntimeException transientFailure = null;
+            try {
+                return add.addTo( queueFor( queueName ) );
+            } catch ( RuntimeException e ) {
+                if ( !isTransient( e ) ) {
+                    throw e; // says nothing about how the queue is coping
+                }
+                transientFailure = e;
+            } finally {
+                limiter.release( start, System.nanoTime(), transientFailure != null );
+            }
+            if ( attempt >= MAX_ADD_ATTEMPTS || !waitToRetry( attempt ) ) {
+                throw transientFailure;
+            }
+            log.info( "Retrying add to '" + queueName + "' queue after " + transientFailure );
+        }
+    }
+    
+    private void acquire( AdaptiveLimiter limiter, String queueName ) {
+        try {
+            switch ( acquireMode ) {
+            case BLOCK:
+                limiter.acquire();
+                return;
+            case TIMED:
+                if ( limiter.tryAcquire( acquireTimeoutMillis, TimeUnit.MILLISECONDS ) ) {
+                    return;
+                }
+                break;
+            case FAIL_FAST:
+                if ( limiter.tryAcquire() ) {
+                    return;
+                }
+                break;
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        throw new QueueBackPressureException( queueName );
+    }
+    
+    /**
+     * @return false if interrupted while waiting.
+     */
+    private boolean waitToRetry( int attempt ) {
+        long maxDelayMillis = RETRY_DELAY_MILLIS << ( attempt - 1 );
+        try {
+            Thread.sleep( 1 + (long) ( retryJitter.nextDouble() * maxDelayMillis ) );
+            return true;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    private static boolean isTransient( RuntimeException e ) {
+        return e instanceof TransientFailureException
+                || ( e instanceof QueueFailureException && !( e instanceof QueueBackPressureException ) );
+    }
+    
+    private static AdaptiveLimiter limiterFor( ConcurrentMap<String, AdaptiveLimiter> limiters, String queueName ) {
+        AdaptiveLimiter limiter = limiters.get( queueName );
+        if ( limiter == null ) {
+            AdaptiveLimiter newLimiter = new AdaptiveLimiter( MAX_ADDS_IN_FLIGHT );
+            limiter = limiters.putIfAbsent( queueName, newLimiter );
+            if ( limiter == null ) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+    
+    Queue queueFor( String queueName ) {
+        return getQueue( queueName );
+    }
+    
+    private static abstract class QueueAdd<T> {
+        abstract T addTo( Queue queue );
+    }
+    
+    private static TaskOptions withPayload( byte[] taskBytes, TaskOptions taskOptions ) {
+        return taskOptions.method(POST).payload(taskBytes, TASK_CONTENT_TYPE );
     }
     
 }
@@ -4,6 +4,20 @@ import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Blob;
@@ -11,57 +25,410 @@ import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.madgag.defer.Deferrable;
+import com.madgag.defer.metrics.DeferMetrics;
+import com.madgag.defer.metrics.NoOpDeferMetrics;
+import com.madgag.defer.metrics.DeferMetrics.StoreOperation;
 
+/**
+ * Stores the payloads of tasks too large to queue inline as datastore
+ * entities.
+ * 
+ * <p>Entities of tasks that have run are deleted in batches: their keys are
+ * collected in a per-instance buffer, which is flushed with a single batch
+ * delete once it holds {@link #DELETE_BATCH_SIZE} keys, or when a key is
+ * added more than {@link #DELETE_FLUSH_INTERVAL_MILLIS} ms after the last
+ * flush - App Engine allows no background threads to flush it on a timer.
+ * Keys that fail to delete stay in the buffer for the next flush. Entities
+ * whose keys are lost - with the instance, or because an entity was stored
+ * but neither queued nor rolled back - are left for
+ * {@link #sweepOrphans(long, int)}.
+ * 
+ * <p>A payload larger than {@link #CHUNK_BYTES} - a quarter of what fits
+ * in one call - is split into chunks: the first is stored in the task's own
+ * entity, and the rest in child entities under it. The key of a chunked
+ * task is named for its number of chunks, so the keys of all its entities
+ * follow from it without a query. Smaller payloads are stored in a single
+ * entity, with a datastore-allocated key, as before.
+ * 
+ * <p>Entities are written with batch puts and read with batch gets, each
+ * carrying as many entities as fit in {@link #MAX_BYTES_PER_CALL}. Chunks
+ * are fetched as the codec reads its way through the payload, so only
+ * one call's worth of a large payload is held in memory at once.
+ * 
+ * <p>With a {@link PayloadCache}, payloads are also kept in memory as they
+ * are stored, and a task run on the same instance is read from there,
+ * without a datastore get. The entities are still written before the task
+ * is queued, as the task may run on any instance.
+ */
+@Singleton
 class TaskStore {
 
 	private static final Logger log = Logger.getLogger( TaskStore.class.getName() );
 	
 	static final String ENTITY_KIND = Deferrable.class.getName();
     static final String TASK_PROPERTY = "taskBytes";
+    static final String STORED_AT_PROPERTY = "storedAt";
+    static final String CHUNK_KIND = ENTITY_KIND + "Chunk";
+    private static final String CHUNKED_KEY_PREFIX = "chunked:";
     
-    private final ObjectSerialisation objectSerialisation;
+    /**
+     * The most payload bytes carried by one datastore call, leaving room
+     * below the 1MB limit on API calls for keys and other properties.
+     */
+    static final int MAX_BYTES_PER_CALL = 1000 * 1024;
+    
+    /**
+     * The most payload bytes stored in one entity - a fraction of a call, so
+     * that each batch get or put of a chunked payload moves several chunks.
+     */
+    static final int CHUNKS_PER_CALL = 4;
+    static final int CHUNK_BYTES = MAX_BYTES_PER_CALL / CHUNKS_PER_CALL;
+    
+    static final int DELETE_BATCH_SIZE = 100;
+    static final long DELETE_FLUSH_INTERVAL_MILLIS = 10 * 1000;
+    /**
+     * The most keys held for deletion - beyond this, keys are dropped and
+     * their entities left for the sweeper.
+     */
+    static final int MAX_PENDING_DELETES = 10000;
+    
+    private final TaskCodec taskCodec;
     private final DatastoreService datastoreService;
+    private DeferMetrics deferMetrics = NoOpDeferMetrics.INSTANCE;
+    private PayloadCache payloadCache;
+    /** Guarded by itself, as is <code>lastFlushedAt</code>. */
+    private final Set<Key> pendingDeletes = new LinkedHashSet<Key>();
+    private long lastFlushedAt = System.currentTimeMillis();
     
     @Inject
-    public TaskStore(DatastoreService datastoreService, ObjectSerialisation objectSerialisation) {
+    public TaskStore(DatastoreService datastoreService, TaskCodec taskCodec) {
 		this.datastoreService = datastoreService;
-		this.objectSerialisation = objectSerialisation;
+		this.taskCodec = taskCodec;
+    }
+    
+    @Inject(optional = true)
+    public void setDeferMetrics(DeferMetrics deferMetrics) {
+        this.deferMetrics = deferMetrics;
+    }
+    
+    /**
+     * Without a cache, every task is read from the datastore.
+     */
+    @Inject(optional = true)
+    public void setPayloadCache(PayloadCache payloadCache) {
+        this.payloadCache = payloadCache;
     }
 
 	Key store(byte[] taskBytes) {
+		if ( taskBytes.length > CHUNK_BYTES ) {
+			return storeAll( Collections.singletonList( taskBytes ) ).get( 0 );
+		}
 		// create a datastore entity and add its key as the task payload
-        Entity entity = new Entity( ENTITY_KIND );
-        entity.setProperty( TASK_PROPERTY, new Blob( taskBytes ) );
+        Entity entity = newEntity( null, taskBytes, 0, taskBytes.length );
+        long start = System.nanoTime();
         Key key = datastoreService.put( entity );
+        deferMetrics.taskStoreOperation( StoreOperation.STORE, 1, System.nanoTime() - start );
         log.log(FINE, "put datastore key: " + key );
+        if ( payloadCache != null ) {
+            payloadCache.put( key, taskBytes );
+        }
 		return key;
 	}
 	
+	/**
+	 * Store several task payloads with a single batch put.
+	 * 
+	 * @return The keys of the stored entities, in the same order as <code>taskBytesList</code>.
+	 */
+	List<Key> storeAll(List<byte[]> taskBytesList) {
+		if (taskBytesList.isEmpty()) {
+			return new ArrayList<Key>();
+		}
+		List<Entity> entities = new ArrayList<Entity>(taskBytesList.size());
+		int[] taskEntityIndices = new int[taskBytesList.size()];
+		for (int i = 0; i < taskBytesList.size(); i++) {
+			taskEntityIndices[i] = entities.size();
+			entities.addAll( entitiesFor( taskBytesList.get(i) ) );
+		}
+		List<Key> entityKeys = put( entities );
+		List<Key> keys = new ArrayList<Key>(taskBytesList.size());
+		for (int i = 0; i < taskEntityIndices.length; i++) {
+			keys.add( entityKeys.get( taskEntityIndices[i] ) );
+			if ( payloadCache != null ) {
+				payloadCache.put( keys.get(i), taskBytesList.get(i) );
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Puts entities with as few batch puts as the limit on the size of a
+	 * call allows.
+	 */
+	private List<Key> put( List<Entity> entities ) {
+		List<Key> keys = new ArrayList<Key>( entities.size() );
+		int from = 0;
+		while ( from < entities.size() ) {
+			int to = from + 1;
+			long bytes = payloadBytesOf( entities.get( from ) );
+			while ( to < entities.size() && bytes + payloadBytesOf( entities.get( to ) ) <= MAX_BYTES_PER_CALL ) {
+				bytes += payloadBytesOf( entities.get( to++ ) );
+			}
+			long start = System.nanoTime();
+			keys.addAll( datastoreService.put( entities.subList( from, to ) ) );
+			deferMetrics.taskStoreOperation( StoreOperation.STORE, to - from, System.nanoTime() - start );
+			from = to;
+		}
+		log.log(FINE, "put " + keys.size() + " datastore keys" );
+		return keys;
+	}
+	
+	private static int payloadBytesOf( Entity entity ) {
+		return ( (Blob) entity.getProperty( TASK_PROPERTY ) ).getBytes().length;
+	}
+	
+	/**
+	 * @return The task's own entity, followed by the entities of any further chunks.
+	 */
+	private static List<Entity> entitiesFor( byte[] taskBytes ) {
+		if ( taskBytes.length <= CHUNK_BYTES ) {
+			return Collections.singletonList( newEntity( null, taskBytes, 0, taskBytes.length ) );
+		}
+		int chunks = ( taskBytes.length + CHUNK_BYTES - 1 ) / CHUNK_BYTES;
+		Key key = KeyFactory.createKey( ENTITY_KIND, CHUNKED_KEY_PREFIX + chunks + ":" + UUID.randomUUID() );
+		List<Key> chunkKeys = entityKeysOf( key );
+		List<Entity> entities = new ArrayList<Entity>( chunks );
+		for ( int chunk = 0; chunk < chunks; chunk++ ) {
+			int from = chunk * CHUNK_BYTES;
+			entities.add( newEntity( chunkKeys.get( chunk ), taskBytes, from, Math.min( from + CHUNK_BYTES, taskBytes.length ) ) );
+		}
+		return entities;
+	}
+	
+    /**
+     * @param key The entity's key, or null for the task entity of an
+     * unchunked payload, which is allocated a key by the datastore.
+     */
+    private static Entity newEntity( Key key, byte[] taskBytes, int from, int to ) {
+        byte[] bytes = from == 0 && to == taskBytes.length ? taskBytes : copyOfRange( taskBytes, from, to );
+        Entity entity = key == null ? new Entity( ENTITY_KIND ) : new Entity( key );
+        entity.setProperty( TASK_PROPERTY, new Blob( bytes ) );
+        if ( key == null || key.getParent() == null ) {
+            entity.setProperty( STORED_AT_PROPERTY, new Date() );
+        }
+        return entity;
+    }
+    
+    private static byte[] copyOfRange( byte[] bytes, int from, int to ) {
+        byte[] copy = new byte[ to - from ];
+        System.arraycopy( bytes, from, copy, 0, copy.length );
+        return copy;
+    }
+    
+    /**
+     * @return The keys of all the entities holding a task's payload: the
+     * task's own key, followed by the keys of any further chunks.
+     */
+    static List<Key> entityKeysOf( Key key ) {
+        int chunks = chunksOf( key );
+        if ( chunks == 1 ) {
+            return Collections.singletonList( key );
+        }
+        List<Key> keys = new ArrayList<Key>( chunks );
+        keys.add( key );
+        for ( int chunk = 1; chunk < chunks; chunk++ ) {
+            keys.add( KeyFactory.createKey( key, CHUNK_KIND, chunk ) );
+        }
+        return keys;
+    }
+    
+    private static int chunksOf( Key key ) {
+        String name = key.getName();
+        if ( name == null || !name.startsWith( CHUNKED_KEY_PREFIX ) ) {
+            return 1;
+        }
+        return Integer.parseInt( name.substring( CHUNKED_KEY_PREFIX.length(), name.indexOf( ':', CHUNKED_KEY_PREFIX.length() ) ) );
+    }
+    
+    private static List<Key> entityKeysOf( Collection<Key> keys ) {
+        List<Key> entityKeys = new ArrayList<Key>( keys.size() );
+        for ( Key key : keys ) {
+            entityKeys.addAll( entityKeysOf( key ) );
+        }
+        return entityKeys;
+    }
+	
+    /**
+     * Queues a datastore entity for deletion in the next batch delete,
+     * flushing the batch if it is full or due.
+     * 
+     * @param key The key of the entity to delete.
+     */
+    void scheduleDeletion( Key key ) {
+        if ( payloadCache != null ) {
+            payloadCache.invalidate( key );
+        }
+        boolean flushDue;
+        synchronized ( pendingDeletes ) {
+            if ( pendingDeletes.size() < MAX_PENDING_DELETES ) {
+                pendingDeletes.add( key );
+            } else {
+                log.warning( "too many datastore keys pending deletion, leaving for sweeper: " + key );
+            }
+            flushDue = pendingDeletes.size() >= DELETE_BATCH_SIZE
+                    || System.currentTimeMillis() - lastFlushedAt >= DELETE_FLUSH_INTERVAL_MILLIS;
+        }
+        if ( flushDue ) {
+            flushDeletes();
+        }
+    }
+    
+    /**
+     * Deletes the entities queued for deletion, in batches of up to
+     * {@link #DELETE_BATCH_SIZE}. Keys of batches that fail to delete are
+     * kept for the next flush.
+     */
+    void flushDeletes() {
+        List<Key> flushing;
+        synchronized ( pendingDeletes ) {
+            flushing = new ArrayList<Key>( pendingDeletes );
+            pendingDeletes.clear();
+            lastFlushedAt = System.currentTimeMillis();
+        }
+        for ( int from = 0; from < flushing.size(); from += DELETE_BATCH_SIZE ) {
+            List<Key> batch = flushing.subList( from, Math.min( from + DELETE_BATCH_SIZE, flushing.size() ) );
+            long start = System.nanoTime();
+            try {
+                List<Key> entityKeys = entityKeysOf( batch );
+                datastoreService.delete( entityKeys );
+                deferMetrics.taskStoreOperation( StoreOperation.DELETE, entityKeys.size(), System.nanoTime() - start );
+                log.log(FINE, "deleted " + entityKeys.size() + " datastore keys" );
+            } catch ( RuntimeException e ) { // timeouts as well as failures
+                log.log(WARNING, "failed to delete " + batch.size() + " datastore keys, will retry", e );
+                synchronized ( pendingDeletes ) {
+                    for ( Key key : batch ) {
+                        if ( pendingDeletes.size() < MAX_PENDING_DELETES ) {
+                            pendingDeletes.add( key );
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return The number of keys waiting to be deleted.
+     */
+    int pendingDeletes() {
+        synchronized ( pendingDeletes ) {
+            return pendingDeletes.size();
+        }
+    }
+    
+    /**
+     * Deletes task entities stored more than <code>maxAgeMillis</code> ago,
+     * which should be longer than any task can wait to run, retries
+     * included - otherwise the payloads of tasks still queued are deleted,
+     * and those tasks dropped. Entities stored before the
+     * {@value #STORED_AT_PROPERTY} property was introduced are never swept.
+     * 
+     * @param maxAgeMillis The age beyond which an entity is an orphan.
+     * @param limit The most entities to delete.
+     * @return The number of entities deleted.
+     */
+    int sweepOrphans( long maxAgeMillis, int limit ) {
+        Query query = new Query( ENTITY_KIND )
+                .addFilter( STORED_AT_PROPERTY, Query.FilterOperator.LESS_THAN, new Date( System.currentTimeMillis() - maxAgeMillis ) )
+                .setKeysOnly();
+        List<Key> orphans = new ArrayList<Key>();
+        for ( Entity entity : datastoreService.prepare( query ).asIterable( FetchOptions.Builder.withLimit( limit ) ) ) {
+            orphans.add( entity.getKey() );
+        }
+        if ( !orphans.isEmpty() ) {
+            log.info( "sweeping " + orphans.size() + " orphaned task entities" );
+            deleteEntities( orphans );
+        }
+        return orphans.size();
+    }
+	
     /**
      * Delete a datastore entity.
      * 
      * @param key The key of the entity to delete.
      */
     public void deleteEntity( Key key ) {
+        if ( payloadCache != null ) {
+            payloadCache.invalidate( key );
+        }
+        if ( chunksOf( key ) > 1 ) {
+            deleteEntities( Collections.singletonList( key ) );
+            return;
+        }
+        long start = System.nanoTime();
         try {
         	datastoreService.delete( key );
+        	deferMetrics.taskStoreOperation( StoreOperation.DELETE, 1, System.nanoTime() - start );
             log.log(FINE, "deleted datastore key: " + key );
         } catch ( DatastoreFailureException e ) {
             log.log(WARNING, "failed to delete datastore key: " + key, e );
         }
     }
     
+    /**
+     * Delete several datastore entities with a single batch delete.
+     * 
+     * @param taskKeys The keys of the entities to delete.
+     */
+    public void deleteEntities( Collection<Key> taskKeys ) {
+        if ( taskKeys.isEmpty() ) {
+            return;
+        }
+        if ( payloadCache != null ) {
+            payloadCache.invalidateAll( taskKeys );
+        }
+        List<Key> keys = entityKeysOf( taskKeys );
+        long start = System.nanoTime();
+        try {
+        	datastoreService.delete( keys );
+        	deferMetrics.taskStoreOperation( StoreOperation.DELETE, keys.size(), System.nanoTime() - start );
+            log.log(FINE, "deleted " + keys.size() + " datastore keys" );
+        } catch ( DatastoreFailureException e ) {
+            log.log(WARNING, "failed to delete datastore keys: " + keys, e );
+        }
+    }
+    
 
 	Deferrable getTask(Key taskKey) {
+		if ( payloadCache != null ) {
+			long start = System.nanoTime();
+			byte[] cachedBytes = payloadCache.get( taskKey );
+			if ( cachedBytes != null ) {
+				deferMetrics.taskStoreOperation( StoreOperation.CACHED_FETCH, 1, System.nanoTime() - start );
+				Deferrable deferrable = (Deferrable) taskCodec.deserialize( cachedBytes );
+				if ( deferrable == null ) {
+					deleteEntity( taskKey );
+				}
+				return deferrable;
+			}
+		}
+		if ( chunksOf( taskKey ) > 1 ) {
+			return getChunkedTask( taskKey );
+		}
+		long start = System.nanoTime();
 		try {
 			Entity entity = datastoreService.get(taskKey);
+			deferMetrics.taskStoreOperation( StoreOperation.FETCH, 1, System.nanoTime() - start );
 			Blob taskBlob = (Blob) entity.getProperty( TASK_PROPERTY );
 			Deferrable deferrable=null;
 			if ( taskBlob != null ) {
-				deferrable = (Deferrable) objectSerialisation.deserialize( taskBlob.getBytes() );
+				deferrable = (Deferrable) taskCodec.deserialize( taskBlob.getBytes() );
 			}
 		    if (deferrable==null) {
 		    	deleteEntity(taskKey);
@@ -73,6 +440,65 @@ class TaskStore {
 		return null;
 		
 	}
+	
+	/**
+	 * Decodes a chunked task as its chunks are fetched, without joining
+	 * them into one array. A task with a missing chunk can't be decoded, so
+	 * its remaining chunks are deleted.
+	 */
+	private Deferrable getChunkedTask( Key taskKey ) {
+		Deferrable deferrable = (Deferrable) taskCodec.deserialize( new SequenceInputStream( new ChunkStreams( entityKeysOf( taskKey ) ) ) );
+		if ( deferrable == null ) {
+			deleteEntity( taskKey );
+		}
+		return deferrable;
+	}
+	
+	/**
+	 * Streams of the chunks of a payload, fetched with a batch get when the
+	 * first of each call's worth is needed.
+	 */
+	private class ChunkStreams implements Enumeration<InputStream> {
+		private final List<Key> chunkKeys;
+		private Map<Key, Entity> fetched = Collections.emptyMap();
+		private int next = 0;
+		
+		ChunkStreams( List<Key> chunkKeys ) {
+			this.chunkKeys = chunkKeys;
+		}
+		
+		public boolean hasMoreElements() {
+			return next < chunkKeys.size();
+		}
+		
+		public InputStream nextElement() {
+			Key chunkKey = chunkKeys.get( next++ );
+			if ( !fetched.containsKey( chunkKey ) ) {
+				List<Key> batch = chunkKeys.subList( next - 1, Math.min( next - 1 + CHUNKS_PER_CALL, chunkKeys.size() ) );
+				long start = System.nanoTime();
+				fetched = datastoreService.get( batch );
+				deferMetrics.taskStoreOperation( StoreOperation.FETCH, batch.size(), System.nanoTime() - start );
+			}
+			Entity entity = fetched.get( chunkKey );
+			if ( entity == null ) {
+				return new MissingChunkStream( chunkKey );
+			}
+			return new ByteArrayInputStream( ( (Blob) entity.getProperty( TASK_PROPERTY ) ).getBytes() );
+		}
+	}
+	
+	private static class MissingChunkStream extends InputStream {
+		private final Key chunkKey;
+		
+		MissingChunkStream( Key chunkKey ) {
+			this.chunkKey = chunkKey;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			throw new IOException( "Couldn't find " + chunkKey );
+		}
+	}
     
    
     
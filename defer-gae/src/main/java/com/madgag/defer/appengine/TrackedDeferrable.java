@@ -0,0 +1,40 @@
+package com.madgag.defer.appengine;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.DeferrableWrapper;
+
+/**
+ * A task whose completion is tracked by a {@link CompletionTrackingDeferrer}.
+ *
+ * <p>{@link TaskPayloadProcessor} runs the wrapped task, and once it has run
+ * successfully or failed permanently writes a completion marker for it
+ * through {@link TaskCompletions}. A retryable failure writes no marker -
+ * the task is still to be retried.
+ */
+public class TrackedDeferrable implements DeferrableWrapper {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String completionId;
+	private final Deferrable task;
+
+	TrackedDeferrable(String completionId, Deferrable task) {
+		this.completionId = completionId;
+		this.task = task;
+	}
+
+	public String getCompletionId() {
+		return completionId;
+	}
+
+	public Deferrable getTask() {
+		return task;
+	}
+
+	/**
+	 * Runs the wrapped task, without writing a completion marker.
+	 */
+	public void run() {
+		task.run();
+	}
+}
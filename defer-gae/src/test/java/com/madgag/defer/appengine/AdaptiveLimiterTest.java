@@ -0,0 +1,72 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class AdaptiveLimiterTest {
+
+	private static final long MILLI = 1000000;
+
+	private final AdaptiveLimiter limiter = new AdaptiveLimiter(100);
+
+	@Test
+	public void shouldRejectAcquiresBeyondTheLimit() throws Exception {
+		int permits = limiter.permits();
+		for (int i = 0; i < permits; i++) {
+			assertThat(limiter.tryAcquire(), is(true));
+		}
+
+		assertThat(limiter.tryAcquire(), is(false));
+		assertThat(limiter.tryAcquire(10, MILLISECONDS), is(false));
+		limiter.release(0, MILLI, false);
+		assertThat(limiter.tryAcquire(10, MILLISECONDS), is(true));
+	}
+
+	@Test
+	public void shouldRaiseTheLimitWhileAddsAreFastAndItIsInUse() throws Exception {
+		int initialPermits = limiter.permits();
+		long now = 0;
+		for (int i = 0; i < 100; i++) {
+			fill();
+			while (limiter.inFlight() > 0) {
+				limiter.release(now, now + 10 * MILLI, false);
+			}
+			now += 10 * MILLI;
+		}
+
+		assertThat(limiter.permits(), greaterThan(initialPermits));
+	}
+
+	@Test
+	public void shouldHalveTheLimitOnceForABurstOfFailures() throws Exception {
+		int initialPermits = limiter.permits();
+		fill();
+		for (int i = 0; i < initialPermits; i++) {
+			limiter.release(0, (10 + i) * MILLI, true);
+		}
+
+		assertThat(limiter.permits(), equalTo(initialPermits / 2));
+	}
+
+	@Test
+	public void shouldHalveTheLimitWhenAddsSlowDown() throws Exception {
+		int initialPermits = limiter.permits();
+		long now = 0;
+		for (int i = 0; i < 10 && limiter.permits() == initialPermits; i++, now += 100 * MILLI) {
+			limiter.tryAcquire();
+			limiter.release(now, now + (i == 0 ? 10 : 100) * MILLI, false);
+		}
+
+		assertThat(limiter.permits(), equalTo(initialPermits / 2));
+	}
+
+	private void fill() {
+		while (limiter.tryAcquire()) {
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchingDeferrerTest {
+
+	private final TaskCodec taskCodec = new ObjectSerialisation();
+	private final TaskHandle taskHandle = new TaskHandle("task-1", "myQueue", 0);
+	@Mock Deferrer<TaskHandle> underlyingDeferrer;
+
+	private int taskSize;
+
+	@Before
+	public void setUp() {
+		taskSize = taskCodec.serialize(new SmallTask(0)).length;
+		when(underlyingDeferrer.defer(any(Deferrable.class), anyString())).thenReturn(taskHandle);
+	}
+
+	@Test
+	public void shouldPackTasksIntoASingleBatchWhenFlushed() throws Exception {
+		BatchingDeferrer deferrer = new BatchingDeferrer(underlyingDeferrer, taskCodec, 60000, 100 * taskSize);
+		SmallTask first = new SmallTask(1), second = new SmallTask(2);
+
+		Future<TaskHandle> handle = deferrer.defer(first, "myQueue");
+		deferrer.defer(second, "myQueue");
+		verify(underlyingDeferrer, never()).defer(any(Deferrable.class), anyString());
+		deferrer.flush();
+
+		ArgumentCaptor<DeferrableBatch> batch = ArgumentCaptor.forClass(DeferrableBatch.class);
+		verify(underlyingDeferrer).defer(batch.capture(), eq("myQueue"));
+		assertThat(batch.getValue().getMembers(), equalTo(Arrays.<Deferrable> asList(first, second)));
+		assertThat(handle.get(1, SECONDS), equalTo(taskHandle));
+		assertThat(deferrer.pendingTasks(), is(0));
+	}
+
+	@Test
+	public void shouldSendABatchOnceTheNextTaskWouldTakeItPastTheByteBudget() throws Exception {
+		BatchingDeferrer deferrer = new BatchingDeferrer(underlyingDeferrer, taskCodec, 60000, 2 * taskSize);
+
+		Future<TaskHandle> handle = deferrer.defer(new SmallTask(1), "myQueue");
+		deferrer.defer(new SmallTask(2), "myQueue");
+		deferrer.defer(new SmallTask(3), "myQueue");
+
+		ArgumentCaptor<DeferrableBatch> batch = ArgumentCaptor.forClass(DeferrableBatch.class);
+		verify(underlyingDeferrer).defer(batch.capture(), eq("myQueue"));
+		assertThat(batch.getValue().getMembers().size(), is(2));
+		assertThat(handle.isDone(), is(true));
+		assertThat(deferrer.pendingTasks(), is(1));
+	}
+
+	@Test
+	public void shouldDeferTasksWithACountdownStraightAway() throws Exception {
+		BatchingDeferrer deferrer = new BatchingDeferrer(underlyingDeferrer, taskCodec, 60000, 100 * taskSize);
+		SmallTask task = new SmallTask(1);
+		DeferOptions options = DeferOptions.Builder.queueName("myQueue").countdownMillis(5000);
+		when(underlyingDeferrer.defer(task, options)).thenReturn(taskHandle);
+
+		assertThat(deferrer.defer(task, options).get(1, SECONDS), equalTo(taskHandle));
+		assertThat(deferrer.pendingTasks(), is(0));
+	}
+
+	@SuppressWarnings("serial")
+	static class SmallTask implements Deferrable {
+		private final int id;
+
+		SmallTask(int id) {
+			this.id = id;
+		}
+
+		public void run() {
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SmallTask && ((SmallTask) obj).id == id;
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.madgag.defer.appengine;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.madgag.defer.Deferrable;
+
+public class CompactObjectSerialisationTest {
+
+	private final CompactObjectSerialisation compactSerialisation = new CompactObjectSerialisation();
+	private final ObjectSerialisation javaSerialisation = new ObjectSerialisation();
+	
+	@Test
+	public void shouldRoundTripADeferrable() throws Exception {
+		SampleDeferrable task = new SampleDeferrable("reindex", Arrays.asList(1L, 2L, 3L));
+		
+		assertThat(compactSerialisation.deserialize(compactSerialisation.serialize(task)), equalTo((Object) task));
+	}
+	
+	@Test
+	public void shouldWriteSmallerPayloadsThanJavaSerialisation() throws Exception {
+		SampleDeferrable task = new SampleDeferrable("reindex", Arrays.asList(1L, 2L, 3L));
+		
+		assertThat(compactSerialisation.serialize(task).length, lessThan(javaSerialisation.serialize(task).length));
+	}
+	
+	@Test
+	public void shouldDecodeJavaSerialisedPayloadsStillInFlight() throws Exception {
+		SampleDeferrable task = new SampleDeferrable("reindex", Arrays.asList(1L, 2L, 3L));
+		
+		assertThat(compactSerialisation.deserialize(javaSerialisation.serialize(task)), equalTo((Object) task));
+	}
+	
+	@Test
+	public void shouldAllowJavaSerialisationToDecodeCompactPayloads() throws Exception {
+		SampleDeferrable task = new SampleDeferrable("reindex", Arrays.asList(1L, 2L, 3L));
+		
+		assertThat(javaSerialisation.deserialize(compactSerialisation.serialize(task)), equalTo((Object) task));
+	}
+	
+	@Test
+	public void shouldReturnNullForAnUnknownPayloadFormat() throws Exception {
+		byte[] payload = compactSerialisation.serialize(new SampleDeferrable("foo", Arrays.<Long>asList()));
+		payload[0] = 'z'; // not the Base64 encoding of any known format header
+		
+		assertThat(compactSerialisation.deserialize(payload), nullValue());
+	}
+	
+	@Test
+	public void shouldRejectAPayloadWhoseClassFieldsHaveChanged() throws Exception {
+		byte[] payload = payloadWithDescriptorsWrittenBy(new DescriptorWriter() {
+			public void write(ObjectOutputStream out, ObjectStreamClass desc) throws IOException {
+				out.writeUTF(desc.getName());
+				out.writeLong(desc.getSerialVersionUID());
+				out.writeInt(CompactObjectSerialisation.fieldsFingerprintOf(desc) + 1); // as if written by another version of the class
+			}
+		});
+		
+		assertThat(compactSerialisation.deserialize(payload), nullValue());
+	}
+	
+	private interface DescriptorWriter {
+		void write(ObjectOutputStream out, ObjectStreamClass desc) throws IOException;
+	}
+	
+	private static byte[] payloadWithDescriptorsWrittenBy(final DescriptorWriter descriptorWriter) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		bytesOut.write(ObjectSerialisation.COMPACT_FORMAT);
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytesOut) {
+			@Override
+			protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+				descriptorWriter.write(this, desc);
+			}
+		};
+		objectOut.writeObject(new SampleDeferrable("reindex", Arrays.asList(1L, 2L, 3L)));
+		objectOut.close();
+		return bytesOut.toByteArray();
+	}
+	
+	@SuppressWarnings("serial")
+	static class SampleDeferrable implements Deferrable {
+		private final String action;
+		private final List<Long> ids;
+		
+		SampleDeferrable(String action, List<Long> ids) {
+			this.action = action;
+			this.ids = ids;
+		}
+		
+		public void run() {}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SampleDeferrable)) {
+				return false;
+			}
+			SampleDeferrable other = (SampleDeferrable) obj;
+			return action.equals(other.action) && ids.equals(other.ids);
+		}
+		
+		@Override
+		public int hashCode() {
+			return action.hashCode() * 31 + ids.hashCode();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.madgag.defer.appengine;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.Deferrer;
+import com.madgag.defer.pipeline.Pipeline;
+import com.madgag.defer.pipeline.PipelineStep;
+import com.madgag.defer.pipeline.Pipelines;
+
+public class DatastoreJoinStoreTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private static final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+	private DatastoreService datastoreService;
+	private final ObjectSerialisation taskCodec = new ObjectSerialisation();
+	private DatastoreJoinStore joinStore;
+
+	@Before
+	public void setUp() throws Exception {
+		helper.setUp();
+		datastoreService = DatastoreServiceFactory.getDatastoreService();
+		joinStore = new DatastoreJoinStore(datastoreService, taskCodec);
+		ran.clear();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void shouldHandTheStepOnlyToThePredecessorCompletingAWideJoin() throws Exception {
+		int predecessors = 2 * DatastoreJoinStore.MAX_SHARDS + 1;
+		Pipeline pipeline = new Pipeline();
+		Pipeline.Step start = pipeline.step(new RecordingTask("start"));
+		pipeline.join(new RecordingTask("join"), pipeline.fanOut(start, Collections.nCopies(predecessors, new RecordingTask("branch"))));
+		String pipelineId = new Pipelines(mock(Deferrer.class), joinStore).start(pipeline);
+		int joinId = predecessors + 1;
+
+		for (int predecessor = 1; predecessor < predecessors; predecessor++) {
+			assertThat(joinStore.arrive(pipelineId, joinId, predecessor), nullValue());
+			assertThat(joinStore.arrive(pipelineId, joinId, predecessor), nullValue()); // retried
+		}
+		PipelineStep join = joinStore.arrive(pipelineId, joinId, predecessors);
+		assertThat(join.getStepId(), equalTo(joinId));
+		assertThat(joinStore.arrive(pipelineId, joinId, 1), nullValue());
+		assertThat(joinStore.arrive(pipelineId, joinId, predecessors).getStepId(), equalTo(joinId));
+
+		joinStore.release(join);
+		assertThat(joinStore.arrive(pipelineId, joinId, predecessors), nullValue());
+		assertThat(datastoreService.prepare(new Query(DatastoreJoinStore.JOIN_KIND)).countEntities(), equalTo(predecessors)); // the branches
+		assertThat(datastoreService.prepare(new Query(DatastoreJoinStore.SHARD_KIND)).countEntities(), equalTo(0));
+	}
+
+	@Test
+	public void shouldRunAPipelineThroughTheTaskQueue() throws Exception {
+		final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+		TaskQueueDeferrer deferrer = mock(TaskQueueDeferrer.class);
+		when(deferrer.defer(any(Deferrable.class), any(DeferOptions.class))).thenAnswer(new Answer<TaskHandle>() {
+			public TaskHandle answer(InvocationOnMock invocation) throws Throwable {
+				queue.add(taskCodec.serialize(invocation.getArguments()[0]));
+				return null;
+			}
+		});
+		TaskPayloadProcessor processor = new TaskPayloadProcessor(null);
+		DatastorePipelines pipelines = new DatastorePipelines(deferrer, joinStore);
+		processor.setPipelines(pipelines);
+		Pipeline pipeline = new Pipeline();
+		Pipeline.Step start = pipeline.step(new RecordingTask("a"));
+		pipeline.join(new RecordingTask("d"), pipeline.fanOut(start, Arrays.asList(new RecordingTask("b"), new RecordingTask("c"))));
+
+		pipelines.start(pipeline);
+		while (!queue.isEmpty()) {
+			processor.processPayload(taskCodec.deserialize(queue.removeFirst()));
+		}
+
+		assertThat(ran, equalTo(Arrays.asList("a", "b", "c", "d")));
+		verify(deferrer, times(4)).defer(any(Deferrable.class), any(DeferOptions.class));
+	}
+
+	@SuppressWarnings("serial")
+	static class RecordingTask implements Deferrable {
+		private final String name;
+
+		RecordingTask(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			ran.add(name);
+		}
+	}
+}
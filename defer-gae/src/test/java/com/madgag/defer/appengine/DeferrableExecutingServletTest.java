@@ -0,0 +1,124 @@
+package com.madgag.defer.appengine;
+
+import static java.lang.Math.min;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.madgag.defer.appengine.ObjectSerialisationTest.PayloadDeferrable;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeferrableExecutingServletTest {
+	
+	private static final int CHUNK_SIZE = 1000;
+
+	@Mock TaskPayloadProcessor taskPayloadProcessor;
+	@Mock HttpServletRequest request;
+	
+	private final ObjectSerialisation objectSerialisation = new ObjectSerialisation();
+	private DeferrableExecutingServlet servlet;
+	
+	@Before
+	public void setUp() {
+		servlet = new DeferrableExecutingServlet(taskPayloadProcessor, objectSerialisation);
+	}
+	
+	@Test
+	public void shouldReadAChunkedRequestBodyContainingLineBreaksInFull() throws Exception {
+		byte[] bytes = new byte[10 * CHUNK_SIZE];
+		Arrays.fill(bytes, (byte) '\n');
+		PayloadDeferrable task = new PayloadDeferrable(bytes);
+		givenRequestBody(objectSerialisation.serialize(task));
+		when(request.getHeader(DeferrableExecutingServlet.QUEUE_NAME_HEADER)).thenReturn("deferred");
+		
+		servlet.doPost(request, null);
+		
+		verify(taskPayloadProcessor).processPayload(task, "deferred");
+	}
+	
+	@Test
+	public void shouldAllocateLessThanCopyingTheWholeRequestBody() throws Exception {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		byte[] randomBytes = new byte[256 * 1024];
+		new Random(0).nextBytes(randomBytes);
+		byte[] payload = objectSerialisation.serialize(new PayloadDeferrable(randomBytes));
+		
+		long copyingAllocation = 0, streamingAllocation = 0;
+		for (int run = 0; run < 3; ++run) { // the first run warms up
+			long start = threadMXBean.getThreadAllocatedBytes(threadId);
+			objectSerialisation.deserialize(readFully(new ChunkedServletInputStream(payload)));
+			long middle = threadMXBean.getThreadAllocatedBytes(threadId);
+			givenRequestBody(payload);
+			servlet.doPost(request, null);
+			long end = threadMXBean.getThreadAllocatedBytes(threadId);
+			copyingAllocation = middle - start;
+			streamingAllocation = end - middle;
+		}
+		
+		assertThat(streamingAllocation, lessThan(copyingAllocation - payload.length / 2));
+	}
+
+	private void givenRequestBody(byte[] payload) throws IOException {
+		when(request.getContentLength()).thenReturn(-1);
+		when(request.getInputStream()).thenReturn(new ChunkedServletInputStream(payload));
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		byte[] buffer = new byte[CHUNK_SIZE];
+		for (int read; (read = in.read(buffer)) != -1;) {
+			bytesOut.write(buffer, 0, read);
+		}
+		return bytesOut.toByteArray();
+	}
+	
+	/**
+	 * Returns at most {@link #CHUNK_SIZE} bytes per read, like a chunked request body.
+	 */
+	private static class ChunkedServletInputStream extends ServletInputStream {
+		private final byte[] bytes;
+		private int position = 0;
+		
+		ChunkedServletInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= bytes.length) {
+				return -1;
+			}
+			int read = min(min(len, CHUNK_SIZE), bytes.length - position);
+			System.arraycopy(bytes, position, b, off, read);
+			position += read;
+			return read;
+		}
+	}
+}
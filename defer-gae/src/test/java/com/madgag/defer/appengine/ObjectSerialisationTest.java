@@ -0,0 +1,152 @@
+package com.madgag.defer.appengine;
+
+import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSizeBytes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.madgag.defer.Deferrable;
+
+public class ObjectSerialisationTest {
+
+	private final ObjectSerialisation rawSerialisation = objectSerialisation(false);
+	private final ObjectSerialisation base64Serialisation = objectSerialisation(true);
+	
+	@Test
+	public void shouldQueueATaskJustUnderTheSizeLimitInlineWhenNotBase64Encoding() throws Exception {
+		PayloadDeferrable task = taskWithSerialisedSizeOf(maxTaskSizeBytes());
+		
+		assertThat(rawSerialisation.serialize(task).length, lessThanOrEqualTo(maxTaskSizeBytes()));
+		assertThat(base64Serialisation.serialize(task).length, greaterThan(maxTaskSizeBytes()));
+	}
+	
+	@Test
+	public void shouldReplaceItsClassResolutionCacheWhenTheClassLoaderChanges() throws Exception {
+		PayloadDeferrable task = new PayloadDeferrable(new byte[] { 1, 2, 3 });
+		byte[] payload = rawSerialisation.serialize(task);
+		rawSerialisation.deserialize(payload);
+		ClassLoader original = Thread.currentThread().getContextClassLoader();
+		ClassLoader redeployed = new URLClassLoader(new URL[0], original);
+		
+		Thread.currentThread().setContextClassLoader(redeployed);
+		try {
+			assertThat(rawSerialisation.deserialize(payload), equalTo((Object) task));
+			assertThat(rawSerialisation.classResolutionCache().isFor(redeployed), is(true));
+		} finally {
+			Thread.currentThread().setContextClassLoader(original);
+		}
+	}
+	
+	@Test
+	public void shouldDeserialiseBothRawAndBase64PayloadsFromAMixedQueue() throws Exception {
+		PayloadDeferrable task = new PayloadDeferrable(new byte[] { 1, 2, 3 });
+		
+		for (ObjectSerialisation serialisation : Arrays.asList(rawSerialisation, base64Serialisation)) {
+			assertThat(serialisation.deserialize(rawSerialisation.serialize(task)), equalTo((Object) task));
+			assertThat(serialisation.deserialize(base64Serialisation.serialize(task)), equalTo((Object) task));
+		}
+	}
+	
+	@Test
+	public void shouldCompressARepetitiveOversizeTaskToFitInline() throws Exception {
+		PayloadDeferrable task = new PayloadDeferrable(new byte[2 * maxTaskSizeBytes()]);
+		
+		for (ObjectSerialisation serialisation : Arrays.asList(rawSerialisation, base64Serialisation)) {
+			byte[] compressed = serialisation.compress(serialisation.serialize(task));
+			
+			assertThat(compressed.length, lessThanOrEqualTo(maxTaskSizeBytes()));
+			assertThat(serialisation.deserialize(compressed), equalTo((Object) task));
+		}
+	}
+	
+	@Test
+	public void shouldNotCompressAnIncompressibleTask() throws Exception {
+		byte[] randomBytes = new byte[maxTaskSizeBytes()];
+		new Random(0).nextBytes(randomBytes);
+		
+		assertThat(rawSerialisation.compress(rawSerialisation.serialize(new PayloadDeferrable(randomBytes))), nullValue());
+	}
+	
+	@Test
+	public void shouldOnlyDeserialiseAllowedClassesWhenGivenAnAllowList() throws Exception {
+		ArrayList<PayloadDeferrable> tasks = new ArrayList<PayloadDeferrable>(Arrays.asList(new PayloadDeferrable(new byte[] { 1 })));
+		
+		for (ObjectSerialisation serialisation : Arrays.asList(rawSerialisation, new CompactObjectSerialisation())) {
+			byte[] payload = serialisation.serialize(tasks);
+			
+			serialisation.setAllowedClasses("java.util.ArrayList");
+			assertThat(serialisation.deserialize(payload), equalTo((Object) tasks));
+			
+			serialisation.setAllowedClasses("java.util.LinkedList, com.example.");
+			assertThat(serialisation.deserialize(payload), nullValue());
+		}
+	}
+	
+	@Test
+	public void shouldAlwaysAllowArraysOfAllowedClasses() throws Exception {
+		PayloadDeferrable[] tasks = { new PayloadDeferrable(new byte[] { 1 }) };
+		
+		rawSerialisation.setAllowedClasses("");
+		PayloadDeferrable[] deserialised = (PayloadDeferrable[]) rawSerialisation.deserialize(rawSerialisation.serialize(tasks));
+		
+		assertThat(deserialised[0], equalTo(tasks[0]));
+	}
+	
+	@Test
+	public void shouldDeserialiseABatchWhenGivenAnAllowList() throws Exception {
+		List<Deferrable> members = Arrays.<Deferrable>asList(new PayloadDeferrable(new byte[] { 1 }), new PayloadDeferrable(new byte[] { 2 }));
+		
+		for (ObjectSerialisation serialisation : Arrays.asList(rawSerialisation, new CompactObjectSerialisation())) {
+			serialisation.setAllowedClasses("com.example.");
+			DeferrableBatch batch = (DeferrableBatch) serialisation.deserialize(serialisation.serialize(new DeferrableBatch(members)));
+			
+			assertThat(batch.getMembers(), equalTo(members));
+		}
+	}
+	
+	private PayloadDeferrable taskWithSerialisedSizeOf(int size) {
+		int overhead = rawSerialisation.serialize(new PayloadDeferrable(new byte[0])).length;
+		PayloadDeferrable task = new PayloadDeferrable(new byte[size - overhead]);
+		assertThat(rawSerialisation.serialize(task).length, equalTo(size));
+		return task;
+	}
+
+	private static ObjectSerialisation objectSerialisation(boolean base64Payloads) {
+		ObjectSerialisation objectSerialisation = new ObjectSerialisation();
+		objectSerialisation.setBase64Payloads(base64Payloads);
+		return objectSerialisation;
+	}
+	
+	@SuppressWarnings("serial")
+	static class PayloadDeferrable implements Deferrable {
+		private final byte[] payload;
+		
+		PayloadDeferrable(byte[] payload) {
+			this.payload = payload;
+		}
+		
+		public void run() {}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof PayloadDeferrable && Arrays.equals(payload, ((PayloadDeferrable) obj).payload);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(payload);
+		}
+	}
+}
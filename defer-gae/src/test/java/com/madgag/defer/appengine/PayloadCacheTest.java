@@ -0,0 +1,62 @@
+package com.madgag.defer.appengine;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class PayloadCacheTest {
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private final PayloadCache payloadCache = new PayloadCache(8000);
+	
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+	
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+	
+	@Test
+	public void shouldEvictTheLeastRecentlyUsedPayloadsToStayWithinTheBudget() {
+		for (int i = 1; i <= 8; i++) {
+			payloadCache.put(key(i), new byte[1000]);
+		}
+		payloadCache.get(key(1));
+		
+		payloadCache.put(key(9), new byte[1000]);
+		payloadCache.put(key(10), new byte[1000]);
+		
+		assertThat(payloadCache.get(key(1)), notNullValue());
+		assertThat(payloadCache.get(key(2)), nullValue());
+		assertThat(payloadCache.get(key(3)), nullValue());
+		assertThat(payloadCache.get(key(4)), notNullValue());
+		assertThat(payloadCache.bytesHeld(), equalTo(8000L));
+		assertThat(payloadCache.evictions(), equalTo(2L));
+	}
+	
+	@Test
+	public void shouldNotCacheAPayloadTooLargeForItsShareOfTheBudget() {
+		payloadCache.put(key(1), new byte[1001]);
+		
+		assertThat(payloadCache.get(key(1)), nullValue());
+		assertThat(payloadCache.bytesHeld(), equalTo(0L));
+		assertThat(payloadCache.hitRatio(), equalTo(0.0));
+	}
+	
+	private static Key key(int id) {
+		return KeyFactory.createKey(TaskStore.ENTITY_KIND, id);
+	}
+}
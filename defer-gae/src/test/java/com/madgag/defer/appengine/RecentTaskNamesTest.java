@@ -0,0 +1,49 @@
+package com.madgag.defer.appengine;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class RecentTaskNamesTest {
+	
+	private static final long WINDOW = 1000;
+	
+	private final RecentTaskNames recentTaskNames = new RecentTaskNames(2, WINDOW);
+	
+	@Test
+	public void shouldContainANameQueuedWithinTheWindow() {
+		recentTaskNames.add("reindex-user-123", 5000);
+		
+		assertThat(recentTaskNames.contains("reindex-user-123", 5000 + WINDOW - 1), is(true));
+		assertThat(recentTaskNames.contains("reindex-user-456", 5000), is(false));
+	}
+	
+	@Test
+	public void shouldForgetANameOnceItLeavesTheWindow() {
+		recentTaskNames.add("reindex-user-123", 5000);
+		
+		assertThat(recentTaskNames.contains("reindex-user-123", 5000 + WINDOW), is(false));
+	}
+	
+	@Test
+	public void shouldEvictTheLeastRecentlyUsedNameWhenFull() {
+		recentTaskNames.add("a", 5000);
+		recentTaskNames.add("b", 5000);
+		recentTaskNames.contains("a", 5000);
+		recentTaskNames.add("c", 5000);
+		
+		assertThat(recentTaskNames.contains("a", 5000), is(true));
+		assertThat(recentTaskNames.contains("b", 5000), is(false));
+		assertThat(recentTaskNames.contains("c", 5000), is(true));
+	}
+	
+	@Test
+	public void shouldStillContainANameAfterTheBloomFilterHasRotated() {
+		recentTaskNames.add("a", 5000);
+		recentTaskNames.add("b", 5000 + WINDOW / 2);
+		recentTaskNames.add("c", 5000 + WINDOW + 1);
+		
+		assertThat(recentTaskNames.contains("b", 5000 + WINDOW + 1), is(true));
+	}
+}
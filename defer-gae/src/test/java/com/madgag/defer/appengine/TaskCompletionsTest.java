@@ -0,0 +1,155 @@
+package com.madgag.defer.appengine;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.Completion;
+import com.madgag.defer.CompletionCallback;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.PermanentTaskFailure;
+
+public class TaskCompletionsTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private TaskCompletions executingInstance;
+	private TaskCompletions waitingInstance;
+	private TaskPayloadProcessor processor;
+
+	@Before
+	public void setUp() throws Exception {
+		helper.setUp();
+		executingInstance = new TaskCompletions(DatastoreServiceFactory.getDatastoreService());
+		waitingInstance = new TaskCompletions(DatastoreServiceFactory.getDatastoreService());
+		processor = new TaskPayloadProcessor(null);
+		processor.setTaskCompletions(executingInstance);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void shouldFindATaskDoneOnceItHasRunOnAnotherInstance() throws Exception {
+		TaskCompletion completion = waitingInstance.newCompletion();
+		assertThat(completion.await(0, MILLISECONDS), is(false));
+
+		processor.processPayload(new TrackedDeferrable(completion.getId(), new SucceedingTask()));
+
+		assertThat(completion.await(1000, MILLISECONDS), is(true));
+		assertThat(completion.isFailed(), is(false));
+		assertThat(waitingInstance.watchedCompletions(), equalTo(0));
+	}
+
+	@Test
+	public void shouldMarkATaskThatFailsPermanentlyAsFailed() throws Exception {
+		TaskCompletion completion = waitingInstance.newCompletion();
+
+		processor.processPayload(new TrackedDeferrable(completion.getId(), new FailingTask(new PermanentTaskFailure("Boo"))));
+
+		assertThat(completion.await(1000, MILLISECONDS), is(true));
+		assertThat(completion.isFailed(), is(true));
+	}
+
+	@Test
+	public void shouldNotMarkATaskDoneWhileItIsStillToBeRetried() throws Exception {
+		TaskCompletion completion = waitingInstance.newCompletion();
+
+		try {
+			processor.processPayload(new TrackedDeferrable(completion.getId(), new FailingTask(new RuntimeException())));
+			fail("Should throw an exception");
+		} catch (RuntimeException e) {
+		}
+
+		assertThat(completion.await(100, MILLISECONDS), is(false));
+		assertThat(waitingInstance.watchedCompletions(), equalTo(0));
+	}
+
+	@Test
+	public void shouldShareOnePollBetweenWaitersAndCallTheirCallbacks() throws Exception {
+		final List<Completion> calledBack = new ArrayList<Completion>();
+		CompletionCallback callback = new CompletionCallback() {
+			public void done(Completion completion) {
+				calledBack.add(completion);
+			}
+		};
+		TaskCompletion completion = waitingInstance.newCompletion();
+		completion.whenDone(callback);
+		TaskCompletion sameCompletion = waitingInstance.completionOf(completion.getId());
+		sameCompletion.whenDone(callback);
+
+		processor.processPayload(new TrackedDeferrable(completion.getId(), new SucceedingTask()));
+
+		assertThat(sameCompletion, sameInstance(completion));
+		assertThat(waitingInstance.poll(), equalTo(1));
+		assertThat(calledBack.size(), equalTo(2));
+	}
+
+	@Test
+	public void shouldReturnTheSameCompletionForEveryLookupOfAnId() throws Exception {
+		String id = waitingInstance.newCompletion().getId();
+
+		TaskCompletion completion = waitingInstance.completionOf(id);
+		TaskCompletion sameCompletion = waitingInstance.completionOf(id);
+		processor.processPayload(new TrackedDeferrable(id, new SucceedingTask()));
+
+		assertThat(sameCompletion, sameInstance(completion));
+		assertThat(waitingInstance.poll(), equalTo(1));
+		assertThat(completion.isDone(), is(true));
+		assertThat(waitingInstance.watchedCompletions(), equalTo(0));
+	}
+
+	@Test
+	public void shouldCompleteACompletionWaitedOnAfterItsIdWasLookedUp() throws Exception {
+		TaskCompletion completion = waitingInstance.newCompletion();
+		TaskCompletion lookedUp = waitingInstance.completionOf(completion.getId());
+		final List<Completion> calledBack = new ArrayList<Completion>();
+		completion.whenDone(new CompletionCallback() {
+			public void done(Completion done) {
+				calledBack.add(done);
+			}
+		});
+
+		processor.processPayload(new TrackedDeferrable(completion.getId(), new SucceedingTask()));
+
+		assertThat(waitingInstance.poll(), equalTo(1));
+		assertThat(lookedUp.isDone(), is(true));
+		assertThat(calledBack, equalTo(Arrays.<Completion>asList(completion)));
+		assertThat(completion.await(0, MILLISECONDS), is(true));
+	}
+
+	@SuppressWarnings("serial")
+	static class SucceedingTask implements Deferrable {
+		public void run() {
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class FailingTask implements Deferrable {
+		private final RuntimeException failure;
+
+		FailingTask(RuntimeException failure) {
+			this.failure = failure;
+		}
+
+		public void run() {
+			throw failure;
+		}
+	}
+}
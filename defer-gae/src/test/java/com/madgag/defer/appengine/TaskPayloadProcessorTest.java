@@ -3,15 +3,23 @@ package com.madgag.defer.appengine;
 import static junit.framework.Assert.fail;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -19,11 +27,13 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.DeferOptions;
 import com.madgag.defer.Deferrable;
 import com.madgag.defer.PermanentTaskFailure;
-import com.madgag.defer.appengine.ObjectSerialisation;
 import com.madgag.defer.appengine.TaskPayloadProcessor;
 import com.madgag.defer.appengine.TaskStore;
+import com.madgag.defer.metrics.DeferMetrics;
+import com.madgag.defer.metrics.DeferMetrics.TaskOutcome;
 
 
 @RunWith(MockitoJUnitRunner.class)
@@ -32,9 +42,11 @@ public class TaskPayloadProcessorTest {
 	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
 
 	@Mock TaskStore taskStore;
-	@Mock ObjectSerialisation objectSerialisation;
+	@Mock TaskCodec taskCodec;
 	Key key;
 	@Mock Deferrable datastorePersistedDeferrable;
+	@Mock DeferMetrics deferMetrics;
+	@Mock TaskQueueDeferrer deferrer;
 
 	private TaskPayloadProcessor processor;
 	
@@ -44,6 +56,8 @@ public class TaskPayloadProcessorTest {
         key=KeyFactory.createKey("MyKey", "MyKeyPath");
         when(taskStore.getTask(key)).thenReturn(datastorePersistedDeferrable);
         processor = new TaskPayloadProcessor(taskStore);
+        processor.setDeferMetrics(deferMetrics);
+        processor.setDeferrer(deferrer);
     }
 
     @After
@@ -55,7 +69,7 @@ public class TaskPayloadProcessorTest {
 	public void shouldDeleteKeyAfterSuccesfulExecutionOfTaskWithPersistedLoad() throws Exception {
 		processor.processPayload(key);
 		
-		verify(taskStore).deleteEntity(key);
+		verify(taskStore).scheduleDeletion(key);
 	}
     
 	@Test
@@ -68,7 +82,7 @@ public class TaskPayloadProcessorTest {
 			fail("Should throw an exception");
 		} catch (RuntimeException e) {
 			assertThat(e, equalTo(toBeThrown));
-			verify(taskStore,never()).deleteEntity(key);
+			verify(taskStore,never()).scheduleDeletion(key);
 		}
 	}
 	
@@ -78,6 +92,86 @@ public class TaskPayloadProcessorTest {
 		
 		processor.processPayload(key);
 		
-		verify(taskStore).deleteEntity(key);
+		verify(taskStore).scheduleDeletion(key);
+	}
+	
+	@Test
+	public void shouldReportTheOutcomeOfExecutionToMetrics() throws Exception {
+		doThrow(new PermanentTaskFailure("Boo")).when(datastorePersistedDeferrable).run();
+		
+		processor.processPayload(key, "myQueue");
+		
+		verify(deferMetrics).taskExecuted(eq("myQueue"), eq(datastorePersistedDeferrable.getClass()), eq(TaskOutcome.FAILED_PERMANENTLY), anyLong());
+	}
+	
+	@Test
+	public void shouldDeferAgainOnlyTheBatchedTasksThatFailedRetryably() throws Exception {
+		Deferrable succeeding = mock(Deferrable.class), failingPermanently = mock(Deferrable.class), failing = mock(Deferrable.class);
+		doThrow(new PermanentTaskFailure("Boo")).when(failingPermanently).run();
+		doThrow(new RuntimeException()).when(failing).run();
+		
+		processor.processPayload(new DeferrableBatch(Arrays.asList(succeeding, failingPermanently, failing)), "myQueue");
+		
+		verify(succeeding).run();
+		ArgumentCaptor<DeferrableBatch> retry = ArgumentCaptor.forClass(DeferrableBatch.class);
+		verify(deferrer).defer(retry.capture(), any(DeferOptions.class));
+		assertThat(retry.getValue().getMembers(), equalTo(Arrays.asList(failing)));
+		assertThat(retry.getValue().getFailedAttempts(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldDeferTheBatchedTasksLeftToRunOnceTheDeadlineIsNear() throws Exception {
+		processor.setDeadlineMarginMillis(30 * 1000);
+		Deferrable first = mock(Deferrable.class), second = mock(Deferrable.class), third = mock(Deferrable.class);
+		
+		processor.processPayload(new DeferrableBatch(Arrays.asList(first, second, third)), "myQueue");
+		
+		verify(first).run();
+		verify(second, never()).run();
+		ArgumentCaptor<DeferrableBatch> continuation = ArgumentCaptor.forClass(DeferrableBatch.class);
+		verify(deferrer).defer(continuation.capture(), eq("myQueue"));
+		assertThat(continuation.getValue().getMembers(), equalTo(Arrays.asList(second, third)));
+		assertThat(continuation.getValue().getFailedAttempts(), equalTo(0));
+		assertThat(processor.tasksContinued(), equalTo(1L));
+		assertThat(processor.tasksNearDeadline(), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldLetATaskNearItsDeadlineHandOnAContinuation() throws Exception {
+		processor.setDeadlineMarginMillis(30 * 1000);
+		Deferrable continuation = mock(Deferrable.class);
+		
+		processor.processPayload(new SlicedTask(continuation), "myQueue");
+		
+		verify(deferrer).defer(continuation, "myQueue");
+		assertThat(processor.tasksContinued(), equalTo(1L));
+		assertThat(processor.tasksNearDeadline(), equalTo(0L));
+		assertThat(TaskDeadline.current(), nullValue());
+	}
+	
+	@Test
+	public void shouldCountATaskThatEndsNearItsDeadlineWithoutHandingOnAContinuation() throws Exception {
+		processor.setDeadlineMarginMillis(30 * 1000);
+		
+		processor.processPayload(mock(Deferrable.class), "myQueue");
+		
+		assertThat(processor.tasksNearDeadline(), equalTo(1L));
+		assertThat(processor.tasksContinued(), equalTo(0L));
+	}
+	
+	@SuppressWarnings("serial")
+	private static class SlicedTask implements Deferrable {
+		private final Deferrable continuation;
+		
+		SlicedTask(Deferrable continuation) {
+			this.continuation = continuation;
+		}
+		
+		public void run() {
+			TaskDeadline deadline = TaskDeadline.current();
+			if (deadline.isNear()) {
+				deadline.continueWith(continuation);
+			}
+		}
 	}
 }
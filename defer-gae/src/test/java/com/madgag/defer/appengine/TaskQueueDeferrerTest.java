@@ -0,0 +1,316 @@
+package com.madgag.defer.appengine;
+
+import static com.google.appengine.api.labs.taskqueue.QueueConstants.maxTaskSizeBytes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.labs.taskqueue.Queue;
+import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.labs.taskqueue.TaskHandle;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.appengine.api.labs.taskqueue.TransientFailureException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.DuplicateTaskException;
+
+public class TaskQueueDeferrerTest {
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final Queue queue = mock(Queue.class);
+	private final TaskStore taskStore = mock(TaskStore.class);
+	private final ObjectSerialisation taskCodec = new ObjectSerialisation();
+	private final TaskQueueDeferrer deferrer = new TaskQueueDeferrer(taskStore, taskCodec) {
+		@Override
+		Queue queueFor(String queueName) {
+			return queue;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void shouldRetryAnAddThatFailsTransiently() throws Exception {
+		TaskHandle taskHandle = new TaskHandle("task-1", "deferred", 0);
+		when(queue.add(any(TaskOptions.class))).thenThrow(new TransientFailureException("busy")).thenReturn(taskHandle);
+
+		assertThat(deferrer.defer(new SmallTask()), equalTo(taskHandle));
+		verify(queue, times(2)).add(any(TaskOptions.class));
+	}
+
+	@Test
+	public void shouldNotRetryAnAddRejectedByTheQueue() throws Exception {
+		when(queue.add(any(TaskOptions.class))).thenThrow(new TaskAlreadyExistsException("task-1"));
+
+		try {
+			deferrer.defer(new SmallTask(), DeferOptions.Builder.taskName("task-1"));
+			fail();
+		} catch (DuplicateTaskException e) {
+		}
+		verify(queue, times(1)).add(any(TaskOptions.class));
+		assertThat(deferrer.addsAllowedInFlight(TaskQueueDeferrer.DEFAULT_QUEUE_NAME), equalTo((int) AdaptiveLimiter.INITIAL_LIMIT));
+	}
+
+	@Test
+	public void shouldDropARecentlyQueuedNameWithoutCallingTheQueue() throws Exception {
+		when(queue.add(any(TaskOptions.class))).thenReturn(new TaskHandle("task-1", "deferred", 0));
+		deferrer.defer(new SmallTask(), DeferOptions.Builder.taskName("task-1"));
+
+		try {
+			deferrer.defer(new SmallTask(), DeferOptions.Builder.taskName("task-1"));
+			fail();
+		} catch (DuplicateTaskException e) {
+		}
+		verify(queue, times(1)).add(any(TaskOptions.class));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.QUEUED), equalTo(1L));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.DROPPED_LOCALLY), equalTo(1L));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.REJECTED_BY_QUEUE), equalTo(0L));
+	}
+
+	@Test
+	public void shouldRememberANameRejectedByTheQueueAndDropItLocallyAfterwards() throws Exception {
+		when(queue.add(any(TaskOptions.class))).thenThrow(new TaskAlreadyExistsException("task-1"));
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				deferrer.defer(new SmallTask(), DeferOptions.Builder.taskName("task-1"));
+				fail();
+			} catch (DuplicateTaskException e) {
+			}
+		}
+		verify(queue, times(1)).add(any(TaskOptions.class));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.REJECTED_BY_QUEUE), equalTo(1L));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.DROPPED_LOCALLY), equalTo(2L));
+		assertThat(deferrer.namedTasks(TaskQueueDeferrer.NamedTaskOutcome.QUEUED), equalTo(0L));
+	}
+
+	@Test
+	public void shouldNotCountTasksDeferredWithoutAName() throws Exception {
+		when(queue.add(any(TaskOptions.class))).thenReturn(new TaskHandle("task-1", "deferred", 0));
+
+		deferrer.defer(new SmallTask());
+		deferrer.defer(new SmallTask());
+
+		verify(queue, times(2)).add(any(TaskOptions.class));
+		for (TaskQueueDeferrer.NamedTaskOutcome outcome : TaskQueueDeferrer.NamedTaskOutcome.values()) {
+			assertThat(deferrer.namedTasks(outcome), equalTo(0L));
+		}
+	}
+
+	@Test
+	public void shouldQueueASmallPayloadInline() throws Exception {
+		IndexedTask task = new IndexedTask(1, new byte[100]);
+
+		deferrer.defer(task);
+
+		assertThat(((IndexedTask) taskCodec.deserialize(queuedPayload())).index, equalTo(1));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.INLINE), equalTo(1L));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.COMPRESSED), equalTo(0L));
+		verify(taskStore, never()).store(any(byte[].class));
+	}
+
+	@Test
+	public void shouldQueueAnOversizePayloadCompressedIfItThenFits() throws Exception {
+		IndexedTask task = new IndexedTask(1, new byte[2 * maxTaskSizeBytes()]);
+
+		deferrer.defer(task);
+
+		byte[] payload = queuedPayload();
+		assertThat(payload[0], equalTo(ObjectSerialisation.DEFLATED_FORMAT));
+		assertThat(((IndexedTask) taskCodec.deserialize(payload)).index, equalTo(1));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.COMPRESSED), equalTo(1L));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.INLINE), equalTo(0L));
+		verify(taskStore, never()).store(any(byte[].class));
+	}
+
+	@Test
+	public void shouldSpillAnOversizePayloadThatDoesNotCompressToTheDatastore() throws Exception {
+		Key key = KeyFactory.createKey(TaskStore.ENTITY_KIND, 1);
+		when(taskStore.store(any(byte[].class))).thenReturn(key);
+
+		deferrer.defer(indexedTasks(1, 2 * maxTaskSizeBytes()).get(0));
+
+		assertThat(taskCodec.deserialize(queuedPayload()), equalTo((Object) key));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.SPILLED), equalTo(1L));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.COMPRESSED), equalTo(0L));
+	}
+
+	@Test
+	public void shouldQueueATaskWithItsCountdownAndName() throws Exception {
+		deferrer.defer(new SmallTask(), DeferOptions.Builder.countdownMillis(5000).taskName("task-1"));
+
+		TaskOptions taskOptions = queuedTaskOptions();
+		assertThat(property(taskOptions, "getCountdownMillis"), equalTo((Object) 5000L));
+		assertThat(property(taskOptions, "getEtaMillis"), nullValue());
+		assertThat(property(taskOptions, "getTaskName"), equalTo((Object) "task-1"));
+	}
+
+	@Test
+	public void shouldQueueATaskWithItsEta() throws Exception {
+		long eta = System.currentTimeMillis() + 60000;
+
+		deferrer.defer(new SmallTask(), DeferOptions.Builder.etaMillis(eta));
+
+		TaskOptions taskOptions = queuedTaskOptions();
+		assertThat(property(taskOptions, "getEtaMillis"), equalTo((Object) eta));
+		assertThat(property(taskOptions, "getCountdownMillis"), nullValue());
+		assertThat(property(taskOptions, "getTaskName"), nullValue());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void shouldAddABatchInChunksAndReturnTheHandlesInTaskOrder() throws Exception {
+		when(queue.add(anyListOf(TaskOptions.class))).thenAnswer(new HandlesNamedByTaskIndex());
+		List<IndexedTask> tasks = indexedTasks(TaskQueueDeferrer.MAX_TASKS_PER_ADD + 50, 0);
+
+		List<TaskHandle> handles = deferrer.deferAll(tasks, "batch");
+
+		ArgumentCaptor<List> chunks = ArgumentCaptor.forClass(List.class);
+		verify(queue, times(2)).add(chunks.capture());
+		assertThat(chunks.getAllValues().get(0).size(), equalTo(TaskQueueDeferrer.MAX_TASKS_PER_ADD));
+		assertThat(chunks.getAllValues().get(1).size(), equalTo(50));
+		assertThat(handles.size(), equalTo(tasks.size()));
+		for (int i = 0; i < tasks.size(); i++) {
+			assertThat(handles.get(i).getName(), equalTo("task-" + i));
+		}
+		verify(taskStore, never()).storeAll(anyListOf(byte[].class));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void shouldDeleteTheStoredPayloadsOfOnlyTheChunkThatFailedAndThoseAfterIt() throws Exception {
+		int taskCount = 2 * TaskQueueDeferrer.MAX_TASKS_PER_ADD + 50;
+		final List<Key> keys = new ArrayList<Key>();
+		for (int i = 0; i < taskCount; i++) {
+			keys.add(KeyFactory.createKey(TaskStore.ENTITY_KIND, i + 1));
+		}
+		when(taskStore.storeAll(anyListOf(byte[].class))).thenReturn(keys);
+		when(queue.add(anyListOf(TaskOptions.class)))
+				.thenAnswer(new HandlesNamedByTaskIndex())
+				.thenThrow(new IllegalStateException("queue unavailable"));
+
+		try {
+			deferrer.deferAll(indexedTasks(taskCount, 2 * maxTaskSizeBytes()), "batch");
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		verify(queue, times(2)).add(anyListOf(TaskOptions.class));
+		verify(taskStore).deleteEntities(keys.subList(TaskQueueDeferrer.MAX_TASKS_PER_ADD, taskCount));
+		assertThat(deferrer.tasksQueued(TaskQueueDeferrer.PayloadTier.SPILLED), equalTo((long) TaskQueueDeferrer.MAX_TASKS_PER_ADD));
+	}
+
+	private TaskOptions queuedTaskOptions() {
+		ArgumentCaptor<TaskOptions> taskOptions = ArgumentCaptor.forClass(TaskOptions.class);
+		verify(queue).add(taskOptions.capture());
+		return taskOptions.getValue();
+	}
+
+	private byte[] queuedPayload() throws Exception {
+		return (byte[]) property(queuedTaskOptions(), "getPayload");
+	}
+
+	@Test
+	public void shouldLimitBatchAddsApartFromSingleAdds() throws Exception {
+		when(queue.add(anyListOf(TaskOptions.class))).thenThrow(new TransientFailureException("busy"));
+
+		try {
+			deferrer.deferAll(indexedTasks(10, 0), "batch");
+			fail();
+		} catch (TransientFailureException e) {
+		}
+
+		assertThat(deferrer.batchAddsAllowedInFlight("batch") < (int) AdaptiveLimiter.INITIAL_LIMIT, is(true));
+		assertThat(deferrer.addsAllowedInFlight("batch"), equalTo((int) AdaptiveLimiter.INITIAL_LIMIT));
+	}
+
+	private static List<IndexedTask> indexedTasks(int count, int incompressibleBytes) {
+		Random random = new Random(count);
+		List<IndexedTask> tasks = new ArrayList<IndexedTask>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] padding = new byte[incompressibleBytes];
+			random.nextBytes(padding);
+			tasks.add(new IndexedTask(i, padding));
+		}
+		return tasks;
+	}
+
+	/**
+	 * The getters of {@link TaskOptions} are package-private, so the options
+	 * a task was queued with are read reflectively.
+	 */
+	static Object property(TaskOptions taskOptions, String getter) throws Exception {
+		Method method = TaskOptions.class.getDeclaredMethod(getter);
+		method.setAccessible(true);
+		return method.invoke(taskOptions);
+	}
+
+	/**
+	 * Names the handle of each task added after the index of its task - or,
+	 * for a payload that was spilled, the datastore id of its key less one.
+	 */
+	private class HandlesNamedByTaskIndex implements Answer<List<TaskHandle>> {
+		public List<TaskHandle> answer(InvocationOnMock invocation) throws Throwable {
+			List<TaskHandle> handles = new ArrayList<TaskHandle>();
+			for (Object options : (Iterable<?>) invocation.getArguments()[0]) {
+				Object payload = taskCodec.deserialize((byte[]) property((TaskOptions) options, "getPayload"));
+				long index = payload instanceof Key ? ((Key) payload).getId() - 1 : ((IndexedTask) payload).index;
+				handles.add(new TaskHandle("task-" + index, "batch", 0));
+			}
+			return handles;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class SmallTask implements Deferrable {
+		public void run() {
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class IndexedTask implements Deferrable {
+		final int index;
+		final byte[] padding;
+
+		IndexedTask(int index, byte[] padding) {
+			this.index = index;
+			this.padding = padding;
+		}
+
+		public void run() {
+		}
+	}
+}
@@ -1,11 +1,28 @@
 package com.madgag.defer.appengine;
 
+import static com.madgag.defer.appengine.TaskStore.CHUNK_BYTES;
+import static com.madgag.defer.appengine.TaskStore.CHUNK_KIND;
+import static com.madgag.defer.appengine.TaskStore.DELETE_BATCH_SIZE;
 import static com.madgag.defer.appengine.TaskStore.ENTITY_KIND;
+import static com.madgag.defer.appengine.TaskStore.STORED_AT_PROPERTY;
 import static com.madgag.defer.appengine.TaskStore.TASK_PROPERTY;
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,20 +31,26 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
-import com.madgag.defer.appengine.ObjectSerialisation;
+import com.madgag.defer.Deferrable;
 import com.madgag.defer.appengine.TaskStore;
+import com.madgag.defer.metrics.RecordingDeferMetrics;
+import com.madgag.defer.metrics.DeferMetrics.StoreOperation;
 
 @RunWith(MockitoJUnitRunner.class)
 public class TaskStoreTest {
 	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
 
-	@Mock ObjectSerialisation objectSerialisation;
+	@Mock TaskCodec taskCodec;
 	@Mock DatastoreService datastoreService;
 	Entity entity;
 	Key key;
@@ -39,7 +62,7 @@ public class TaskStoreTest {
         helper.setUp();
         key=KeyFactory.createKey("MyKey", "MyKeyPath");
         entity = new Entity( ENTITY_KIND );
-        taskStore = new TaskStore(datastoreService, objectSerialisation);
+        taskStore = new TaskStore(datastoreService, taskCodec);
     }
 
     @After
@@ -51,10 +74,131 @@ public class TaskStoreTest {
 	public void shouldDeleteKeyIfDeserialisationFails() throws Exception {
 		when(datastoreService.get(key)).thenReturn(entity);
 		entity.setProperty(TASK_PROPERTY, new Blob(new byte[0]));
-		when(objectSerialisation.deserialize(any(byte[].class))).thenReturn(null);
+		when(taskCodec.deserialize(any(byte[].class))).thenReturn(null);
 		
 		taskStore.getTask(key);
 		
 		verify(datastoreService).delete(key);
 	}
+
+	@Test
+	public void shouldStoreAllPayloadsWithASingleBatchPut() throws Exception {
+		Key otherKey=KeyFactory.createKey("MyKey", "MyOtherKeyPath");
+		when(datastoreService.put(anyListOf(Entity.class))).thenReturn(asList(key, otherKey));
+		
+		List<Key> keys = taskStore.storeAll(asList(new byte[] { 1 }, new byte[] { 2 }));
+		
+		assertThat(keys, equalTo(asList(key, otherKey)));
+		verify(datastoreService, times(1)).put(anyListOf(Entity.class));
+	}
+	
+	@Test
+	public void shouldDeleteScheduledEntitiesWithABatchDeleteOnceTheBatchIsFull() throws Exception {
+		for (int i = 1; i < DELETE_BATCH_SIZE; i++) {
+			taskStore.scheduleDeletion(KeyFactory.createKey("MyKey", i));
+		}
+		verify(datastoreService, never()).delete(anyListOf(Key.class));
+		
+		taskStore.scheduleDeletion(key);
+		
+		verify(datastoreService, times(1)).delete(anyListOf(Key.class));
+		assertThat(taskStore.pendingDeletes(), equalTo(0));
+	}
+	
+	@Test
+	public void shouldKeepKeysThatFailedToDeleteForTheNextFlush() throws Exception {
+		doThrow(new DatastoreFailureException("Boo")).when(datastoreService).delete(anyListOf(Key.class));
+		taskStore.scheduleDeletion(key);
+		
+		taskStore.flushDeletes();
+		
+		assertThat(taskStore.pendingDeletes(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldSweepOnlyEntitiesOlderThanTheMaximumAge() throws Exception {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		TaskStore realTaskStore = new TaskStore(datastore, taskCodec);
+		Key recentKey = realTaskStore.store(new byte[] { 1 });
+		Entity orphan = new Entity(ENTITY_KIND);
+		orphan.setProperty(TASK_PROPERTY, new Blob(new byte[] { 2 }));
+		orphan.setProperty(STORED_AT_PROPERTY, new Date(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+		Key orphanKey = datastore.put(orphan);
+		
+		assertThat(realTaskStore.sweepOrphans(60 * 60 * 1000, 100), equalTo(1));
+		
+		datastore.get(recentKey);
+		try {
+			datastore.get(orphanKey);
+			fail("Orphan should have been swept");
+		} catch (EntityNotFoundException e) {
+		}
+	}
+	
+	@Test
+	public void shouldStorePayloadsTooLargeForOneEntityInChunks() throws Exception {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		TaskStore realTaskStore = new TaskStore(datastore, new ObjectSerialisation());
+		RecordingDeferMetrics deferMetrics = new RecordingDeferMetrics();
+		realTaskStore.setDeferMetrics(deferMetrics);
+		byte[] content = new byte[2 * CHUNK_BYTES + 1000];
+		new Random().nextBytes(content);
+		
+		Key key = realTaskStore.store(new ObjectSerialisation().serialize(new LargeTask(content)));
+		
+		assertThat(TaskStore.entityKeysOf(key).size(), equalTo(3));
+		LargeTask task = (LargeTask) realTaskStore.getTask(key);
+		assertThat(Arrays.equals(task.content, content), equalTo(true));
+		assertThat(deferMetrics.getStoreOperationNanos(StoreOperation.STORE).getCount(), equalTo(1L)); // one batch put of every chunk
+		assertThat(deferMetrics.getStoreOperationNanos(StoreOperation.FETCH).getCount(), equalTo(1L));
+		
+		realTaskStore.deleteEntity(key);
+		
+		assertThat(datastore.prepare(new Query(CHUNK_KIND)).countEntities(), equalTo(0));
+		assertThat(datastore.prepare(new Query(ENTITY_KIND)).countEntities(), equalTo(0));
+	}
+	
+	@Test
+	public void shouldReadATaskItStoredFromThePayloadCache() throws Exception {
+		PayloadCache payloadCache = new PayloadCache(10000);
+		taskStore.setPayloadCache(payloadCache);
+		byte[] taskBytes = new byte[100];
+		LargeTask task = new LargeTask(taskBytes);
+		when(datastoreService.put(any(Entity.class))).thenReturn(key);
+		when(taskCodec.deserialize(taskBytes)).thenReturn(task);
+		
+		taskStore.store(taskBytes);
+		
+		assertThat((LargeTask) taskStore.getTask(key), equalTo(task));
+		verify(datastoreService, never()).get(key);
+		assertThat(payloadCache.hitRatio(), equalTo(1.0));
+		assertThat(payloadCache.bytesHeld(), equalTo(100L));
+	}
+	
+	@Test
+	public void shouldDropACachedPayloadOnceItsEntityIsToBeDeleted() throws Exception {
+		PayloadCache payloadCache = new PayloadCache(10000);
+		taskStore.setPayloadCache(payloadCache);
+		when(datastoreService.put(any(Entity.class))).thenReturn(key);
+		when(datastoreService.get(key)).thenThrow(new EntityNotFoundException(key));
+		
+		taskStore.store(new byte[100]);
+		taskStore.scheduleDeletion(key);
+		
+		assertThat(payloadCache.bytesHeld(), equalTo(0L));
+		assertThat(taskStore.getTask(key), equalTo(null));
+		verify(datastoreService).get(key);
+	}
+	
+	@SuppressWarnings("serial")
+	static class LargeTask implements Deferrable {
+		final byte[] content;
+		
+		LargeTask(byte[] content) {
+			this.content = content;
+		}
+		
+		public void run() {
+		}
+	}
 }
@@ -0,0 +1,21 @@
+package com.madgag.defer;
+
+/**
+ * Receives the tasks that an {@link ExecutorServiceDeferrer} has given up
+ * on, after they exhausted the attempts allowed by their queue's
+ * {@link RetryPolicy}. Tasks ending in a {@link PermanentTaskFailure} are
+ * not dead-lettered - they are dropped, as on App Engine.
+ * 
+ * <p>Implementations are called on a worker thread, and should not block.
+ */
+public interface DeadLetterSink {
+	
+	/**
+	 * @param task The task that failed.
+	 * @param queueName The queue it was deferred to.
+	 * @param attempts The number of times it was run.
+	 * @param lastFailure The exception thrown by its final attempt.
+	 */
+	void deadLetter(Deferrable task, String queueName, int attempts, RuntimeException lastFailure);
+	
+}
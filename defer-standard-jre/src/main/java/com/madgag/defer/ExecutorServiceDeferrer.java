@@ -1,20 +1,604 @@
 package com.madgag.defer;
 
-import java.util.concurrent.Executor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
-public class ExecutorServiceDeferrer implements Deferrer {
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
-	Executor executor;
+import com.madgag.defer.metrics.DeferMetrics;
+import com.madgag.defer.metrics.NoOpDeferMetrics;
+import com.madgag.defer.metrics.DeferMetrics.TaskOutcome;
+
+/**
+ * A {@link Deferrer} for the standard JRE, executing each named queue on its
+ * own bounded thread pool.
+ * 
+ * <p>As with the App Engine task queue, a task that throws a
+ * {@link PermanentTaskFailure} is simply dropped, while a task throwing any
+ * other exception is retried, according to its queue's {@link RetryPolicy}.
+ * Retries are scheduled on a single timer thread and resubmitted to the
+ * queue when due, so a waiting retry never occupies a worker thread. Tasks
+ * that exhaust their retries are passed to the {@link DeadLetterSink}.
+ * 
+ * <p>Tasks deferred with a countdown or ETA wait on a {@link TimingWheel},
+ * and are submitted to their queue when due. A task name is reserved from
+ * when the task is deferred until it is finished with, and a task deferred
+ * under a name that is already reserved is rejected - so a task name serves
+ * as an idempotency key for tasks that are still pending.
+ * 
+ * <p>Within a queue, tasks are dispatched to threads by a {@link FairScheduler},
+ * so a flood of tasks of one class can't starve the others: each class can
+ * be {@link #configureTaskClass(String, Class, TaskClassConfiguration) configured}
+ * with a limit on how many of its tasks run at once, and a weight, at any time.
+ * 
+ * <p>A queue {@link QueueConfiguration#withVirtualThreads(boolean) configured}
+ * to use virtual threads starts a new virtual thread for each task, rather
+ * than keeping a pool, and its concurrency limits only how many tasks run
+ * at once - suiting tasks that spend most of their time blocked on I/O.
+ * 
+ * <p>Queues {@link QueueConfiguration#withSharedWorkers(boolean) configured}
+ * to use shared workers run on one {@link WorkStealingPool} - one thread per
+ * available processor by default - rather than a pool each: idle workers
+ * steal the tasks of busy queues, and queues share the workers by their
+ * {@link QueueConfiguration#withWeight(int) weights} while all are busy.
+ */
+public class ExecutorServiceDeferrer implements Deferrer<TaskFuture> {
+	
+	private static final Logger log = Logger.getLogger(ExecutorServiceDeferrer.class.getName());
+	
+	public static final String DEFAULT_QUEUE_NAME = "default";
+	
+	private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+	private static final long TIMING_WHEEL_TICK_MILLIS = 10;
+	
+	/**
+	 * The default dead-letter sink, which just logs the task.
+	 */
+	public static final DeadLetterSink LOGGING_DEAD_LETTER_SINK = new DeadLetterSink() {
+		public void deadLetter(Deferrable task, String queueName, int attempts, RuntimeException lastFailure) {
+			log.log(SEVERE, "Giving up on task on '" + queueName + "' queue after " + attempts + " attempts: " + task, lastFailure);
+		}
+	};
+	
+	private final QueueConfiguration defaultConfiguration;
+	private final DeadLetterSink deadLetterSink;
+	private final ConcurrentMap<String, QueueConfiguration> queueConfigurations = new ConcurrentHashMap<String, QueueConfiguration>();
+	private final ConcurrentMap<String, ConcurrentMap<Class<?>, TaskClassConfiguration>> taskClassConfigurations = new ConcurrentHashMap<String, ConcurrentMap<Class<?>, TaskClassConfiguration>>();
+	private final ConcurrentMap<String, FairScheduler> queues = new ConcurrentHashMap<String, FairScheduler>();
+	private final ConcurrentMap<String, TaskExecution> namedTasks = new ConcurrentHashMap<String, TaskExecution>();
+	private final AtomicLong namedTasksDeferred = new AtomicLong();
+	private final AtomicLong duplicateTasksRejected = new AtomicLong();
+	private final ScheduledExecutorService retryScheduler;
+	private final TimingWheel timingWheel = new TimingWheel(TIMING_WHEEL_TICK_MILLIS, "defer-timing-wheel");
+	private final Random jitter = new Random();
+	private volatile DeferMetrics deferMetrics = NoOpDeferMetrics.INSTANCE;
+	
+	/** Created when first used - guarded by <code>this</code>. */
+	private WorkStealingPool sharedWorkers;
+	private int sharedWorkerThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Tasks deferred but not yet finished with - including those waiting to
+	 * be retried - guarded by <code>this</code> for the benefit of
+	 * {@link #shutdown(long, TimeUnit)}.
+	 */
+	private int outstandingTasks = 0;
+	private volatile boolean shutdown = false;
+	
+	public ExecutorServiceDeferrer() {
+		this(QueueConfiguration.DEFAULT);
+	}
+	
+	/**
+	 * @param defaultConfiguration The configuration of queues that aren't
+	 * {@link #configureQueue(String, QueueConfiguration) configured} explicitly.
+	 */
+	public ExecutorServiceDeferrer(QueueConfiguration defaultConfiguration) {
+		this(defaultConfiguration, LOGGING_DEAD_LETTER_SINK);
+	}
+	
+	/**
+	 * @param defaultConfiguration The configuration of queues that aren't
+	 * {@link #configureQueue(String, QueueConfiguration) configured} explicitly.
+	 * @param deadLetterSink Receives tasks that have exhausted their retries.
+	 */
+	public ExecutorServiceDeferrer(QueueConfiguration defaultConfiguration, DeadLetterSink deadLetterSink) {
+		this.defaultConfiguration = defaultConfiguration;
+		this.deadLetterSink = deadLetterSink;
+		this.retryScheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("defer-retry-scheduler"));
+	}
+	
+	/**
+	 * Sets the configuration of a named queue. This must be done before the
+	 * first task is deferred to the queue.
+	 * 
+	 * @throws IllegalStateException If the queue is already in use.
+	 */
+	public void configureQueue(String queueName, QueueConfiguration configuration) {
+		if (queues.containsKey(queueName)) {
+			throw new IllegalStateException("Queue '" + queueName + "' is already in use");
+		}
+		queueConfigurations.put(queueName, configuration);
+	}
+	
+	/**
+	 * Sets the number of workers shared by queues configured to use them.
+	 * This must be done before the first task is deferred to such a queue.
+	 * 
+	 * @throws IllegalStateException If the shared workers are already running.
+	 */
+	public synchronized void configureSharedWorkers(int threads) {
+		if (sharedWorkers != null) {
+			throw new IllegalStateException("Shared workers are already running");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		sharedWorkerThreads = threads;
+	}
+	
+	/**
+	 * @return The number of tasks of queues on the shared workers that were
+	 * run by a worker other than their queue's home worker.
+	 */
+	public synchronized long stolenTasks() {
+		return sharedWorkers == null ? 0 : sharedWorkers.stolenTasks();
+	}
+	
+	/**
+	 * Sets how tasks of a class share the threads of a queue with other
+	 * classes of task - including tasks of the class wrapped in a
+	 * {@link DeferrableWrapper}, such as those deferred by a journal. Unlike the configuration of the queue itself, this can
+	 * be changed at any time - to throttle a backfill while it runs, say - and
+	 * applies to the tasks already waiting.
+	 */
+	public void configureTaskClass(String queueName, Class<? extends Deferrable> taskClass, TaskClassConfiguration configuration) {
+		taskClassConfigurationsOf(queueName).put(taskClass, configuration);
+		FairScheduler scheduler = queues.get(queueName);
+		if (scheduler != null) {
+			scheduler.dispatch(); // the class may now be allowed to run more tasks
+		}
+	}
+	
+	/**
+	 * @return The number of tasks of a class running on a queue.
+	 */
+	public int runningTasks(String queueName, Class<? extends Deferrable> taskClass) {
+		FairScheduler scheduler = queues.get(queueName);
+		return scheduler == null ? 0 : scheduler.runningTasks(taskClass);
+	}
+	
+	/**
+	 * @return The number of tasks of a class waiting for a thread on a queue.
+	 */
+	public int waitingTasks(String queueName, Class<? extends Deferrable> taskClass) {
+		FairScheduler scheduler = queues.get(queueName);
+		return scheduler == null ? 0 : scheduler.waitingTasks(taskClass);
+	}
 	
-	@Override
-	public Object defer(Deferrable task) {
-		return defer(task,"default");
+	/**
+	 * Sets the listener for measurements of deferred tasks, which are
+	 * discarded by default.
+	 */
+	public void setDeferMetrics(DeferMetrics deferMetrics) {
+		this.deferMetrics = deferMetrics;
+	}
+	
+	/**
+	 * @return The number of tasks deferred with a task name since this
+	 * deferrer was created, including those rejected as duplicates.
+	 */
+	public long namedTasksDeferred() {
+		return namedTasksDeferred.get();
+	}
+	
+	/**
+	 * @return The number of tasks rejected because a task with the same name
+	 * was still pending.
+	 */
+	public long duplicateTasksRejected() {
+		return duplicateTasksRejected.get();
+	}
+	
+	public TaskFuture defer(Deferrable task) {
+		return defer(task, DEFAULT_QUEUE_NAME);
 	}
 
-	@Override
-	public Object defer(Deferrable task, String queueName) {
-		executor.execute(task);
-		return null;
+	/**
+	 * @throws RejectedExecutionException If the queue is full and its
+	 * rejection policy rejects the task, or if this deferrer has been shut down.
+	 * @return A {@link TaskFuture} completing when the task has run
+	 * successfully, or failed permanently - or failing with the final
+	 * exception thrown by the task, if it exhausted its retries. Cancelling
+	 * it prevents any further attempts. It is also a {@link Completion},
+	 * whose callbacks are called on the thread that finished with the task.
+	 */
+	public TaskFuture defer(Deferrable task, String queueName) {
+		return defer(task, DeferOptions.Builder.queueName(queueName));
+	}
+	
+	/**
+	 * @throws DuplicateTaskException If a task with the same name is still
+	 * waiting, running or being retried.
+	 * @throws RejectedExecutionException If the task is due now, the queue
+	 * is full and its rejection policy rejects the task, or if this deferrer
+	 * has been shut down.
+	 * @return A {@link TaskFuture} as for {@link #defer(Deferrable, String)}.
+	 */
+	public TaskFuture defer(Deferrable task, DeferOptions options) {
+		long start = System.nanoTime();
+		String queueName = options.getQueueName() == null ? DEFAULT_QUEUE_NAME : options.getQueueName();
+		TaskExecution execution = new TaskExecution(task, queueName, options.getTaskName(), configurationOf(queueName).getRetryPolicy());
+		execution.start();
+		try {
+			Long deadlineMillis = options.getDeadlineMillis(System.currentTimeMillis());
+			if (deadlineMillis != null) {
+				execution.delayed = true;
+				if (!timingWheel.schedule(new Resubmission(execution, null), deadlineMillis)) {
+					execution.delayed = false;
+					queue(queueName).execute(execution, execution.taskClass);
+				}
+			} else {
+				queue(queueName).execute(execution, execution.taskClass);
+			}
+		} catch (RuntimeException e) {
+			execution.finish();
+			throw e;
+		}
+		deferMetrics.taskDeferred(queueName, execution.taskClass, -1, false, System.nanoTime() - start);
+		return execution.handle;
 	}
 
+	public List<TaskFuture> deferAll(Collection<? extends Deferrable> tasks, String queueName) {
+		List<TaskFuture> handles = new ArrayList<TaskFuture>(tasks.size());
+		for (Deferrable task : tasks) {
+			handles.add(defer(task, queueName));
+		}
+		return handles;
+	}
+	
+	/**
+	 * Stops accepting new tasks, and waits for the tasks already deferred to
+	 * finish, including any delayed tasks or retries that are yet to run.
+	 * Those still pending when the timeout elapses are abandoned.
+	 * 
+	 * @return true if every queue drained within the timeout, false if some
+	 * tasks were still waiting or running when it elapsed.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			shutdown = true;
+			for (long remaining = unit.toNanos(timeout); outstandingTasks > 0 && remaining > 0; remaining = deadline - System.nanoTime()) {
+				NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		retryScheduler.shutdownNow();
+		timingWheel.stop();
+		for (FairScheduler scheduler : queues.values()) {
+			scheduler.shutdown();
+		}
+		try {
+			for (FairScheduler scheduler : queues.values()) {
+				if (!scheduler.awaitTermination(deadline - System.nanoTime())) {
+					return false;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				if (sharedWorkers != null) {
+					sharedWorkers.stop();
+				}
+			}
+		}
+		synchronized (this) {
+			return outstandingTasks == 0;
+		}
+	}
+	
+	private synchronized void taskStarted() {
+		if (shutdown) {
+			throw new RejectedExecutionException("Deferrer has been shut down");
+		}
+		outstandingTasks++;
+	}
+	
+	private synchronized void taskFinished() {
+		if (--outstandingTasks == 0) {
+			notifyAll();
+		}
+	}
+	
+	private QueueConfiguration configurationOf(String queueName) {
+		QueueConfiguration configuration = queueConfigurations.get(queueName);
+		return configuration == null ? defaultConfiguration : configuration;
+	}
+	
+	private ConcurrentMap<Class<?>, TaskClassConfiguration> taskClassConfigurationsOf(String queueName) {
+		ConcurrentMap<Class<?>, TaskClassConfiguration> configurations = taskClassConfigurations.get(queueName);
+		if (configurations == null) {
+			configurations = new ConcurrentHashMap<Class<?>, TaskClassConfiguration>();
+			ConcurrentMap<Class<?>, TaskClassConfiguration> existingConfigurations = taskClassConfigurations.putIfAbsent(queueName, configurations);
+			if (existingConfigurations != null) {
+				configurations = existingConfigurations;
+			}
+		}
+		return configurations;
+	}
+	
+	private FairScheduler queue(String queueName) {
+		FairScheduler scheduler = queues.get(queueName);
+		if (scheduler == null) {
+			scheduler = createSchedulerFor(queueName);
+			FairScheduler existingScheduler = queues.putIfAbsent(queueName, scheduler);
+			if (existingScheduler != null) {
+				scheduler.shutdown();
+				scheduler = existingScheduler;
+			}
+		}
+		return scheduler;
+	}
+
+	private FairScheduler createSchedulerFor(String queueName) {
+		QueueConfiguration configuration = configurationOf(queueName);
+		ExecutorService executor = null;
+		if (configuration.isVirtualThreads()) {
+			executor = createVirtualThreadExecutorFor(queueName);
+		}
+		if (executor == null && configuration.isSharedWorkers()) {
+			executor = sharedWorkers().newLane(configuration.getWeight());
+		}
+		if (executor == null) {
+			// the scheduler never dispatches more tasks than there are threads, so the pool's own queue stays short
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+					configuration.getConcurrency(), configuration.getConcurrency(),
+					IDLE_THREAD_TIMEOUT_SECONDS, SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NamedThreadFactory("defer-" + queueName));
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return new FairScheduler(executor, configuration.getConcurrency(), configuration.getCapacity(),
+				new RetryRejectingPolicy(configuration.getRejectionPolicy()), taskClassConfigurationsOf(queueName));
+	}
+	
+	private synchronized WorkStealingPool sharedWorkers() {
+		if (sharedWorkers == null) {
+			sharedWorkers = new WorkStealingPool(sharedWorkerThreads, "defer-shared");
+		}
+		return sharedWorkers;
+	}
+	
+	/**
+	 * Virtual threads are cheap to start and aren't meant to be pooled, so
+	 * each task is handed straight to a new thread, which ends with it - the
+	 * scheduler's limit on running tasks is the only limit on threads.
+	 * 
+	 * @return The executor, or null if virtual threads aren't supported.
+	 */
+	private ThreadPoolExecutor createVirtualThreadExecutorFor(String queueName) {
+		ThreadFactory threadFactory = VirtualThreads.factory("defer-" + queueName);
+		if (threadFactory == null) {
+			log.warning("Virtual threads need Java 21 or later - running '" + queueName + "' queue on platform threads");
+			return null;
+		}
+		if (!VirtualThreads.isTracingPinnedThreads()) {
+			log.info("Running '" + queueName + "' queue on virtual threads - run with -D" + VirtualThreads.TRACE_PINNED_THREADS_PROPERTY
+					+ "=short to report tasks that pin their carrier thread");
+		}
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+	}
+	
+	/**
+	 * Applies the queue's configured rejection policy to tasks submitted by
+	 * their deferring thread only. A delayed task or retry that finds the
+	 * queue full must not be run on the timer's thread by a caller-runs
+	 * policy, or silently discarded - it's rejected, and treated as a
+	 * further failed attempt.
+	 * 
+	 * <p>A queue on shared workers has no pool of its own to pass the
+	 * policy, so it is passed null - and a caller-runs policy, which would
+	 * check the pool for shutdown, is carried out here instead. The deferrer
+	 * has already checked it isn't shut down.
+	 */
+	private static class RetryRejectingPolicy implements RejectedExecutionHandler {
+		private final RejectedExecutionHandler rejectionPolicy;
+		
+		RetryRejectingPolicy(RejectedExecutionHandler rejectionPolicy) {
+			this.rejectionPolicy = rejectionPolicy;
+		}
+
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (runnable instanceof TaskExecution && ((TaskExecution) runnable).isResubmission()) {
+				throw new RejectedExecutionException("Queue is full");
+			}
+			if (executor == null && rejectionPolicy instanceof ThreadPoolExecutor.CallerRunsPolicy) {
+				runnable.run();
+				return;
+			}
+			rejectionPolicy.rejectedExecution(runnable, executor);
+		}
+	}
+	
+	/**
+	 * One deferred task, through all its attempts.
+	 */
+	private class TaskExecution implements Runnable {
+		private final Deferrable task;
+		/** The class the task is scheduled and measured as. */
+		final Class<? extends Deferrable> taskClass;
+		private final String queueName;
+		private final String taskName;
+		private final RetryPolicy retryPolicy;
+		final TaskFuture handle = new TaskFuture();
+		volatile int failedAttempts = 0;
+		volatile boolean delayed = false;
+
+		TaskExecution(Deferrable task, String queueName, String taskName, RetryPolicy retryPolicy) {
+			this.task = task;
+			this.taskClass = Deferrables.taskClassOf(task);
+			this.queueName = queueName;
+			this.taskName = taskName;
+			this.retryPolicy = retryPolicy;
+		}
+		
+		boolean isResubmission() {
+			return delayed || failedAttempts > 0;
+		}
+		
+		void start() {
+			taskStarted();
+			if (taskName == null) {
+				return;
+			}
+			namedTasksDeferred.incrementAndGet();
+			if (namedTasks.putIfAbsent(taskName, this) != null) {
+				duplicateTasksRejected.incrementAndGet();
+				taskFinished();
+				throw new DuplicateTaskException(taskName);
+			}
+		}
+		
+		void finish() {
+			releaseName();
+			taskFinished();
+		}
+		
+		/**
+		 * Called before the handle is completed, so that a caller waiting on
+		 * the handle can reuse the name straight away.
+		 */
+		private void releaseName() {
+			if (taskName != null) {
+				namedTasks.remove(taskName, this);
+			}
+		}
+
+		public void run() {
+			if (handle.isCancelled()) {
+				finish();
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				task.run();
+				deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.SUCCEEDED, System.nanoTime() - start);
+				succeeded();
+			} catch (PermanentTaskFailure e) {
+				deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.FAILED_PERMANENTLY, System.nanoTime() - start);
+				log.log(INFO, "Permanent failure of task on '" + queueName + "' queue - dropping it", e);
+				releaseName();
+				handle.failedPermanently();
+				finish();
+			} catch (RuntimeException e) {
+				deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.FAILED, System.nanoTime() - start);
+				log.log(WARNING, "Task on '" + queueName + "' queue failed", e);
+				failed(e);
+			} catch (Error e) { // not retried - but the task must still be finished, or it would hold up shutdown forever
+				deferMetrics.taskExecuted(queueName, taskClass, TaskOutcome.FAILED, System.nanoTime() - start);
+				log.log(SEVERE, "Task on '" + queueName + "' queue failed with an error - dropping it", e);
+				releaseName();
+				handle.failed(e);
+				finish();
+				throw e;
+			}
+		}
+		
+		private void succeeded() {
+			releaseName();
+			handle.succeeded();
+			finish();
+		}
+		
+		private void failed(RuntimeException failure) {
+			int attempts = ++failedAttempts;
+			if (!retryPolicy.shouldRetryAfter(attempts) || handle.isCancelled()) {
+				deadLetter(failure);
+				return;
+			}
+			long delayMillis = retryPolicy.delayMillisAfter(attempts, jitter);
+			log.log(FINE, "Retrying task on '" + queueName + "' queue in " + delayMillis + "ms");
+			try {
+				retryScheduler.schedule(new Resubmission(this, failure), delayMillis, MILLISECONDS);
+			} catch (RejectedExecutionException e) { // the deferrer has been shut down without draining
+				deadLetter(failure);
+			}
+		}
+		
+		private void deadLetter(RuntimeException failure) {
+			try {
+				deadLetterSink.deadLetter(task, queueName, failedAttempts, failure);
+			} catch (RuntimeException e) {
+				log.log(SEVERE, "Dead-letter sink failed", e);
+			} finally {
+				releaseName();
+				handle.failed(failure);
+				finish();
+			}
+		}
+	}
+	
+	/**
+	 * Submits a delayed task or retry to its queue, when it's due.
+	 */
+	private class Resubmission implements Runnable {
+		private final TaskExecution execution;
+		private final RuntimeException lastFailure;
+		
+		/**
+		 * @param lastFailure The failure of the previous attempt, or null if
+		 * this is the first.
+		 */
+		Resubmission(TaskExecution execution, RuntimeException lastFailure) {
+			this.execution = execution;
+			this.lastFailure = lastFailure;
+		}
+
+		public void run() {
+			try {
+				queue(execution.queueName).execute(execution, execution.taskClass);
+			} catch (RejectedExecutionException e) {
+				log.log(WARNING, "Couldn't resubmit task to '" + execution.queueName + "' queue", e);
+				execution.failed(lastFailure == null ? e : lastFailure);
+			}
+		}
+	}
+	
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String namePrefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		NamedThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
@@ -0,0 +1,232 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches the tasks of one queue to its thread pool, so that no one
+ * class of task can take every thread.
+ *
+ * <p>Tasks wait in a sub-queue per task class, and no more than the
+ * class's configured concurrency are dispatched at once. Classes with tasks
+ * waiting take turns by deficit round robin: each turn, a class may
+ * dispatch as many tasks as its weight - so while threads are scarce,
+ * classes are served in proportion to their weights, however quickly each
+ * is being deferred. A class at its concurrency limit loses its turn.
+ *
+ * <p>Task class configurations are read on every dispatch, so they can be
+ * changed while the queue is running.
+ */
+class FairScheduler {
+
+	private static final Logger log = Logger.getLogger(FairScheduler.class.getName());
+
+	private final ExecutorService executor;
+	private final int concurrency;
+	private final int capacity;
+	private final RejectedExecutionHandler rejectionPolicy;
+	private final ConcurrentMap<Class<?>, TaskClassConfiguration> taskClassConfigurations;
+	private final ConcurrentMap<Class<?>, SubQueue> subQueues = new ConcurrentHashMap<Class<?>, SubQueue>();
+
+	/** Sub-queues with tasks waiting, in turn order - guarded by <code>this</code>, as are the counts. */
+	private final Queue<SubQueue> turns = new LinkedList<SubQueue>();
+	private int running = 0;
+	private int waiting = 0;
+
+	/**
+	 * @param executor Runs dispatched tasks - never more than
+	 * <code>concurrency</code> at once, so it needn't queue any.
+	 * @param capacity The most tasks that may wait to be dispatched before
+	 * the rejection policy applies.
+	 * @param rejectionPolicy Passed the executor if it is a
+	 * {@link ThreadPoolExecutor}, or else null.
+	 * @param taskClassConfigurations Live configurations by task class.
+	 */
+	FairScheduler(ExecutorService executor, int concurrency, int capacity, RejectedExecutionHandler rejectionPolicy,
+			ConcurrentMap<Class<?>, TaskClassConfiguration> taskClassConfigurations) {
+		this.executor = executor;
+		this.concurrency = concurrency;
+		this.capacity = capacity;
+		this.rejectionPolicy = rejectionPolicy;
+		this.taskClassConfigurations = taskClassConfigurations;
+	}
+
+	/**
+	 * Queues a task to be run when its class has a turn and a thread is free,
+	 * applying the rejection policy if the queue is full.
+	 */
+	void execute(Runnable task, Class<?> taskClass) {
+		SubQueue subQueue = subQueueFor(taskClass);
+		boolean full;
+		synchronized (this) {
+			full = waiting >= capacity;
+			if (!full) {
+				if (subQueue.tasks.isEmpty()) {
+					turns.add(subQueue);
+				}
+				subQueue.tasks.add(task);
+				subQueue.waiting.incrementAndGet();
+				waiting++;
+			}
+		}
+		if (full) {
+			rejectionPolicy.rejectedExecution(task, executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null);
+		} else {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Dispatches waiting tasks for as long as there are threads free and
+	 * classes below their concurrency limit - to be called whenever either
+	 * may have changed.
+	 */
+	void dispatch() {
+		List<Dispatched> dispatched = null;
+		synchronized (this) {
+			while (running < concurrency) {
+				SubQueue subQueue = nextTurn();
+				if (subQueue == null) {
+					break;
+				}
+				Runnable task = subQueue.tasks.poll();
+				subQueue.waiting.decrementAndGet();
+				subQueue.running.incrementAndGet();
+				waiting--;
+				running++;
+				if (dispatched == null) {
+					dispatched = new ArrayList<Dispatched>();
+				}
+				dispatched.add(new Dispatched(task, subQueue));
+			}
+		}
+		if (dispatched != null) {
+			for (Dispatched task : dispatched) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) { // the deferrer has been shut down without draining
+					log.log(WARNING, "Abandoning task after shutdown", e);
+					release(task.subQueue);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The sub-queue whose turn it is to dispatch a task, or null if
+	 * every class with tasks waiting is at its concurrency limit.
+	 */
+	private SubQueue nextTurn() {
+		for (int skipped = 0; skipped < turns.size(); skipped++) {
+			SubQueue subQueue = turns.peek();
+			TaskClassConfiguration configuration = configurationOf(subQueue.taskClass);
+			if (subQueue.running.get() >= configuration.getConcurrency()) {
+				subQueue.deficit = 0;
+				turns.add(turns.poll());
+				continue;
+			}
+			if (subQueue.deficit == 0) {
+				subQueue.deficit = configuration.getWeight();
+			}
+			if (--subQueue.deficit == 0 || subQueue.tasks.size() == 1) {
+				turns.poll();
+				if (subQueue.tasks.size() > 1) {
+					turns.add(subQueue);
+				} else {
+					subQueue.deficit = 0;
+				}
+			}
+			return subQueue;
+		}
+		return null;
+	}
+
+	private synchronized void release(SubQueue subQueue) {
+		subQueue.running.decrementAndGet();
+		running--;
+	}
+
+	int runningTasks(Class<?> taskClass) {
+		SubQueue subQueue = subQueues.get(taskClass);
+		return subQueue == null ? 0 : subQueue.running.get();
+	}
+
+	int waitingTasks(Class<?> taskClass) {
+		SubQueue subQueue = subQueues.get(taskClass);
+		return subQueue == null ? 0 : subQueue.waiting.get();
+	}
+
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+		return executor.awaitTermination(timeoutNanos, NANOSECONDS);
+	}
+
+	private TaskClassConfiguration configurationOf(Class<?> taskClass) {
+		TaskClassConfiguration configuration = taskClassConfigurations.get(taskClass);
+		return configuration == null ? TaskClassConfiguration.DEFAULT : configuration;
+	}
+
+	private SubQueue subQueueFor(Class<?> taskClass) {
+		SubQueue subQueue = subQueues.get(taskClass);
+		if (subQueue == null) {
+			subQueue = new SubQueue(taskClass);
+			SubQueue existingSubQueue = subQueues.putIfAbsent(taskClass, subQueue);
+			if (existingSubQueue != null) {
+				subQueue = existingSubQueue;
+			}
+		}
+		return subQueue;
+	}
+
+	/**
+	 * The waiting tasks of one class. The counts are kept apart from the
+	 * scheduler's lock so they can be read without it.
+	 */
+	private static class SubQueue {
+		final Class<?> taskClass;
+		final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger waiting = new AtomicInteger();
+		/** Tasks left to dispatch in the current turn. */
+		int deficit = 0;
+
+		SubQueue(Class<?> taskClass) {
+			this.taskClass = taskClass;
+		}
+	}
+
+	private class Dispatched implements Runnable {
+		private final Runnable task;
+		final SubQueue subQueue;
+
+		Dispatched(Runnable task, SubQueue subQueue) {
+			this.task = task;
+			this.subQueue = subQueue;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				release(subQueue);
+				dispatch();
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.madgag.defer;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * How a named queue of an {@link ExecutorServiceDeferrer} executes its
+ * tasks: how many run at once, how many may wait, what happens to a task
+ * deferred when the queue is full, how failed tasks are retried, and
+ * whether tasks run on virtual threads, or on workers shared with other
+ * queues.
+ * 
+ * <p>Instances are immutable - the <code>with...</code> methods return
+ * modified copies.
+ */
+public class QueueConfiguration {
+	
+	/**
+	 * The configuration used for queues that haven't been configured: one
+	 * thread per available processor, and up to 10000 waiting tasks, with
+	 * tasks deferred to a full queue rejected, and failed tasks retried
+	 * according to {@link RetryPolicy#DEFAULT}.
+	 */
+	public static final QueueConfiguration DEFAULT = new QueueConfiguration(
+			Runtime.getRuntime().availableProcessors(), 10000, new ThreadPoolExecutor.AbortPolicy(), RetryPolicy.DEFAULT, false, false, 1);
+	
+	private final int concurrency;
+	private final int capacity;
+	private final RejectedExecutionHandler rejectionPolicy;
+	private final RetryPolicy retryPolicy;
+	private final boolean virtualThreads;
+	private final boolean sharedWorkers;
+	private final int weight;
+	
+	private QueueConfiguration(int concurrency, int capacity, RejectedExecutionHandler rejectionPolicy, RetryPolicy retryPolicy,
+			boolean virtualThreads, boolean sharedWorkers, int weight) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		}
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1: " + weight);
+		}
+		this.concurrency = concurrency;
+		this.capacity = capacity;
+		this.rejectionPolicy = rejectionPolicy;
+		this.retryPolicy = retryPolicy;
+		this.virtualThreads = virtualThreads;
+		this.sharedWorkers = sharedWorkers;
+		this.weight = weight;
+	}
+	
+	/**
+	 * @param concurrency The maximum number of the queue's tasks that may run at once.
+	 */
+	public QueueConfiguration withConcurrency(int concurrency) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param capacity The maximum number of the queue's tasks that may wait
+	 * for a thread before the rejection policy applies.
+	 */
+	public QueueConfiguration withCapacity(int capacity) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param rejectionPolicy What to do with a task deferred when the queue is
+	 * full - for instance {@link ThreadPoolExecutor.AbortPolicy} to fail fast
+	 * with a {@link java.util.concurrent.RejectedExecutionException}, or
+	 * {@link ThreadPoolExecutor.CallerRunsPolicy} to apply back-pressure by
+	 * running the task on the deferring thread. The policy should either run
+	 * the task or throw - policies that silently discard tasks leave their
+	 * handles incomplete. A queue on shared workers has no thread pool of its
+	 * own, so passes the policy a null executor.
+	 */
+	public QueueConfiguration withRejectionPolicy(RejectedExecutionHandler rejectionPolicy) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param retryPolicy How tasks failing with an exception other than
+	 * {@link PermanentTaskFailure} are retried.
+	 */
+	public QueueConfiguration withRetryPolicy(RetryPolicy retryPolicy) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param virtualThreads Whether to run each task on a virtual thread of
+	 * its own, rather than on a pool of platform threads - so that a task
+	 * blocked on I/O doesn't hold on to a thread, and the concurrency can be
+	 * set as high as the number of tasks that may usefully wait on I/O at
+	 * once. Requires Java 21 or later: on earlier versions, the queue falls
+	 * back to a pool of platform threads.
+	 */
+	public QueueConfiguration withVirtualThreads(boolean virtualThreads) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param sharedWorkers Whether to run the queue's tasks on the workers
+	 * its deferrer shares between such queues, rather than on a pool of its
+	 * own - so that many queues, each busy only now and then, can keep every
+	 * core busy between them without a pool each. The concurrency still
+	 * limits how many of the queue's tasks run at once. Virtual threads,
+	 * where supported, take precedence.
+	 */
+	public QueueConfiguration withSharedWorkers(boolean sharedWorkers) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	/**
+	 * @param weight The queue's share of the shared workers while they are
+	 * all busy, relative to other queues on them. Ignored by queues on a
+	 * pool of their own.
+	 */
+	public QueueConfiguration withWeight(int weight) {
+		return new QueueConfiguration(concurrency, capacity, rejectionPolicy, retryPolicy, virtualThreads, sharedWorkers, weight);
+	}
+	
+	public int getConcurrency() {
+		return concurrency;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public RejectedExecutionHandler getRejectionPolicy() {
+		return rejectionPolicy;
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	public boolean isSharedWorkers() {
+		return sharedWorkers;
+	}
+	
+	public int getWeight() {
+		return weight;
+	}
+}
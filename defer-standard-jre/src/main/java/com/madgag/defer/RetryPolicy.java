@@ -0,0 +1,84 @@
+package com.madgag.defer;
+
+import java.util.Random;
+
+/**
+ * How an {@link ExecutorServiceDeferrer} queue retries tasks that fail with
+ * an exception other than {@link PermanentTaskFailure}: up to a maximum
+ * number of attempts, waiting an exponentially increasing, capped, and fully
+ * jittered delay between them - so that tasks failing together against a
+ * struggling downstream service spread their retries out rather than
+ * returning in a synchronised storm.
+ * 
+ * <p>Instances are immutable.
+ */
+public class RetryPolicy {
+	
+	/**
+	 * Never retry - a failed task goes straight to the dead-letter sink.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+	
+	/**
+	 * Up to 5 attempts, with the delay ceiling starting at 1 second and
+	 * capped at 1 minute.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(5, 1000, 60 * 1000);
+	
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	/**
+	 * @param maxAttempts The maximum number of times a task is run, including the first.
+	 * @param baseDelayMillis The ceiling on the delay before the first retry,
+	 * doubling for each retry after it.
+	 * @param maxDelayMillis The cap on the delay ceiling.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+		}
+		if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("delays must satisfy 0 <= baseDelayMillis <= maxDelayMillis: "
+					+ baseDelayMillis + ", " + maxDelayMillis);
+		}
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+	
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+	
+	/**
+	 * @return true if a task that has failed this many times should be run again.
+	 */
+	boolean shouldRetryAfter(int failedAttempts) {
+		return failedAttempts < maxAttempts;
+	}
+
+	/**
+	 * Full jitter: a delay chosen uniformly between zero and the capped
+	 * exponential ceiling for this attempt.
+	 * 
+	 * @param failedAttempts The number of times the task has failed so far, at least 1.
+	 */
+	long delayMillisAfter(int failedAttempts, Random random) {
+		long ceiling = baseDelayMillis;
+		for (int i = 1; i < failedAttempts && ceiling < maxDelayMillis; ++i) {
+			ceiling *= 2;
+		}
+		ceiling = Math.min(ceiling, maxDelayMillis);
+		return ceiling == 0 ? 0 : (long) (random.nextDouble() * (ceiling + 1));
+	}
+}
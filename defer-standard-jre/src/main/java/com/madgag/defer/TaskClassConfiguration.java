@@ -0,0 +1,57 @@
+package com.madgag.defer;
+
+/**
+ * How the tasks of one class share the threads of their
+ * {@link ExecutorServiceDeferrer} queue with tasks of other classes: how
+ * many may run at once, and their weight when classes take turns at
+ * threads that fall free.
+ *
+ * <p>Instances are immutable - the <code>with...</code> methods return
+ * modified copies.
+ */
+public class TaskClassConfiguration {
+
+	/**
+	 * The configuration used for task classes that haven't been configured:
+	 * limited only by the concurrency of their queue, with a weight of one.
+	 */
+	public static final TaskClassConfiguration DEFAULT = new TaskClassConfiguration(Integer.MAX_VALUE, 1);
+
+	private final int concurrency;
+	private final int weight;
+
+	private TaskClassConfiguration(int concurrency, int weight) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+		}
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1: " + weight);
+		}
+		this.concurrency = concurrency;
+		this.weight = weight;
+	}
+
+	/**
+	 * @param concurrency The maximum number of tasks of the class that may
+	 * run at once on the queue.
+	 */
+	public TaskClassConfiguration withConcurrency(int concurrency) {
+		return new TaskClassConfiguration(concurrency, weight);
+	}
+
+	/**
+	 * @param weight How many of the class's waiting tasks are started in
+	 * each of its turns, relative to other classes.
+	 */
+	public TaskClassConfiguration withWeight(int weight) {
+		return new TaskClassConfiguration(concurrency, weight);
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+}
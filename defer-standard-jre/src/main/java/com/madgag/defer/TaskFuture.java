@@ -0,0 +1,72 @@
+package com.madgag.defer;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handle of a task deferred to an {@link ExecutorServiceDeferrer},
+ * completed when the task has finished with, whichever thread its last
+ * attempt ran on.
+ *
+ * <p>As a {@link java.util.concurrent.Future}, it completes normally when
+ * the task has run successfully or failed permanently, and fails with the
+ * final exception thrown by the task if it exhausted its retries. As a
+ * {@link Completion}, it is failed in either of the latter cases, or if it
+ * was cancelled - and its callbacks are called on the thread that finished
+ * with the task.
+ */
+public class TaskFuture extends FutureTask<Object> implements Completion {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {}
+	};
+
+	private final SettableCompletion completion = new SettableCompletion();
+	private volatile boolean failedPermanently = false;
+
+	TaskFuture() {
+		super(NOTHING, null);
+	}
+
+	void succeeded() {
+		set(null);
+	}
+
+	void failedPermanently() {
+		failedPermanently = true;
+		set(null);
+	}
+
+	void failed(Throwable failure) {
+		setException(failure);
+	}
+
+	@Override
+	protected void done() {
+		boolean failed = failedPermanently || isCancelled();
+		if (!failed) {
+			try {
+				get();
+			} catch (Exception e) {
+				failed = true;
+			}
+		}
+		completion.complete(failed);
+	}
+
+	public boolean isFailed() {
+		return completion.isFailed();
+	}
+
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return completion.await(timeout, unit);
+	}
+
+	public void whenDone(final CompletionCallback callback) {
+		completion.whenDone(new CompletionCallback() {
+			public void done(Completion completion) {
+				callback.done(TaskFuture.this);
+			}
+		});
+	}
+}
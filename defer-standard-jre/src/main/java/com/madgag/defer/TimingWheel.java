@@ -0,0 +1,192 @@
+package com.madgag.defer;
+
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A hierarchical timing wheel, running tasks at a deadline with a resolution
+ * of one tick.
+ *
+ * <p>Each level is a ring of {@value #SLOTS_PER_LEVEL} slots, a slot of one
+ * level spanning a whole revolution of the level below. A task is placed in
+ * the lowest level whose span reaches its deadline, and is cascaded down a
+ * level each time the wheel reaches its slot - so scheduling and expiring a
+ * task costs constant time, however many tasks are waiting, unlike the
+ * heap behind a <code>DelayQueue</code> or <code>ScheduledThreadPoolExecutor</code>.
+ *
+ * <p>A single daemon thread, started when the first task is scheduled,
+ * advances the wheel once per tick while any tasks are waiting, and runs
+ * expired tasks itself - so they should do no more than hand work on to
+ * another thread.
+ */
+class TimingWheel {
+
+	private static final Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+	private static final int SLOT_BITS = 6;
+	static final int SLOTS_PER_LEVEL = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS_PER_LEVEL - 1;
+
+	/**
+	 * Enough levels to span 64^6 ticks - over twenty years of 10ms ticks.
+	 * Tasks due even later wait in the top level, and are placed again
+	 * each time it comes round.
+	 */
+	private static final int LEVELS = 6;
+
+	private final long tickMillis;
+	private final String threadName;
+	@SuppressWarnings("unchecked")
+	private final List<Entry>[][] slots = new List[LEVELS][SLOTS_PER_LEVEL];
+
+	/** Guarded by <code>this</code>, as is all the wheel's state. */
+	private long currentTick;
+	private int pendingTasks = 0;
+	private Thread ticker;
+	private boolean stopped = false;
+
+	TimingWheel(long tickMillis, String threadName) {
+		this.tickMillis = tickMillis;
+		this.threadName = threadName;
+		this.currentTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * Schedules a task to run at a deadline, rounded up to the next tick.
+	 *
+	 * @return false if the deadline falls within the current tick, in which
+	 * case the task is not scheduled, and should be run straight away.
+	 * @throws IllegalStateException If the wheel has been stopped.
+	 */
+	synchronized boolean schedule(Runnable task, long deadlineMillis) {
+		if (stopped) {
+			throw new IllegalStateException("Timing wheel has been stopped");
+		}
+		if (pendingTasks == 0) {
+			// nothing to cascade, so the wheel can jump straight to the present
+			currentTick = Math.max(currentTick, System.currentTimeMillis() / tickMillis);
+		}
+		long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+		if (deadlineTick <= currentTick) {
+			return false;
+		}
+		place(new Entry(task, deadlineTick));
+		if (pendingTasks++ == 0) {
+			startOrWakeTicker();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the wheel. Tasks still waiting are abandoned.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	synchronized int pendingTasks() {
+		return pendingTasks;
+	}
+
+	private void place(Entry entry) {
+		long ticksToGo = entry.deadlineTick - currentTick;
+		int level = Math.min((63 - Long.numberOfLeadingZeros(ticksToGo)) / SLOT_BITS, LEVELS - 1);
+		int slot = (int) (entry.deadlineTick >>> (level * SLOT_BITS)) & SLOT_MASK;
+		List<Entry> entries = slots[level][slot];
+		if (entries == null) {
+			entries = slots[level][slot] = new ArrayList<Entry>();
+		}
+		entries.add(entry);
+	}
+
+	private void startOrWakeTicker() {
+		if (ticker == null) {
+			ticker = new Thread(new Ticker(), threadName);
+			ticker.setDaemon(true);
+			ticker.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Advances the wheel by one tick, cascading the slots it reaches in the
+	 * upper levels, highest first.
+	 *
+	 * @return The tasks that expire on the new tick, or null if there are none.
+	 */
+	private List<Entry> advance() {
+		currentTick++;
+		int topLevel = 0;
+		while (topLevel < LEVELS - 1 && (currentTick & ((1L << ((topLevel + 1) * SLOT_BITS)) - 1)) == 0) {
+			topLevel++;
+		}
+		for (int level = topLevel; level > 0; level--) {
+			List<Entry> cascading = take(level, (int) (currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+			if (cascading != null) {
+				for (Entry entry : cascading) {
+					place(entry);
+				}
+			}
+		}
+		List<Entry> expired = take(0, (int) currentTick & SLOT_MASK);
+		if (expired != null) {
+			pendingTasks -= expired.size();
+		}
+		return expired;
+	}
+
+	private List<Entry> take(int level, int slot) {
+		List<Entry> entries = slots[level][slot];
+		slots[level][slot] = null;
+		return entries;
+	}
+
+	private class Ticker implements Runnable {
+		public void run() {
+			while (true) {
+				List<Entry> expired;
+				synchronized (TimingWheel.this) {
+					try {
+						while (!stopped && !dueToAdvance()) {
+							TimingWheel.this.wait(pendingTasks == 0 ? 0 : Math.max(1, (currentTick + 1) * tickMillis - System.currentTimeMillis()));
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (stopped) {
+						return;
+					}
+					expired = advance();
+				}
+				if (expired != null) {
+					for (Entry entry : expired) {
+						try {
+							entry.task.run();
+						} catch (RuntimeException e) {
+							log.log(SEVERE, "Scheduled task failed", e);
+						}
+					}
+				}
+			}
+		}
+
+		private boolean dueToAdvance() {
+			return pendingTasks > 0 && System.currentTimeMillis() >= (currentTick + 1) * tickMillis;
+		}
+	}
+
+	private static class Entry {
+		final Runnable task;
+		final long deadlineTick;
+
+		Entry(Runnable task, long deadlineTick) {
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.madgag.defer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The virtual threads of Java 21 and later, reached by reflection so that
+ * the library still runs on earlier versions.
+ *
+ * <p>A virtual thread that blocks while holding a monitor, or inside native
+ * code, pins the platform thread carrying it, and with enough pinned tasks
+ * a queue stalls. To find the tasks responsible, run with
+ * <code>-D{@value #TRACE_PINNED_THREADS_PROPERTY}=short</code>, which
+ * prints the stack of a virtual thread whenever it blocks while pinned - or
+ * record the <code>jdk.VirtualThreadPinned</code> event with Flight Recorder.
+ */
+class VirtualThreads {
+
+	static final String TRACE_PINNED_THREADS_PROPERTY = "jdk.tracePinnedThreads";
+
+	private static final Method OF_VIRTUAL = methodOrNull("java.lang.Thread", "ofVirtual");
+	private static final Method NAME = methodOrNull("java.lang.Thread$Builder", "name", String.class, long.class);
+	private static final Method FACTORY = methodOrNull("java.lang.Thread$Builder", "factory");
+	private static final Method IS_VIRTUAL = methodOrNull("java.lang.Thread", "isVirtual");
+
+	static boolean isSupported() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+	}
+
+	/**
+	 * @return A factory of virtual threads named after the prefix, or null
+	 * if virtual threads are not supported.
+	 */
+	static ThreadFactory factory(String namePrefix) {
+		if (!isSupported()) {
+			return null;
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix + "-", 1L);
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	static boolean isTracingPinnedThreads() {
+		return System.getProperty(TRACE_PINNED_THREADS_PROPERTY) != null;
+	}
+
+	private static Method methodOrNull(String className, String methodName, Class<?>... parameterTypes) {
+		try {
+			return Class.forName(className).getMethod(methodName, parameterTypes);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A fixed set of worker threads shared by many queues, so that queues used
+ * only now and then don't each need a thread pool of their own.
+ *
+ * <p>Each queue has a {@link Lane} of waiting tasks, homed on one worker.
+ * A worker takes turns between its home lanes, taking as many tasks from
+ * each as its weight in a turn - and when its home lanes are empty, it
+ * steals a task from the lane of another worker that has the most tasks
+ * waiting, for its weight. So the work of a busy queue spreads over every
+ * idle worker, however few queues are busy at once.
+ *
+ * <p>A worker with nothing to run or steal marks itself idle, looks once
+ * more, and parks until a task is added to a lane. A worker that takes a
+ * task while others are still waiting wakes another idle worker, so a burst
+ * of tasks fans out over the workers without the deferring thread having to
+ * wake each one.
+ */
+class WorkStealingPool {
+
+	private static final Logger log = Logger.getLogger(WorkStealingPool.class.getName());
+
+	private final Worker[] workers;
+	private final List<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+	private final AtomicInteger nextHome = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong stolenTasks = new AtomicLong();
+	private volatile boolean stopped = false;
+
+	WorkStealingPool(int threads, String namePrefix) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+			Thread thread = new Thread(workers[i], namePrefix + "-" + (i + 1));
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+		}
+		for (Worker worker : workers) {
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * @param weight How many tasks the lane's home worker takes from it in a
+	 * turn, and how strongly idle workers are drawn to steal from it.
+	 */
+	Lane newLane(int weight) {
+		Worker home = workers[(nextHome.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+		Lane lane = new Lane(home, weight);
+		lanes.add(lane);
+		home.homeLanes.add(lane);
+		return lane;
+	}
+
+	/**
+	 * @return The number of tasks run by a worker other than the home worker
+	 * of their lane.
+	 */
+	long stolenTasks() {
+		return stolenTasks.get();
+	}
+
+	/**
+	 * Stops the workers once they have finished the tasks they are running -
+	 * tasks still waiting in lanes are abandoned.
+	 */
+	void stop() {
+		stopped = true;
+		for (Worker worker : workers) {
+			LockSupport.unpark(worker.thread);
+		}
+	}
+
+	private void signal(Worker preferred) {
+		if (preferred.idle) {
+			LockSupport.unpark(preferred.thread);
+			return;
+		}
+		for (Worker worker : workers) {
+			if (worker.idle) {
+				LockSupport.unpark(worker.thread);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The tasks of one queue waiting for a worker. A lane never starts
+	 * threads of its own, and shutting it down stops it accepting tasks,
+	 * while those already accepted still run.
+	 */
+	class Lane extends AbstractExecutorService {
+		private final Worker home;
+		private final int weight;
+		/** Guarded by itself. */
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final Object drained = new Object();
+		private volatile boolean shutdown = false;
+
+		Lane(Worker home, int weight) {
+			this.home = home;
+			this.weight = weight;
+		}
+
+		public void execute(Runnable task) {
+			if (isShutdown() || stopped) {
+				throw new RejectedExecutionException("Queue has been shut down");
+			}
+			outstanding.incrementAndGet();
+			synchronized (tasks) {
+				tasks.add(task);
+			}
+			queued.incrementAndGet();
+			waiting.incrementAndGet();
+			signal(home);
+		}
+
+		public void shutdown() {
+			shutdown = true;
+			synchronized (drained) {
+				drained.notifyAll();
+			}
+		}
+
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			List<Runnable> abandoned = new ArrayList<Runnable>();
+			for (Runnable task = poll(); task != null; task = poll()) {
+				abandoned.add(task);
+				finished();
+			}
+			return abandoned;
+		}
+
+		public boolean isTerminated() {
+			return isShutdown() && outstanding.get() == 0;
+		}
+
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (drained) {
+				for (long remaining = unit.toNanos(timeout); !isTerminated(); remaining = deadline - System.nanoTime()) {
+					if (remaining <= 0) {
+						return false;
+					}
+					NANOSECONDS.timedWait(drained, remaining);
+				}
+			}
+			return true;
+		}
+
+		int waitingTasks() {
+			return queued.get();
+		}
+
+		private Runnable poll() {
+			Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+			}
+			if (task != null) {
+				queued.decrementAndGet();
+				waiting.decrementAndGet();
+			}
+			return task;
+		}
+
+		private void finished() {
+			if (outstanding.decrementAndGet() == 0) {
+				synchronized (drained) {
+					drained.notifyAll();
+				}
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+		final List<Lane> homeLanes = new CopyOnWriteArrayList<Lane>();
+		volatile boolean idle = false;
+		Thread thread;
+		/** The home lane whose turn it is, and the tasks it has left this turn - used only by this worker. */
+		private int turn = 0;
+		private int deficit = 0;
+
+		public void run() {
+			while (!stopped) {
+				Lane lane = nextHomeLane();
+				Runnable task = lane == null ? null : lane.poll();
+				if (task == null) {
+					lane = busiestOtherLane();
+					task = lane == null ? null : lane.poll();
+					if (task != null) {
+						stolenTasks.incrementAndGet();
+					}
+				}
+				if (task == null) {
+					if (!idle) {
+						idle = true; // then look once more, in case a task was added before anyone could see this
+					} else if (!stopped) {
+						LockSupport.park(this);
+					}
+					continue;
+				}
+				idle = false;
+				if (waiting.get() > 0) {
+					signal(this);
+				}
+				try {
+					task.run();
+				} catch (Throwable t) {
+					log.log(SEVERE, "Task threw from a shared worker", t);
+				} finally {
+					lane.finished();
+				}
+			}
+		}
+
+		/**
+		 * @return The home lane whose turn it is to give up a task, or null if
+		 * none has tasks waiting.
+		 */
+		private Lane nextHomeLane() {
+			int lanes = homeLanes.size();
+			for (int i = 0; i < lanes; i++) {
+				Lane lane = homeLanes.get(turn % lanes);
+				if (lane.waitingTasks() > 0) {
+					if (deficit == 0) {
+						deficit = lane.weight;
+					}
+					if (--deficit == 0) {
+						turn++;
+					}
+					return lane;
+				}
+				deficit = 0;
+				turn++;
+			}
+			return null;
+		}
+
+		private Lane busiestOtherLane() {
+			Lane busiest = null;
+			long mostWaiting = 0;
+			for (Lane lane : lanes) {
+				long weightedWaiting = (long) lane.waitingTasks() * lane.weight;
+				if (lane.home != this && weightedWaiting > mostWaiting) {
+					busiest = lane;
+					mostWaiting = weightedWaiting;
+				}
+			}
+			return busiest;
+		}
+	}
+}
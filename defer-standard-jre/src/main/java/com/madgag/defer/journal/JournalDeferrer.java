@@ -0,0 +1,332 @@
+package com.madgag.defer.journal;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.madgag.defer.DeadLetterSink;
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.DeferrableWrapper;
+import com.madgag.defer.Deferrer;
+import com.madgag.defer.DuplicateTaskException;
+import com.madgag.defer.ExecutorServiceDeferrer;
+import com.madgag.defer.PermanentTaskFailure;
+import com.madgag.defer.QueueConfiguration;
+import com.madgag.defer.TaskFuture;
+
+/**
+ * A {@link Deferrer} whose tasks survive a restart of the process, for
+ * deployments without an App Engine datastore.
+ * 
+ * <p>Each deferred task is serialized and appended to a journal of
+ * memory-mapped segment files, and executed by an
+ * {@link ExecutorServiceDeferrer}. When a task is finished with - it
+ * succeeds, fails permanently, or is dead-lettered - a tombstone is
+ * appended. On startup, every task without a tombstone is deferred again.
+ * 
+ * <p>The journal is forced to disk in the background once per flush
+ * interval, grouping together the appends of all concurrent deferrals, so
+ * deferring never waits for the disk. A process crash loses nothing; a
+ * machine crash loses at most the tasks deferred within the last flush
+ * interval. Old segments are compacted and deleted in the background too.
+ * 
+ * <p>A task's queue, name, and the absolute time at which it is due are
+ * journaled with it, so a delayed task that is replayed still waits for
+ * its ETA, or runs straight away if the ETA passed while the process was
+ * down.
+ * 
+ * <p>Tasks are executed at least once: a task that completes but whose
+ * tombstone is lost in a machine crash is run again.
+ */
+public class JournalDeferrer implements Deferrer<TaskFuture> {
+	
+	private static final Logger log = Logger.getLogger(JournalDeferrer.class.getName());
+	
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+	private static final long COMPACTION_INTERVAL_MILLIS = 10 * 1000;
+	private static final long REPLAY_BACKOFF_MILLIS = 10;
+	
+	private final SegmentLog segmentLog;
+	private final ExecutorServiceDeferrer executor;
+	private final ScheduledExecutorService maintenance;
+	
+	public JournalDeferrer(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS,
+				QueueConfiguration.DEFAULT, ExecutorServiceDeferrer.LOGGING_DEAD_LETTER_SINK);
+	}
+	
+	/**
+	 * Opens the journal in the given directory, and defers again any tasks
+	 * it holds that weren't finished with.
+	 * 
+	 * @param directory Where the journal's segment files are kept.
+	 * @param segmentSize The size of each segment file, which is also the
+	 * maximum size of a serialized task.
+	 * @param flushIntervalMillis How often the journal is forced to disk.
+	 * @param defaultConfiguration The configuration of the executor's queues.
+	 * @param deadLetterSink Receives tasks that have exhausted their retries.
+	 */
+	public JournalDeferrer(File directory, int segmentSize, long flushIntervalMillis,
+			QueueConfiguration defaultConfiguration, DeadLetterSink deadLetterSink) throws IOException {
+		this.segmentLog = new SegmentLog(directory, segmentSize);
+		this.executor = new ExecutorServiceDeferrer(defaultConfiguration, new TombstoningDeadLetterSink(deadLetterSink));
+		this.maintenance = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "defer-journal-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				segmentLog.flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, MILLISECONDS);
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					segmentLog.compact();
+				} catch (IOException e) {
+					log.log(WARNING, "Journal compaction failed", e);
+				}
+			}
+		}, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, MILLISECONDS);
+		replay();
+	}
+	
+	/**
+	 * The executor the journal's tasks run on, for configuring its queues.
+	 */
+	public ExecutorServiceDeferrer getExecutor() {
+		return executor;
+	}
+	
+	public TaskFuture defer(Deferrable task) {
+		return defer(task, ExecutorServiceDeferrer.DEFAULT_QUEUE_NAME);
+	}
+	
+	/**
+	 * @throws JournalFailureException If the task can't be serialized, or
+	 * appended to the journal.
+	 * @throws RejectedExecutionException If the executor rejects the task -
+	 * in which case it is removed from the journal again.
+	 */
+	public TaskFuture defer(Deferrable task, String queueName) {
+		return defer(task, DeferOptions.Builder.queueName(queueName));
+	}
+	
+	/**
+	 * @throws JournalFailureException If the task can't be serialized, or
+	 * appended to the journal.
+	 * @throws DuplicateTaskException If a task with the same name is still
+	 * unfinished - in which case this task is removed from the journal again.
+	 * @throws RejectedExecutionException If the executor rejects the task -
+	 * in which case it is removed from the journal again.
+	 */
+	public TaskFuture defer(Deferrable task, DeferOptions options) {
+		String queueName = options.getQueueName() == null ? ExecutorServiceDeferrer.DEFAULT_QUEUE_NAME : options.getQueueName();
+		Long deadlineMillis = options.getDeadlineMillis(System.currentTimeMillis());
+		long taskId;
+		try {
+			taskId = segmentLog.appendTask(serialize(task, queueName, options.getTaskName(), deadlineMillis));
+		} catch (IOException e) {
+			throw new JournalFailureException("Couldn't journal task", e);
+		}
+		try {
+			return executor.defer(new JournaledTask(taskId, task, segmentLog), executorOptions(queueName, options.getTaskName(), deadlineMillis));
+		} catch (RuntimeException e) {
+			tombstone(segmentLog, taskId);
+			throw e;
+		}
+	}
+
+	public List<TaskFuture> deferAll(Collection<? extends Deferrable> tasks, String queueName) {
+		List<TaskFuture> handles = new ArrayList<TaskFuture>(tasks.size());
+		for (Deferrable task : tasks) {
+			handles.add(defer(task, queueName));
+		}
+		return handles;
+	}
+	
+	/**
+	 * Stops accepting new tasks, waits for the tasks already deferred to
+	 * finish, and closes the journal. Tasks still unfinished when the timeout
+	 * elapses are left in the journal, to be run when it is next opened.
+	 * 
+	 * @return true if every task finished within the timeout.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+		boolean drained = executor.shutdown(timeout, unit);
+		maintenance.shutdownNow();
+		segmentLog.close();
+		return drained;
+	}
+	
+	/**
+	 * Compacts the journal straight away, rather than waiting for the
+	 * background compaction.
+	 */
+	public void compact() throws IOException {
+		segmentLog.compact();
+	}
+	
+	int segmentCount() {
+		return segmentLog.segmentCount();
+	}
+	
+	private void replay() throws IOException {
+		Map<Long, byte[]> recoveredTasks = segmentLog.takeRecoveredTasks();
+		for (Map.Entry<Long, byte[]> entry : recoveredTasks.entrySet()) {
+			long taskId = entry.getKey();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.getValue()));
+			String queueName = in.readUTF();
+			String taskName = in.readBoolean() ? in.readUTF() : null;
+			Long deadlineMillis = in.readBoolean() ? in.readLong() : null;
+			Deferrable task;
+			try {
+				task = (Deferrable) new ObjectInputStream(in).readObject();
+			} catch (Exception e) {
+				log.log(SEVERE, "Couldn't deserialize journaled task " + taskId + " - discarding it", e);
+				tombstone(segmentLog, taskId);
+				continue;
+			}
+			deferRecovered(new JournaledTask(taskId, task, segmentLog), executorOptions(queueName, taskName, deadlineMillis));
+		}
+	}
+
+	/**
+	 * Recovered tasks may outnumber the space in their queue, so they are
+	 * fed to it as fast as it accepts them. A recovered task whose name is
+	 * taken by one replayed before it - left live by a process that died
+	 * before tombstoning the duplicate - is tombstoned.
+	 */
+	private void deferRecovered(JournaledTask task, DeferOptions options) throws IOException {
+		while (true) {
+			try {
+				executor.defer(task, options);
+				return;
+			} catch (DuplicateTaskException e) {
+				log.warning("Discarding journaled task " + task.taskId + " - " + e.getMessage());
+				tombstone(segmentLog, task.taskId);
+				return;
+			} catch (RejectedExecutionException e) {
+				try {
+					Thread.sleep(REPLAY_BACKOFF_MILLIS);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while replaying journal");
+				}
+			}
+		}
+	}
+	
+	private static DeferOptions executorOptions(String queueName, String taskName, Long deadlineMillis) {
+		DeferOptions options = DeferOptions.Builder.queueName(queueName).taskName(taskName);
+		return deadlineMillis == null ? options : options.etaMillis(deadlineMillis);
+	}
+	
+	static byte[] serialize(Deferrable task, String queueName, String taskName, Long deadlineMillis) {
+		try {
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			DataOutputStream dataOut = new DataOutputStream(bytesOut);
+			dataOut.writeUTF(queueName);
+			dataOut.writeBoolean(taskName != null);
+			if (taskName != null) {
+				dataOut.writeUTF(taskName);
+			}
+			dataOut.writeBoolean(deadlineMillis != null);
+			if (deadlineMillis != null) {
+				dataOut.writeLong(deadlineMillis);
+			}
+			ObjectOutputStream objectOut = new ObjectOutputStream(dataOut);
+			objectOut.writeObject(task);
+			objectOut.close();
+			return bytesOut.toByteArray();
+		} catch (IOException e) {
+			throw new JournalFailureException("Couldn't serialize task", e);
+		}
+	}
+	
+	private static void tombstone(SegmentLog segmentLog, long taskId) {
+		try {
+			segmentLog.appendTombstone(taskId);
+		} catch (IOException e) {
+			log.log(WARNING, "Couldn't tombstone journaled task " + taskId + " - it will run again on restart", e);
+		}
+	}
+	
+	/**
+	 * Runs a journaled task, tombstoning it if it succeeds or fails
+	 * permanently. A task that fails otherwise stays live in the journal,
+	 * to be retried by the executor.
+	 */
+	@SuppressWarnings("serial")
+	private static class JournaledTask implements DeferrableWrapper {
+		private final long taskId;
+		private final Deferrable task;
+		private final transient SegmentLog segmentLog;
+		
+		JournaledTask(long taskId, Deferrable task, SegmentLog segmentLog) {
+			this.taskId = taskId;
+			this.task = task;
+			this.segmentLog = segmentLog;
+		}
+		
+		public Deferrable getTask() {
+			return task;
+		}
+		
+		public void run() {
+			try {
+				task.run();
+			} catch (PermanentTaskFailure e) {
+				tombstone(segmentLog, taskId);
+				throw e;
+			}
+			tombstone(segmentLog, taskId);
+		}
+	}
+	
+	/**
+	 * Tombstones dead-lettered tasks, which are no longer the journal's
+	 * responsibility, and passes on the original task.
+	 */
+	private static class TombstoningDeadLetterSink implements DeadLetterSink {
+		private final DeadLetterSink deadLetterSink;
+		
+		TombstoningDeadLetterSink(DeadLetterSink deadLetterSink) {
+			this.deadLetterSink = deadLetterSink;
+		}
+
+		public void deadLetter(Deferrable task, String queueName, int attempts, RuntimeException lastFailure) {
+			if (task instanceof JournaledTask) {
+				JournaledTask journaledTask = (JournaledTask) task;
+				deadLetterSink.deadLetter(journaledTask.task, queueName, attempts, lastFailure);
+				tombstone(journaledTask.segmentLog, journaledTask.taskId);
+			} else {
+				deadLetterSink.deadLetter(task, queueName, attempts, lastFailure);
+			}
+		}
+	}
+}
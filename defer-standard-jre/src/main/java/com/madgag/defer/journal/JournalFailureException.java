@@ -0,0 +1,12 @@
+package com.madgag.defer.journal;
+
+/**
+ * Thrown when a task can't be written to, or read from, the journal.
+ */
+@SuppressWarnings("serial")
+public class JournalFailureException extends RuntimeException {
+
+	public JournalFailureException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,192 @@
+package com.madgag.defer.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One fixed-size, memory-mapped file of a {@link SegmentLog}, holding a
+ * sequence of framed records:
+ * <pre>
+ * [int bodyLength][int crc32(body)][body: byte type, long taskId, payload]
+ * </pre>
+ * The unused tail of a segment is zero-filled, so a zero body length marks
+ * the end of the records.
+ */
+class Segment {
+	
+	static final byte TASK = 1;
+	static final byte TOMBSTONE = 2;
+	
+	static final int HEADER_SIZE = 8;
+	private static final int BODY_PREFIX_SIZE = 9;
+	
+	private static final String SUFFIX = ".segment";
+	
+	final long sequence;
+	final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	
+	/**
+	 * Live tasks, and their total record size, whose latest task record is
+	 * in this segment - guarded by the owning {@link SegmentLog}.
+	 */
+	int liveTasks = 0;
+	long liveBytes = 0;
+
+	Segment(long sequence, File file, int size) throws IOException {
+		this.sequence = sequence;
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		if (randomAccessFile.length() < size) {
+			randomAccessFile.setLength(size);
+		}
+		this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+	}
+	
+	static Segment open(File directory, long sequence, int size) throws IOException {
+		return new Segment(sequence, fileOf(directory, sequence), size);
+	}
+	
+	static File fileOf(File directory, long sequence) {
+		return new File(directory, String.format("%020d", sequence) + SUFFIX);
+	}
+	
+	static boolean isSegmentFile(File file) {
+		return file.getName().endsWith(SUFFIX);
+	}
+	
+	static long sequenceOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+	
+	static int recordSize(byte[] payload) {
+		return HEADER_SIZE + BODY_PREFIX_SIZE + payload.length;
+	}
+	
+	int capacity() {
+		return buffer.capacity();
+	}
+	
+	/**
+	 * @return The offset of the appended record.
+	 */
+	int append(int position, byte type, long taskId, byte[] payload) {
+		int bodyLength = BODY_PREFIX_SIZE + payload.length;
+		buffer.position(position + HEADER_SIZE);
+		buffer.put(type);
+		buffer.putLong(taskId);
+		buffer.put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(longBytes(taskId));
+		crc.update(payload);
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.putInt(position, bodyLength); // written last, so a torn record reads as the end of the segment
+		return position;
+	}
+	
+	/**
+	 * Reads the record at the given offset.
+	 * 
+	 * @return The record, or null if there's no intact record there.
+	 */
+	Record read(int position) {
+		if (position + HEADER_SIZE > buffer.capacity()) {
+			return null;
+		}
+		int bodyLength = buffer.getInt(position);
+		if (bodyLength < BODY_PREFIX_SIZE || position + HEADER_SIZE + bodyLength > buffer.capacity()) {
+			return null;
+		}
+		int crc = buffer.getInt(position + 4);
+		buffer.position(position + HEADER_SIZE);
+		byte type = buffer.get();
+		long taskId = buffer.getLong();
+		byte[] payload = new byte[bodyLength - BODY_PREFIX_SIZE];
+		buffer.get(payload);
+		CRC32 actualCrc = new CRC32();
+		actualCrc.update(type);
+		actualCrc.update(longBytes(taskId));
+		actualCrc.update(payload);
+		if ((int) actualCrc.getValue() != crc) {
+			return null;
+		}
+		return new Record(position, type, taskId, payload);
+	}
+	
+	/**
+	 * @return true if no record has been started at the given offset.
+	 */
+	boolean isEndOfRecords(int position) {
+		return position + 4 > buffer.capacity() || buffer.getInt(position) == 0;
+	}
+	
+	/**
+	 * Zero-fills the segment from the given offset, erasing a torn record
+	 * found during recovery.
+	 */
+	void truncate(int position) {
+		byte[] zeroes = new byte[4096];
+		buffer.position(position);
+		while (buffer.remaining() > 0) {
+			buffer.put(zeroes, 0, Math.min(zeroes.length, buffer.remaining()));
+		}
+	}
+	
+	void force() {
+		buffer.force();
+	}
+	
+	void close() throws IOException {
+		randomAccessFile.close();
+	}
+	
+	/**
+	 * Closes and deletes the segment's file. The mapping itself is only
+	 * released when the buffer is garbage-collected.
+	 */
+	void delete() throws IOException {
+		close();
+		if (!file.delete()) {
+			throw new IOException("Couldn't delete " + file);
+		}
+	}
+	
+	private static byte[] longBytes(long value) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; --i) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+	
+	static class Record {
+		final int position;
+		final byte type;
+		final long taskId;
+		final byte[] payload;
+		
+		Record(int position, byte type, long taskId, byte[] payload) {
+			this.position = position;
+			this.type = type;
+			this.taskId = taskId;
+			this.payload = payload;
+		}
+		
+		int size() {
+			return recordSize(payload);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+}
@@ -0,0 +1,268 @@
+package com.madgag.defer.journal;
+
+import static java.util.logging.Level.FINE;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.madgag.defer.journal.Segment.Record;
+
+/**
+ * An append-only log of task and tombstone records, spread over a sequence
+ * of memory-mapped {@link Segment}s in a directory. A task is live from its
+ * task record until its tombstone.
+ * 
+ * <p>Appends only write to the mapped memory - they survive the process
+ * crashing, but reach the disk when {@link #flush()} is called, so a
+ * machine crash loses the appends made since the last flush.
+ */
+class SegmentLog {
+	
+	private static final Logger log = Logger.getLogger(SegmentLog.class.getName());
+	
+	private final File directory;
+	private final int segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<Long, Location> liveTasks = new HashMap<Long, Location>();
+	private final Map<Long, Record> recoveredTasks = new LinkedHashMap<Long, Record>();
+	private Segment active;
+	private int activePosition;
+	private long nextTaskId = 1;
+	private boolean dirty = false;
+	private boolean closed = false;
+	
+	/**
+	 * Opens the log in the given directory, recovering the live tasks of any
+	 * segments already there.
+	 */
+	SegmentLog(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create journal directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		recover();
+	}
+	
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return Segment.isSegmentFile(file);
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.valueOf(Segment.sequenceOf(a)).compareTo(Segment.sequenceOf(b));
+			}
+		});
+		for (File file : files) {
+			Segment segment = openSegment(Segment.sequenceOf(file));
+			segments.add(segment);
+			int position = 0;
+			for (Record record; (record = segment.read(position)) != null; position += record.size()) {
+				nextTaskId = Math.max(nextTaskId, record.taskId + 1);
+				if (record.type == Segment.TASK) {
+					markLive(record.taskId, new Location(segment, position, record.size()));
+					recoveredTasks.put(record.taskId, record);
+				} else {
+					markDead(record.taskId);
+					recoveredTasks.remove(record.taskId);
+				}
+			}
+			if (!segment.isEndOfRecords(position)) {
+				log.warning("Discarding torn record at " + position + " of " + segment);
+				segment.truncate(position);
+			}
+			active = segment;
+			activePosition = position;
+		}
+		if (active == null) {
+			roll();
+		}
+		log.info("Recovered " + recoveredTasks.size() + " live tasks from " + segments.size() + " segments in " + directory);
+	}
+	
+	/**
+	 * @return The payloads of the tasks that were live when the log was
+	 * opened, by task id, in the order they were first appended.
+	 */
+	synchronized Map<Long, byte[]> takeRecoveredTasks() {
+		Map<Long, byte[]> tasks = new LinkedHashMap<Long, byte[]>();
+		for (Record record : recoveredTasks.values()) {
+			tasks.put(record.taskId, record.payload);
+		}
+		recoveredTasks.clear();
+		return tasks;
+	}
+	
+	/**
+	 * @return The id of the appended task.
+	 */
+	synchronized long appendTask(byte[] payload) throws IOException {
+		checkOpen();
+		long taskId = nextTaskId++;
+		markLive(taskId, append(Segment.TASK, taskId, payload));
+		return taskId;
+	}
+	
+	/**
+	 * Marks a task as finished with. Tombstoning a task that isn't live, or
+	 * tombstoning after the log is closed, does nothing.
+	 */
+	synchronized void appendTombstone(long taskId) throws IOException {
+		if (closed || !liveTasks.containsKey(taskId)) {
+			return;
+		}
+		append(Segment.TOMBSTONE, taskId, new byte[0]);
+		markDead(taskId);
+	}
+	
+	/**
+	 * Forces the appends made since the last flush to disk. Concurrent
+	 * appends are not held up by the write.
+	 */
+	void flush() {
+		Segment segmentToForce;
+		synchronized (this) {
+			if (!dirty || closed) {
+				return;
+			}
+			dirty = false;
+			segmentToForce = active;
+		}
+		segmentToForce.force();
+	}
+	
+	/**
+	 * Reclaims the space of old segments: any segment that no longer holds
+	 * live tasks is deleted, starting from the oldest, and the oldest segment
+	 * is emptied by copying its few remaining live tasks to the active
+	 * segment once they occupy less than a quarter of it.
+	 * 
+	 * <p>Segments are only ever deleted oldest-first, as the tombstones in a
+	 * segment may refer to tasks in any of the segments before it - and the
+	 * copies of live tasks are forced to disk before the segment they came
+	 * from is deleted.
+	 */
+	synchronized void compact() throws IOException {
+		while (!closed && segments.size() > 1) {
+			Segment oldest = segments.getFirst();
+			if (oldest.liveTasks > 0) {
+				if (oldest.liveBytes * 4 >= segmentSize) {
+					return;
+				}
+				copyLiveTasksFrom(oldest);
+				active.force(); // the copies must be durable before the originals go
+			}
+			segments.removeFirst();
+			oldest.delete();
+			log.log(FINE, "Deleted " + oldest);
+		}
+	}
+
+	private void copyLiveTasksFrom(Segment segment) throws IOException {
+		List<Long> taskIds = new ArrayList<Long>();
+		for (Map.Entry<Long, Location> entry : liveTasks.entrySet()) {
+			if (entry.getValue().segment == segment) {
+				taskIds.add(entry.getKey());
+			}
+		}
+		for (Long taskId : taskIds) {
+			Record record = segment.read(liveTasks.get(taskId).position);
+			markDead(taskId);
+			markLive(taskId, append(Segment.TASK, taskId, record.payload));
+		}
+		log.log(FINE, "Copied " + taskIds.size() + " live tasks out of " + segment);
+	}
+	
+	synchronized int segmentCount() {
+		return segments.size();
+	}
+	
+	synchronized int liveTaskCount() {
+		return liveTasks.size();
+	}
+	
+	synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		active.force();
+		for (Segment segment : segments) {
+			segment.close();
+		}
+	}
+	
+	private Location append(byte type, long taskId, byte[] payload) throws IOException {
+		int recordSize = Segment.recordSize(payload);
+		if (recordSize > segmentSize) {
+			throw new IOException("Task of " + recordSize + " bytes is larger than the journal segment size");
+		}
+		if (activePosition + recordSize > active.capacity()) {
+			roll();
+		}
+		int position = active.append(activePosition, type, taskId, payload);
+		activePosition += recordSize;
+		dirty = true;
+		return new Location(active, position, recordSize);
+	}
+	
+	private void roll() throws IOException {
+		long sequence = active == null ? 1 : active.sequence + 1;
+		if (active != null) {
+			active.force(); // sealed segments are never written again
+		}
+		active = openSegment(sequence);
+		activePosition = 0;
+		segments.add(active);
+		log.log(FINE, "Rolled to " + active);
+	}
+	
+	Segment openSegment(long sequence) throws IOException {
+		return Segment.open(directory, sequence, segmentSize);
+	}
+	
+	private void markLive(long taskId, Location location) {
+		markDead(taskId);
+		liveTasks.put(taskId, location);
+		location.segment.liveTasks++;
+		location.segment.liveBytes += location.size;
+	}
+	
+	private void markDead(long taskId) {
+		Location location = liveTasks.remove(taskId);
+		if (location != null) {
+			location.segment.liveTasks--;
+			location.segment.liveBytes -= location.size;
+		}
+	}
+	
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed");
+		}
+	}
+	
+	private static class Location {
+		final Segment segment;
+		final int position;
+		final int size;
+		
+		Location(Segment segment, int position, int size) {
+			this.segment = segment;
+			this.position = position;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.madgag.defer.pipeline;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link JoinStore} for pipelines run within one process, keeping each
+ * join in a concurrent map - whose lock striping keeps the arrivals of
+ * different joins apart - with its own atomic counter, so predecessors
+ * arriving at the same join never take a lock at all.
+ *
+ * <p>Joins are removed once their step is deferred. Joins of pipelines
+ * that are abandoned, by a step failing permanently, stay until the store
+ * is discarded.
+ */
+public class ConcurrentMapJoinStore implements JoinStore {
+
+	private final ConcurrentMap<String, Join> joins = new ConcurrentHashMap<String, Join>();
+
+	public void createJoins(List<PipelineStep> steps) {
+		for (PipelineStep step : steps) {
+			joins.put(keyOf(step.getPipelineId(), step.getStepId()), new Join(step));
+		}
+	}
+
+	public PipelineStep arrive(String pipelineId, int stepId, int predecessorId) {
+		String key = keyOf(pipelineId, stepId);
+		Join join = joins.get(key);
+		if (join == null) {
+			return null;
+		}
+		if (!join.arrived.add(predecessorId)) {
+			return join.completedBy == predecessorId ? join.step : null;
+		}
+		if (join.remaining.decrementAndGet() > 0) {
+			return null;
+		}
+		join.completedBy = predecessorId;
+		return join.step;
+	}
+
+	public void release(PipelineStep step) {
+		joins.remove(keyOf(step.getPipelineId(), step.getStepId()));
+	}
+
+	/**
+	 * @return The number of steps waiting for their predecessors.
+	 */
+	public int pendingJoins() {
+		return joins.size();
+	}
+
+	private static String keyOf(String pipelineId, int stepId) {
+		return pipelineId + ":" + stepId;
+	}
+
+	private static class Join {
+		final PipelineStep step;
+		final Set<Integer> arrived = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final AtomicInteger remaining;
+		volatile int completedBy = -1;
+
+		Join(PipelineStep step) {
+			this.step = step;
+			this.remaining = new AtomicInteger(step.getPredecessorCount());
+		}
+	}
+}
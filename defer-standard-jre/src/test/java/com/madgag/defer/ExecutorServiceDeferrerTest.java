@@ -0,0 +1,377 @@
+package com.madgag.defer;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.madgag.defer.metrics.RecordingDeferMetrics;
+import com.madgag.defer.metrics.TaskMetrics;
+import com.madgag.defer.metrics.DeferMetrics.TaskOutcome;
+
+public class ExecutorServiceDeferrerTest {
+	
+	private final RecordingDeadLetterSink deadLetterSink = new RecordingDeadLetterSink();
+	private final ExecutorServiceDeferrer deferrer = new ExecutorServiceDeferrer(
+			QueueConfiguration.DEFAULT.withRetryPolicy(new RetryPolicy(3, 10, 20)), deadLetterSink);
+	
+	@After
+	public void tearDown() throws Exception {
+		deferrer.shutdown(5, SECONDS);
+	}
+
+	@Test
+	public void shouldCompleteHandleWhenTaskHasRun() throws Exception {
+		CountingTask task = new CountingTask();
+		
+		deferrer.defer(task, "myQueue").get(5, SECONDS);
+		
+		assertThat(task.runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldCompleteHandleNormallyForAPermanentTaskFailure() throws Exception {
+		Future<?> handle = deferrer.defer(new FailingTask(new PermanentTaskFailure("Boo")));
+		
+		assertThat(handle.get(5, SECONDS), nullValue());
+	}
+	
+	@Test
+	public void shouldFailHandleForARetryableFailureOnAQueueThatDoesNotRetry() throws Exception {
+		RuntimeException toBeThrown = new RuntimeException();
+		deferrer.configureQueue("noRetries", QueueConfiguration.DEFAULT.withRetryPolicy(RetryPolicy.NONE));
+		Future<?> handle = deferrer.defer(new FailingTask(toBeThrown), "noRetries");
+		
+		try {
+			handle.get(5, SECONDS);
+			fail("Should throw an exception");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), equalTo((Throwable) toBeThrown));
+		}
+	}
+	
+	@Test
+	public void shouldFailHandleReleaseNameAndStillDrainWhenATaskThrowsAnError() throws Exception {
+		final AssertionError toBeThrown = new AssertionError("Boo");
+		Future<?> handle = deferrer.defer(new Deferrable() {
+			private static final long serialVersionUID = 1L;
+			
+			public void run() {
+				throw toBeThrown;
+			}
+		}, DeferOptions.Builder.taskName("erroring"));
+		
+		try {
+			handle.get(5, SECONDS);
+			fail("Should throw an exception");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), equalTo((Throwable) toBeThrown));
+		}
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("erroring")).get(5, SECONDS);
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+	}
+	
+	@Test
+	public void shouldRetryATaskUntilItSucceeds() throws Exception {
+		FlakyTask task = new FlakyTask(2);
+		
+		deferrer.defer(task).get(5, SECONDS);
+		
+		assertThat(task.runs.get(), equalTo(3));
+		assertThat(deadLetterSink.attempts, nullValue());
+	}
+	
+	@Test
+	public void shouldDeadLetterATaskThatExhaustsItsRetries() throws Exception {
+		FlakyTask task = new FlakyTask(Integer.MAX_VALUE);
+		
+		try {
+			deferrer.defer(task).get(5, SECONDS);
+			fail("Should throw an exception");
+		} catch (ExecutionException e) {
+			assertThat(task.runs.get(), equalTo(3));
+			assertThat(deadLetterSink.task, equalTo((Deferrable) task));
+			assertThat(deadLetterSink.attempts, equalTo(3));
+		}
+	}
+	
+	@Test
+	public void shouldDeferADependentTaskFromACompletionCallback() throws Exception {
+		final CountingTask dependentTask = new CountingTask();
+		final AtomicReference<TaskFuture> dependentHandle = new AtomicReference<TaskFuture>();
+		final CountDownLatch dependentDeferred = new CountDownLatch(1);
+		
+		deferrer.defer(new CountingTask()).whenDone(new CompletionCallback() {
+			public void done(Completion completion) {
+				if (!completion.isFailed()) {
+					dependentHandle.set(deferrer.defer(dependentTask));
+				}
+				dependentDeferred.countDown();
+			}
+		});
+		
+		assertThat(dependentDeferred.await(5, SECONDS), is(true));
+		assertThat(dependentHandle.get().await(5, SECONDS), is(true));
+		assertThat(dependentTask.runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldFailTheCompletionOfATaskThatIsGivenUpOn() throws Exception {
+		TaskFuture succeeded = deferrer.defer(new CountingTask());
+		TaskFuture failedPermanently = deferrer.defer(new FailingTask(new PermanentTaskFailure("Boo")));
+		TaskFuture exhaustedRetries = deferrer.defer(new FlakyTask(Integer.MAX_VALUE));
+		
+		for (TaskFuture handle : asList(succeeded, failedPermanently, exhaustedRetries)) {
+			assertThat(handle.await(5, SECONDS), is(true));
+		}
+		assertThat(succeeded.isFailed(), is(false));
+		assertThat(failedPermanently.isFailed(), is(true));
+		assertThat(exhaustedRetries.isFailed(), is(true));
+	}
+	
+	@Test
+	public void shouldNotRetryAPermanentTaskFailure() throws Exception {
+		FailingTask task = new FailingTask(new PermanentTaskFailure("Boo"));
+		
+		deferrer.defer(task).get(5, SECONDS);
+		
+		assertThat(task.runs.get(), equalTo(1));
+		assertThat(deadLetterSink.attempts, nullValue());
+	}
+	
+	@Test
+	public void shouldRejectTasksBeyondTheCapacityOfAQueue() throws Exception {
+		BlockingTask blockingTask = new BlockingTask();
+		deferrer.configureQueue("narrow", QueueConfiguration.DEFAULT.withConcurrency(1).withCapacity(1));
+		deferrer.defer(blockingTask, "narrow");
+		blockingTask.started.await(5, SECONDS);
+		deferrer.defer(new CountingTask(), "narrow");
+		
+		try {
+			deferrer.defer(new CountingTask(), "narrow");
+			fail("Should reject task");
+		} catch (RejectedExecutionException e) {
+		} finally {
+			blockingTask.release.countDown();
+		}
+	}
+	
+	@Test
+	public void shouldDrainDeferredTasksOnShutdown() throws Exception {
+		CountingTask task = new CountingTask();
+		deferrer.configureQueue("single", QueueConfiguration.DEFAULT.withConcurrency(1));
+		for (int i = 0; i < 100; ++i) {
+			deferrer.defer(task, "single");
+		}
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(task.runs.get(), equalTo(100));
+	}
+	
+	@Test
+	public void shouldNotRunADelayedTaskBeforeItsCountdownHasElapsed() throws Exception {
+		final AtomicLong ranAt = new AtomicLong();
+		long deferredAt = System.currentTimeMillis();
+		
+		deferrer.defer(new TimestampingTask(ranAt), DeferOptions.Builder.countdownMillis(200)).get(5, SECONDS);
+		
+		assertThat(ranAt.get() - deferredAt >= 200, is(true));
+	}
+	
+	@Test
+	public void shouldRunATaskWhoseEtaHasPassedStraightAway() throws Exception {
+		CountingTask task = new CountingTask();
+		
+		deferrer.defer(task, DeferOptions.Builder.etaMillis(System.currentTimeMillis() - 1000)).get(5, SECONDS);
+		
+		assertThat(task.runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldRejectATaskNamedLikeAnUnfinishedTask() throws Exception {
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("once").countdownMillis(1000));
+		
+		try {
+			deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("once"));
+			fail("Should reject task");
+		} catch (DuplicateTaskException e) {
+			assertThat(e.getTaskName(), equalTo("once"));
+		}
+		assertThat(deferrer.namedTasksDeferred(), equalTo(2L));
+		assertThat(deferrer.duplicateTasksRejected(), equalTo(1L));
+	}
+	
+	@Test
+	public void shouldAllowATaskNameToBeReusedOnceTheTaskHasFinished() throws Exception {
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("again")).get(5, SECONDS);
+		
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("again")).get(5, SECONDS);
+	}
+	
+	@Test
+	public void shouldRecordDeferralsAndExecutionAttemptsInMetrics() throws Exception {
+		RecordingDeferMetrics deferMetrics = new RecordingDeferMetrics();
+		deferrer.setDeferMetrics(deferMetrics);
+		
+		deferrer.defer(new FlakyTask(1), "myQueue").get(5, SECONDS);
+		
+		TaskMetrics taskMetrics = deferMetrics.getTaskMetrics("myQueue", FlakyTask.class);
+		assertThat(taskMetrics.getDeferred(), equalTo(1L));
+		assertThat(taskMetrics.getExecutions(TaskOutcome.FAILED), equalTo(1L));
+		assertThat(taskMetrics.getExecutions(TaskOutcome.SUCCEEDED), equalTo(1L));
+		assertThat(taskMetrics.getExecutionNanos().getCount(), equalTo(2L));
+	}
+	
+	@Test
+	public void shouldRunTasksOnVirtualThreadsWhereSupported() throws Exception {
+		final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+		deferrer.configureQueue("virtual", QueueConfiguration.DEFAULT.withVirtualThreads(true));
+		
+		deferrer.defer(new Deferrable() {
+			private static final long serialVersionUID = 1L;
+
+			public void run() {
+				ranOn.set(Thread.currentThread());
+			}
+		}, "virtual").get(5, SECONDS);
+		
+		assertThat(VirtualThreads.isVirtual(ranOn.get()), is(VirtualThreads.isSupported()));
+	}
+	
+	@Test
+	public void shouldRunQueuesOnSharedWorkersUpToTheirConcurrency() throws Exception {
+		deferrer.configureSharedWorkers(2);
+		for (String queueName : asList("a", "b", "c")) {
+			deferrer.configureQueue(queueName, QueueConfiguration.DEFAULT.withSharedWorkers(true).withConcurrency(1));
+		}
+		BlockingTask blocking = new BlockingTask();
+		deferrer.defer(blocking, "a");
+		blocking.started.await(5, SECONDS);
+		CountingTask waiting = new CountingTask(), others = new CountingTask();
+		Future<?> waitingHandle = deferrer.defer(waiting, "a");
+		
+		deferrer.defer(others, "b").get(5, SECONDS);
+		deferrer.defer(others, "c").get(5, SECONDS);
+		
+		assertThat(others.runs.get(), equalTo(2));
+		assertThat(waiting.runs.get(), equalTo(0));
+		blocking.release.countDown();
+		waitingHandle.get(5, SECONDS);
+		assertThat(waiting.runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldApplyACallerRunsPolicyToAFullQueueOnSharedWorkers() throws Exception {
+		deferrer.configureQueue("shared", QueueConfiguration.DEFAULT.withSharedWorkers(true).withConcurrency(1).withCapacity(1)
+				.withRejectionPolicy(new ThreadPoolExecutor.CallerRunsPolicy()));
+		BlockingTask blocking = new BlockingTask();
+		deferrer.defer(blocking, "shared");
+		blocking.started.await(5, SECONDS);
+		deferrer.defer(new CountingTask(), "shared");
+		final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+		
+		deferrer.defer(new Deferrable() {
+			private static final long serialVersionUID = 1L;
+
+			public void run() {
+				ranOn.set(Thread.currentThread());
+			}
+		}, "shared");
+		
+		assertThat(ranOn.get(), equalTo(Thread.currentThread()));
+		blocking.release.countDown();
+	}
+	
+	@SuppressWarnings("serial")
+	static class CountingTask implements Deferrable {
+		final AtomicInteger runs = new AtomicInteger();
+		
+		public void run() {
+			runs.incrementAndGet();
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class FailingTask implements Deferrable {
+		private final RuntimeException failure;
+		final AtomicInteger runs = new AtomicInteger();
+		
+		FailingTask(RuntimeException failure) {
+			this.failure = failure;
+		}
+		
+		public void run() {
+			runs.incrementAndGet();
+			throw failure;
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class FlakyTask implements Deferrable {
+		private final int failures;
+		final AtomicInteger runs = new AtomicInteger();
+		
+		FlakyTask(int failures) {
+			this.failures = failures;
+		}
+		
+		public void run() {
+			if (runs.incrementAndGet() <= failures) {
+				throw new RuntimeException("Flaky");
+			}
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class TimestampingTask implements Deferrable {
+		private final AtomicLong ranAt;
+		
+		TimestampingTask(AtomicLong ranAt) {
+			this.ranAt = ranAt;
+		}
+		
+		public void run() {
+			ranAt.set(System.currentTimeMillis());
+		}
+	}
+	
+	static class RecordingDeadLetterSink implements DeadLetterSink {
+		volatile Deferrable task;
+		volatile Integer attempts;
+		
+		public void deadLetter(Deferrable task, String queueName, int attempts, RuntimeException lastFailure) {
+			this.task = task;
+			this.attempts = attempts;
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class BlockingTask implements Deferrable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
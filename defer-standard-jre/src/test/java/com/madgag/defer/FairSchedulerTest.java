@@ -0,0 +1,106 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FairSchedulerTest {
+
+	private final ConcurrentMap<Class<?>, TaskClassConfiguration> configurations = new ConcurrentHashMap<Class<?>, TaskClassConfiguration>();
+	private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch eightRan = new CountDownLatch(8);
+	private ThreadPoolExecutor executor;
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldGiveClassesTurnsInProportionToTheirWeights() throws Exception {
+		FairScheduler scheduler = schedulerWithConcurrency(1);
+		configurations.put(Bulk.class, TaskClassConfiguration.DEFAULT.withWeight(3));
+		Blocking blocking = new Blocking();
+		scheduler.execute(blocking, Blocking.class);
+		blocking.started.await(5, SECONDS);
+		for (int i = 0; i < 4; i++) {
+			scheduler.execute(new Bulk(), Bulk.class);
+			scheduler.execute(new Interactive(), Interactive.class);
+		}
+
+		blocking.release.countDown();
+		eightRan.await(5, SECONDS);
+
+		assertThat(ran, equalTo(Arrays.asList("bulk", "bulk", "bulk", "interactive", "bulk", "interactive", "interactive", "interactive")));
+	}
+
+	@Test
+	public void shouldHoldBackTasksOfAClassAtItsConcurrencyLimit() throws Exception {
+		FairScheduler scheduler = schedulerWithConcurrency(4);
+		configurations.put(Blocking.class, TaskClassConfiguration.DEFAULT.withConcurrency(1));
+		Blocking first = new Blocking(), second = new Blocking();
+		scheduler.execute(first, Blocking.class);
+		scheduler.execute(second, Blocking.class);
+		first.started.await(5, SECONDS);
+		scheduler.execute(new Interactive(), Interactive.class);
+		
+		assertThat(second.started.await(100, MILLISECONDS), is(false));
+		assertThat(scheduler.waitingTasks(Blocking.class), is(1));
+		assertThat(ran, equalTo(Arrays.asList("interactive")));
+
+		configurations.put(Blocking.class, TaskClassConfiguration.DEFAULT.withConcurrency(2));
+		scheduler.dispatch();
+
+		assertThat(second.started.await(5, SECONDS), is(true));
+		first.release.countDown();
+		second.release.countDown();
+	}
+
+	private FairScheduler schedulerWithConcurrency(int concurrency) {
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 1, SECONDS, new LinkedBlockingQueue<Runnable>());
+		return new FairScheduler(executor, concurrency, 100, new ThreadPoolExecutor.AbortPolicy(), configurations);
+	}
+
+	private class Bulk implements Runnable {
+		public void run() {
+			ran.add("bulk");
+			eightRan.countDown();
+		}
+	}
+
+	private class Interactive implements Runnable {
+		public void run() {
+			ran.add("interactive");
+			eightRan.countDown();
+		}
+	}
+
+	private static class Blocking implements Runnable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.madgag.defer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+	
+	private final RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000);
+	private final Random random = new Random(0);
+
+	@Test
+	public void shouldJitterDelaysBetweenZeroAndTheExponentialCeiling() throws Exception {
+		for (int failedAttempts = 1; failedAttempts <= 4; ++failedAttempts) {
+			long ceiling = 100L << (failedAttempts - 1);
+			for (int i = 0; i < 1000; ++i) {
+				long delay = retryPolicy.delayMillisAfter(failedAttempts, random);
+				assertThat(delay, greaterThanOrEqualTo(0L));
+				assertThat(delay, lessThanOrEqualTo(ceiling));
+			}
+		}
+	}
+	
+	@Test
+	public void shouldCapDelays() throws Exception {
+		for (int i = 0; i < 1000; ++i) {
+			assertThat(retryPolicy.delayMillisAfter(60, random), lessThanOrEqualTo(1000L));
+		}
+	}
+	
+	@Test
+	public void shouldStopRetryingAfterMaxAttempts() throws Exception {
+		assertThat(retryPolicy.shouldRetryAfter(9), is(true));
+		assertThat(retryPolicy.shouldRetryAfter(10), is(false));
+	}
+}
@@ -0,0 +1,72 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelTest {
+	
+	private final TimingWheel timingWheel = new TimingWheel(1, "test-timing-wheel");
+	
+	@After
+	public void tearDown() {
+		timingWheel.stop();
+	}
+	
+	@Test
+	public void shouldRunTasksOnEveryLevelInDeadlineOrderAndNotBeforeTheirDeadlines() throws Exception {
+		long start = System.currentTimeMillis() + 20; // leaves time to schedule every task before any is due
+		long[] delays = { 150, 3, 70, 64, 1, 129, 40 };
+		CountDownLatch allRun = new CountDownLatch(delays.length);
+		List<Long> deadlinesInRunOrder = Collections.synchronizedList(new ArrayList<Long>());
+		for (long delay : delays) {
+			timingWheel.schedule(new RecordingTask(start + delay, deadlinesInRunOrder, allRun), start + delay);
+		}
+		
+		assertThat(allRun.await(5, SECONDS), is(true));
+		
+		assertThat(deadlinesInRunOrder.size(), equalTo(delays.length)); // none ran early
+		List<Long> sortedDeadlines = new ArrayList<Long>(deadlinesInRunOrder);
+		Collections.sort(sortedDeadlines);
+		assertThat(deadlinesInRunOrder, equalTo(sortedDeadlines));
+		assertThat(timingWheel.pendingTasks(), equalTo(0));
+	}
+	
+	@Test
+	public void shouldDeclineToScheduleATaskThatIsAlreadyDue() {
+		assertThat(timingWheel.schedule(new NothingTask(), System.currentTimeMillis() - 1), is(false));
+	}
+	
+	private static class RecordingTask implements Runnable {
+		private final long deadline;
+		private final List<Long> deadlinesInRunOrder;
+		private final CountDownLatch allRun;
+		
+		RecordingTask(long deadline, List<Long> deadlinesInRunOrder, CountDownLatch allRun) {
+			this.deadline = deadline;
+			this.deadlinesInRunOrder = deadlinesInRunOrder;
+			this.allRun = allRun;
+		}
+
+		public void run() {
+			if (System.currentTimeMillis() >= deadline) {
+				deadlinesInRunOrder.add(deadline);
+			}
+			allRun.countDown();
+		}
+	}
+	
+	private static class NothingTask implements Runnable {
+		public void run() {
+		}
+	}
+}
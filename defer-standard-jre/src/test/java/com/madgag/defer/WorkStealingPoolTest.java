@@ -0,0 +1,118 @@
+package com.madgag.defer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkStealingPoolTest {
+
+	private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch eightRan = new CountDownLatch(8);
+	private WorkStealingPool pool;
+
+	@After
+	public void tearDown() {
+		pool.stop();
+	}
+
+	@Test
+	public void shouldStealTasksFromALaneWhoseHomeWorkerIsBusy() throws Exception {
+		pool = new WorkStealingPool(2, "test");
+		WorkStealingPool.Lane busy = pool.newLane(1);
+		pool.newLane(1);
+		Blocking blocking = new Blocking();
+		CountDownLatch secondRan = new CountDownLatch(1);
+		busy.execute(blocking);
+		blocking.started.await(5, SECONDS);
+
+		busy.execute(new CountingDown(secondRan));
+
+		assertThat(secondRan.await(5, SECONDS), is(true));
+		assertThat(pool.stolenTasks(), is(1L));
+		blocking.release.countDown();
+	}
+
+	@Test
+	public void shouldGiveHomeLanesTurnsInProportionToTheirWeights() throws Exception {
+		pool = new WorkStealingPool(1, "test");
+		WorkStealingPool.Lane other = pool.newLane(1);
+		WorkStealingPool.Lane bulk = pool.newLane(3), interactive = pool.newLane(1);
+		Blocking blocking = new Blocking();
+		other.execute(blocking);
+		blocking.started.await(5, SECONDS);
+		for (int i = 0; i < 4; i++) {
+			bulk.execute(new Recording("bulk"));
+			interactive.execute(new Recording("interactive"));
+		}
+
+		blocking.release.countDown();
+		eightRan.await(5, SECONDS);
+
+		assertThat(ran, equalTo(Arrays.asList("bulk", "bulk", "bulk", "interactive", "bulk", "interactive", "interactive", "interactive")));
+	}
+
+	@Test
+	public void shouldRunTasksAcceptedBeforeALaneIsShutDown() throws Exception {
+		pool = new WorkStealingPool(1, "test");
+		WorkStealingPool.Lane lane = pool.newLane(1);
+		Blocking blocking = new Blocking();
+		lane.execute(blocking);
+		lane.execute(new Recording("after"));
+		lane.shutdown();
+
+		assertThat(lane.awaitTermination(100, MILLISECONDS), is(false));
+		blocking.release.countDown();
+		assertThat(lane.awaitTermination(5, SECONDS), is(true));
+		assertThat(ran, equalTo(Arrays.asList("after")));
+	}
+
+	private class Recording implements Runnable {
+		private final String name;
+
+		Recording(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			ran.add(name);
+			eightRan.countDown();
+		}
+	}
+
+	private static class CountingDown implements Runnable {
+		private final CountDownLatch latch;
+
+		CountingDown(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			latch.countDown();
+		}
+	}
+
+	private static class Blocking implements Runnable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.madgag.defer.journal;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.ExecutorServiceDeferrer;
+import com.madgag.defer.QueueConfiguration;
+import com.madgag.defer.TaskClassConfiguration;
+
+public class JournalDeferrerTest {
+	
+	private static final int SEGMENT_SIZE = 4096;
+	
+	private static final AtomicInteger runs = new AtomicInteger();
+	private static volatile CountDownLatch release;
+	private static volatile CountDownLatch blockingTaskStarted;
+	
+	private final CountDownLatch stuck = new CountDownLatch(1);
+	private File directory;
+	private JournalDeferrer deferrer;
+	
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		runs.set(0);
+		release = new CountDownLatch(0);
+		blockingTaskStarted = new CountDownLatch(1);
+		deferrer = open();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		release.countDown(); // tasks abandoned on 'stuck' stay blocked, so they can't count as runs of a later test
+		deferrer.shutdown(5, SECONDS);
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	@Test
+	public void shouldNotReplayFinishedTasks() throws Exception {
+		for (int i = 0; i < 10; ++i) {
+			deferrer.defer(new CountingTask()).get(5, SECONDS);
+		}
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		deferrer = open();
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(10));
+	}
+	
+	@Test
+	public void shouldReplayUnfinishedTasksAfterRestart() throws Exception {
+		release = stuck;
+		deferrer.defer(new BlockingTask(), "myQueue");
+		blockingTaskStarted.await(5, SECONDS);
+		
+		assertThat(deferrer.shutdown(0, SECONDS), is(false)); // simulates the process dying with the task unfinished
+		release = new CountDownLatch(0);
+		deferrer = open();
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldReplayADelayedTaskToRunAtItsOriginalEta() throws Exception {
+		long eta = System.currentTimeMillis() + 1000;
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.etaMillis(eta));
+		
+		assertThat(deferrer.shutdown(0, SECONDS), is(false));
+		deferrer = open();
+		assertThat(runs.get(), equalTo(0));
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(1));
+		assertThat(System.currentTimeMillis() >= eta, is(true));
+	}
+	
+	@Test
+	public void shouldDiscardAReplayedTaskWhoseNameIsTakenByAnEarlierOne() throws Exception {
+		long eta = System.currentTimeMillis() + 500;
+		deferrer.defer(new CountingTask(), DeferOptions.Builder.taskName("nightly").etaMillis(eta));
+		assertThat(deferrer.shutdown(0, SECONDS), is(false));
+		SegmentLog segmentLog = new SegmentLog(directory, SEGMENT_SIZE);
+		segmentLog.takeRecoveredTasks();
+		segmentLog.appendTask(JournalDeferrer.serialize(new CountingTask(), ExecutorServiceDeferrer.DEFAULT_QUEUE_NAME, "nightly", eta)); // as if its process died before tombstoning it
+		segmentLog.close();
+		
+		deferrer = open();
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		deferrer = open();
+		
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldDeleteSegmentsWhoseTasksHaveAllFinished() throws Exception {
+		for (int i = 0; i < 100; ++i) {
+			Future<?> handle = deferrer.defer(new CountingTask());
+			handle.get(5, SECONDS);
+		}
+		assertThat(deferrer.segmentCount() > 1, is(true));
+		
+		deferrer.compact();
+		
+		assertThat(deferrer.segmentCount(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldCopyLongLivedTasksOutOfOldSegmentsWhenCompacting() throws Exception {
+		release = stuck;
+		deferrer.defer(new BlockingTask(), "blocked");
+		blockingTaskStarted.await(5, SECONDS);
+		for (int i = 0; i < 100; ++i) {
+			deferrer.defer(new CountingTask()).get(5, SECONDS);
+		}
+		
+		deferrer.compact();
+		assertThat(deferrer.segmentCount(), equalTo(1));
+		
+		deferrer.shutdown(0, SECONDS);
+		runs.set(0);
+		release = new CountDownLatch(0);
+		deferrer = open();
+		assertThat(deferrer.shutdown(5, SECONDS), is(true));
+		assertThat(runs.get(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldScheduleJournaledTasksByTheClassOfTheTaskTheyWrap() throws Exception {
+		ExecutorServiceDeferrer executor = deferrer.getExecutor();
+		executor.configureQueue("limited", QueueConfiguration.DEFAULT.withConcurrency(4));
+		executor.configureTaskClass("limited", BlockingTask.class, TaskClassConfiguration.DEFAULT.withConcurrency(1));
+		release = stuck;
+		deferrer.defer(new BlockingTask(), "limited");
+		deferrer.defer(new BlockingTask(), "limited");
+		blockingTaskStarted.await(5, SECONDS);
+		
+		deferrer.defer(new CountingTask(), "limited").get(5, SECONDS);
+		
+		assertThat(executor.runningTasks("limited", BlockingTask.class), equalTo(1));
+		assertThat(runs.get(), equalTo(1));
+	}
+	
+	private JournalDeferrer open() throws IOException {
+		return new JournalDeferrer(directory, SEGMENT_SIZE, 1, QueueConfiguration.DEFAULT,
+				ExecutorServiceDeferrer.LOGGING_DEAD_LETTER_SINK);
+	}
+	
+	@SuppressWarnings("serial")
+	static class CountingTask implements Deferrable {
+		public void run() {
+			runs.incrementAndGet();
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class BlockingTask implements Deferrable {
+		public void run() {
+			CountDownLatch release = JournalDeferrerTest.release;
+			blockingTaskStarted.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			runs.incrementAndGet();
+		}
+	}
+}
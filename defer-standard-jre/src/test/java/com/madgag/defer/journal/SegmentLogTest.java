@@ -0,0 +1,77 @@
+package com.madgag.defer.journal;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentLogTest {
+	
+	private static final int SEGMENT_SIZE = 4096;
+	
+	private final List<String> segmentCalls = new CopyOnWriteArrayList<String>();
+	private File directory;
+	private SegmentLog segmentLog;
+	
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		segmentLog = new SegmentLog(directory, SEGMENT_SIZE) {
+			@Override
+			Segment openSegment(long sequence) throws IOException {
+				return new RecordingSegment(sequence, Segment.fileOf(directory, sequence));
+			}
+		};
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		segmentLog.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	@Test
+	public void shouldForceTheCopiesOfLiveTasksBeforeDeletingTheSegmentTheyCameFrom() throws Exception {
+		segmentLog.appendTask(new byte[100]);
+		long largeTaskId = segmentLog.appendTask(new byte[2000]);
+		segmentLog.appendTask(new byte[2000]); // rolls to a second segment
+		segmentLog.appendTombstone(largeTaskId);
+		segmentCalls.clear();
+		
+		segmentLog.compact();
+		
+		assertThat(segmentLog.segmentCount(), equalTo(1));
+		assertThat(segmentLog.liveTaskCount(), equalTo(2));
+		assertThat(segmentCalls, equalTo(asList("force 2", "delete 1")));
+	}
+	
+	private class RecordingSegment extends Segment {
+		RecordingSegment(long sequence, File file) throws IOException {
+			super(sequence, file, SEGMENT_SIZE);
+		}
+		
+		@Override
+		void force() {
+			segmentCalls.add("force " + sequence);
+			super.force();
+		}
+		
+		@Override
+		void delete() throws IOException {
+			segmentCalls.add("delete " + sequence);
+			super.delete();
+		}
+	}
+}
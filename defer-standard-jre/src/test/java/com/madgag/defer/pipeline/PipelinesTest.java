@@ -0,0 +1,149 @@
+package com.madgag.defer.pipeline;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.ExecutorServiceDeferrer;
+import com.madgag.defer.QueueConfiguration;
+
+public class PipelinesTest {
+
+	private final ExecutorServiceDeferrer deferrer = new ExecutorServiceDeferrer(QueueConfiguration.DEFAULT.withConcurrency(8));
+	private final ConcurrentMapJoinStore joinStore = new ConcurrentMapJoinStore();
+	private final Pipelines pipelines = new Pipelines(deferrer, joinStore);
+	private static final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+	private static volatile CountDownLatch finished = new CountDownLatch(1);
+
+	@After
+	public void tearDown() throws Exception {
+		deferrer.shutdown(5, SECONDS);
+		ran.clear();
+		finished = new CountDownLatch(1);
+	}
+
+	@Test
+	public void shouldRunAChainInOrder() throws Exception {
+		Pipeline pipeline = new Pipeline();
+		pipeline.chain(new RecordingTask("a"), new RecordingTask("b"), new LastTask("c"));
+
+		pipelines.start(pipeline);
+
+		assertThat(finished.await(5, SECONDS), is(true));
+		assertThat(ran, equalTo((List<String>) list("a", "b", "c")));
+	}
+
+	@Test
+	public void shouldRunAFanOutInParallelAndTheJoinOnceItHasAllRun() throws Exception {
+		int width = 4;
+		CountDownLatch allStarted = new CountDownLatch(width);
+		List<Deferrable> branches = new ArrayList<Deferrable>();
+		for (int i = 0; i < width; i++) {
+			branches.add(new RendezvousTask(allStarted));
+		}
+		Pipeline pipeline = new Pipeline();
+		Pipeline.Step start = pipeline.step(new RecordingTask("start"));
+		pipeline.join(new LastTask("join"), pipeline.fanOut(start, branches));
+
+		pipelines.start(pipeline);
+
+		assertThat(finished.await(5, SECONDS), is(true));
+		assertThat(ran.get(0), equalTo("start"));
+		assertThat(ran.size(), equalTo(width + 2));
+		assertThat(ran.get(width + 1), equalTo("join"));
+		assertThat(pendingJoinsAfterWaitingUpTo(5000), equalTo(0));
+	}
+
+	@Test
+	public void shouldCountARetriedPredecessorInOnlyOnceAndHandTheStepBackToTheOneThatCompletedTheJoin() throws Exception {
+		PipelineStep join = new PipelineStep("p", 2, 2, new int[0], null, new RecordingTask("join"));
+		joinStore.createJoins(Collections.singletonList(join));
+
+		assertThat(joinStore.arrive("p", 2, 0), equalTo((PipelineStep) null));
+		assertThat(joinStore.arrive("p", 2, 0), equalTo((PipelineStep) null));
+		assertThat(joinStore.arrive("p", 2, 1), equalTo(join));
+		assertThat(joinStore.arrive("p", 2, 0), equalTo((PipelineStep) null));
+		assertThat(joinStore.arrive("p", 2, 1), equalTo(join)); // in case deferring it failed
+		joinStore.release(join);
+		assertThat(joinStore.arrive("p", 2, 1), equalTo((PipelineStep) null));
+	}
+
+	/**
+	 * A join is released after its step has run, so may still be pending
+	 * for a moment after the last task finishes.
+	 */
+	private int pendingJoinsAfterWaitingUpTo(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (joinStore.pendingJoins() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return joinStore.pendingJoins();
+	}
+
+	private static List<String> list(String... names) {
+		List<String> list = new ArrayList<String>();
+		Collections.addAll(list, names);
+		return list;
+	}
+
+	@SuppressWarnings("serial")
+	static class RecordingTask implements Deferrable {
+		private final String name;
+
+		RecordingTask(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			ran.add(name);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class LastTask extends RecordingTask {
+		LastTask(String name) {
+			super(name);
+		}
+
+		@Override
+		public void run() {
+			super.run();
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Only finishes once every branch of the fan-out has started, so fails
+	 * the test by timing out unless the branches run in parallel.
+	 */
+	@SuppressWarnings("serial")
+	static class RendezvousTask implements Deferrable {
+		private final transient CountDownLatch allStarted;
+
+		RendezvousTask(CountDownLatch allStarted) {
+			this.allStarted = allStarted;
+		}
+
+		public void run() {
+			allStarted.countDown();
+			try {
+				if (!allStarted.await(5, SECONDS)) {
+					throw new IllegalStateException("Branches didn't run in parallel");
+				}
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			ran.add("branch");
+		}
+	}
+}
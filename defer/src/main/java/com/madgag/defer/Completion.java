@@ -0,0 +1,48 @@
+package com.madgag.defer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The completion of a deferred task: done once the task has run
+ * successfully, or has been given up on - because it threw a
+ * {@link PermanentTaskFailure}, or exhausted its retries.
+ *
+ * <p>Callbacks let dependent work be deferred as soon as a task is done,
+ * rather than by polling for its results:
+ * <blockquote><pre>
+ * deferrer.defer(new ResizeImages(album)).whenDone(new CompletionCallback() {
+ *     public void done(Completion completion) {
+ *         if (!completion.isFailed()) deferrer.defer(new NotifyOwner(album));
+ *     }
+ * });
+ * </pre></blockquote>
+ * When a completion is observed depends on the deferrer: in-process
+ * deferrers complete it on the thread that ran the task, while those whose
+ * tasks run elsewhere learn of it by polling - see their documentation.
+ */
+public interface Completion {
+
+	/**
+	 * @return true if the task has finished with, successfully or not.
+	 */
+	boolean isDone();
+
+	/**
+	 * @return true if the task is done, but was given up on rather than
+	 * running successfully.
+	 */
+	boolean isFailed();
+
+	/**
+	 * Waits for the task to be done.
+	 *
+	 * @return true if the task is done, false if the timeout elapsed first.
+	 */
+	boolean await(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Registers a callback to be called once the task is done - straight
+	 * away, on the calling thread, if it already is.
+	 */
+	void whenDone(CompletionCallback callback);
+}
@@ -0,0 +1,9 @@
+package com.madgag.defer;
+
+/**
+ * Called when a deferred task is done - see {@link Completion#whenDone(CompletionCallback)}.
+ */
+public interface CompletionCallback {
+
+	void done(Completion completion);
+}
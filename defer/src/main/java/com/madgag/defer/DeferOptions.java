@@ -0,0 +1,113 @@
+package com.madgag.defer;
+
+/**
+ * Options for deferring a task: the queue to use, when the task should run,
+ * and a name that makes it unique.
+ * 
+ * <p>Like App Engine's <code>TaskOptions</code>, instances are built by
+ * chaining calls, starting from {@link Builder}:
+ * <blockquote>
+ * <code>DeferOptions.Builder.queueName("mail").countdownMillis(5000)</code>
+ * </blockquote>
+ */
+public class DeferOptions {
+	
+	private String queueName;
+	private Long countdownMillis;
+	private Long etaMillis;
+	private String taskName;
+	
+	private DeferOptions() {
+	}
+	
+	/**
+	 * @param queueName The name of the queue, or null for the deferrer's default queue.
+	 */
+	public DeferOptions queueName(String queueName) {
+		this.queueName = queueName;
+		return this;
+	}
+	
+	/**
+	 * @param countdownMillis How long to wait before running the task.
+	 * Replaces any ETA set previously.
+	 */
+	public DeferOptions countdownMillis(long countdownMillis) {
+		this.countdownMillis = countdownMillis;
+		this.etaMillis = null;
+		return this;
+	}
+	
+	/**
+	 * @param etaMillis The earliest time to run the task, in milliseconds
+	 * since the epoch. Replaces any countdown set previously.
+	 */
+	public DeferOptions etaMillis(long etaMillis) {
+		this.etaMillis = etaMillis;
+		this.countdownMillis = null;
+		return this;
+	}
+	
+	/**
+	 * @param taskName A name for the task. Deferring a task with the same name
+	 * as one the deferrer already knows of fails with a
+	 * {@link DuplicateTaskException}.
+	 */
+	public DeferOptions taskName(String taskName) {
+		this.taskName = taskName;
+		return this;
+	}
+	
+	public String getQueueName() {
+		return queueName;
+	}
+	
+	public Long getCountdownMillis() {
+		return countdownMillis;
+	}
+	
+	public Long getEtaMillis() {
+		return etaMillis;
+	}
+	
+	public String getTaskName() {
+		return taskName;
+	}
+	
+	/**
+	 * @return The time at which the task should run, in milliseconds since
+	 * the epoch, or null if it should run as soon as possible.
+	 */
+	public Long getDeadlineMillis(long nowMillis) {
+		if (etaMillis != null) {
+			return etaMillis;
+		}
+		return countdownMillis == null ? null : nowMillis + countdownMillis;
+	}
+	
+	public static final class Builder {
+		
+		private Builder() {
+		}
+		
+		public static DeferOptions withDefaults() {
+			return new DeferOptions();
+		}
+		
+		public static DeferOptions queueName(String queueName) {
+			return withDefaults().queueName(queueName);
+		}
+		
+		public static DeferOptions countdownMillis(long countdownMillis) {
+			return withDefaults().countdownMillis(countdownMillis);
+		}
+		
+		public static DeferOptions etaMillis(long etaMillis) {
+			return withDefaults().etaMillis(etaMillis);
+		}
+		
+		public static DeferOptions taskName(String taskName) {
+			return withDefaults().taskName(taskName);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.madgag.defer;
+
+/**
+ * A task that runs another task on its behalf - tracking its completion,
+ * journaling it, or coordinating it with other tasks. Deferrers configure
+ * and measure tasks by the class of the task innermost in any wrappers,
+ * given by {@link Deferrables#taskClassOf(Deferrable)}, so wrapping a task
+ * doesn't change how it is scheduled or which metrics it counts towards.
+ */
+public interface DeferrableWrapper extends Deferrable {
+
+	/**
+	 * @return The task run on this one's behalf.
+	 */
+	Deferrable getTask();
+}
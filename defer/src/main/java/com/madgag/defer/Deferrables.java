@@ -0,0 +1,20 @@
+package com.madgag.defer;
+
+/**
+ * Helpers for deferrers handling tasks.
+ */
+public final class Deferrables {
+
+	private Deferrables() {
+	}
+
+	/**
+	 * @return The class of the task innermost in any {@link DeferrableWrapper}s.
+	 */
+	public static Class<? extends Deferrable> taskClassOf(Deferrable task) {
+		while (task instanceof DeferrableWrapper) {
+			task = ((DeferrableWrapper) task).getTask();
+		}
+		return task.getClass();
+	}
+}
@@ -1,5 +1,7 @@
 package com.madgag.defer;
 
+import java.util.Collection;
+import java.util.List;
 
 public interface Deferrer<Handle> {
     
@@ -39,4 +41,30 @@ public interface Deferrer<Handle> {
      */
     public Handle defer( Deferrable task, String queueName );
     
+    /**
+     * Queues a task for background execution using the specified options,
+     * which can delay its execution, and give it a unique name.
+     * 
+     * @param task The task to be executed.
+     * @param options The queue name, countdown or ETA, and task name.
+     * @throws QueueFailureException If an error occurs serializing the task.
+     * @throws DuplicateTaskException If a task with the same name already exists.
+     * @return A {@link TaskHandle} for the queued task.
+     */
+    public Handle defer( Deferrable task, DeferOptions options );
+    
+    /**
+     * Queues a batch of tasks for background execution using the specified
+     * queue name, making as few calls to the underlying queue as possible.
+     * 
+     * <p>If queuing fails part-way through the batch, tasks that were already
+     * queued stay queued, and the exception is rethrown.
+     * 
+     * @param tasks The tasks to be executed.
+     * @param queueName The name of the queue.
+     * @throws QueueFailureException If an error occurs serializing the tasks.
+     * @return Handles for the queued tasks, in the same order as <code>tasks</code>.
+     */
+    public List<Handle> deferAll( Collection<? extends Deferrable> tasks, String queueName );
+    
 }
@@ -0,0 +1,24 @@
+package com.madgag.defer;
+
+/**
+ * Thrown when a task is deferred with the same {@link DeferOptions#taskName(String)
+ * name} as a task that the deferrer already knows of.
+ */
+@SuppressWarnings("serial")
+public class DuplicateTaskException extends RuntimeException {
+
+	private final String taskName;
+	
+	public DuplicateTaskException(String taskName) {
+		this(taskName, null);
+	}
+	
+	public DuplicateTaskException(String taskName, Throwable cause) {
+		super("Task named '" + taskName + "' already exists", cause);
+		this.taskName = taskName;
+	}
+	
+	public String getTaskName() {
+		return taskName;
+	}
+}
@@ -0,0 +1,84 @@
+package com.madgag.defer;
+
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Completion} completed explicitly, by whatever learns that the
+ * task is done. Callbacks are called on the completing thread, and one
+ * that throws doesn't stop the others being called.
+ */
+public class SettableCompletion implements Completion {
+
+	private static final Logger log = Logger.getLogger(SettableCompletion.class.getName());
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	/** Guarded by <code>this</code>; null once done. */
+	private List<CompletionCallback> callbacks = new ArrayList<CompletionCallback>();
+	private volatile boolean failed;
+
+	/**
+	 * Completes this, if it isn't already, and calls its callbacks.
+	 *
+	 * @param failed Whether the task was given up on.
+	 * @return true if this call completed it, false if it was already done.
+	 */
+	public boolean complete(boolean failed) {
+		List<CompletionCallback> toCall;
+		synchronized (this) {
+			if (callbacks == null) {
+				return false;
+			}
+			this.failed = failed;
+			toCall = callbacks;
+			callbacks = null;
+			done.countDown();
+		}
+		for (CompletionCallback callback : toCall) {
+			call(callback);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if callbacks are waiting for this to complete.
+	 */
+	protected synchronized boolean hasCallbacks() {
+		return callbacks != null && !callbacks.isEmpty();
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public boolean isFailed() {
+		return isDone() && failed;
+	}
+
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	public void whenDone(CompletionCallback callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		call(callback);
+	}
+
+	private void call(CompletionCallback callback) {
+		try {
+			callback.done(this);
+		} catch (RuntimeException e) {
+			log.log(SEVERE, "Completion callback failed", e);
+		}
+	}
+}
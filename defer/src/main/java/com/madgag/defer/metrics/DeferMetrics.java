@@ -0,0 +1,68 @@
+package com.madgag.defer.metrics;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * Receives measurements of deferred tasks as they are queued, stored and
+ * executed.
+ * 
+ * <p>Implementations are called on the hot path of every task, from many
+ * threads at once, so must be thread-safe, must not block, and should not
+ * allocate. Every parameter is a primitive, an enum constant, or a reference
+ * the caller already holds, so calling a listener allocates nothing.
+ */
+public interface DeferMetrics {
+	
+	/**
+	 * How an attempt to execute a task ended.
+	 */
+	enum TaskOutcome {
+		SUCCEEDED,
+		/** The task threw an exception, and will be retried. */
+		FAILED,
+		/** The task threw a <code>PermanentTaskFailure</code>, and won't be retried. */
+		FAILED_PERMANENTLY
+	}
+	
+	/**
+	 * An operation on the datastore entities holding tasks too large to
+	 * queue inline.
+	 */
+	enum StoreOperation {
+		STORE,
+		FETCH,
+		DELETE,
+		/** A fetch answered from the instance's cache of payloads it stored, without a datastore call. */
+		CACHED_FETCH
+	}
+	
+	/**
+	 * @param queueName The queue the task was deferred to.
+	 * @param taskClass The class of the task.
+	 * @param payloadBytes The size of the queued payload, or -1 if the task
+	 * was queued without being serialized.
+	 * @param spilled Whether the task was stored in the datastore, rather
+	 * than queued inline.
+	 * @param elapsedNanos How long deferring the task took.
+	 */
+	void taskDeferred(String queueName, Class<? extends Deferrable> taskClass, int payloadBytes, boolean spilled, long elapsedNanos);
+	
+	/**
+	 * @param queueName The queue the task was executed from, or null if it
+	 * isn't known.
+	 * @param taskClass The class of the task.
+	 * @param outcome How the attempt ended.
+	 * @param elapsedNanos How long the attempt took.
+	 */
+	void taskExecuted(String queueName, Class<? extends Deferrable> taskClass, TaskOutcome outcome, long elapsedNanos);
+	
+	/**
+	 * Task entities are stored before their queue is known, and fetched
+	 * before their class is known, so store operations aren't tagged.
+	 * 
+	 * @param operation The datastore operation.
+	 * @param entities The number of entities operated on.
+	 * @param elapsedNanos How long the operation took.
+	 */
+	void taskStoreOperation(StoreOperation operation, int entities, long elapsedNanos);
+}
@@ -0,0 +1,107 @@
+package com.madgag.defer.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, in the style of HdrHistogram:
+ * bucket boundaries are log-linear, each power of two divided into eight
+ * equal sub-buckets, so every recorded value is known to within 12.5%, over
+ * the whole range of <code>long</code>, in a fixed 4KB of buckets.
+ */
+public class Histogram {
+	
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values below SUB_BUCKETS have a bucket each; above, eight per power of two. */
+	static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+	
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		sum.add(value);
+	}
+	
+	public long getCount() {
+		long count = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			count += counts.get(bucket);
+		}
+		return count;
+	}
+	
+	public long getSum() {
+		return sum.sum();
+	}
+	
+	/**
+	 * @return The mean of the recorded values, or 0 if there are none.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+	
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return The highest value that could be in the bucket holding the value
+	 * at the given percentile, or 0 if no values have been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return highestValueIn(bucket);
+			}
+		}
+		return getMax(); // values recorded since the count was taken
+	}
+	
+	/**
+	 * @return The highest value that could be in the highest non-empty
+	 * bucket, or 0 if no values have been recorded.
+	 */
+	public long getMax() {
+		for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+			if (counts.get(bucket) > 0) {
+				return highestValueIn(bucket);
+			}
+		}
+		return 0;
+	}
+	
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+	
+	static long lowestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << shift;
+	}
+	
+	static long highestValueIn(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueIn(bucket + 1) - 1;
+	}
+}
@@ -0,0 +1,24 @@
+package com.madgag.defer.metrics;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * Discards all measurements - the default, when no metrics are wanted. Its
+ * methods are empty, so the JIT compiler inlines them to nothing.
+ */
+public final class NoOpDeferMetrics implements DeferMetrics {
+	
+	public static final NoOpDeferMetrics INSTANCE = new NoOpDeferMetrics();
+	
+	private NoOpDeferMetrics() {
+	}
+
+	public void taskDeferred(String queueName, Class<? extends Deferrable> taskClass, int payloadBytes, boolean spilled, long elapsedNanos) {
+	}
+
+	public void taskExecuted(String queueName, Class<? extends Deferrable> taskClass, TaskOutcome outcome, long elapsedNanos) {
+	}
+
+	public void taskStoreOperation(StoreOperation operation, int entities, long elapsedNanos) {
+	}
+}
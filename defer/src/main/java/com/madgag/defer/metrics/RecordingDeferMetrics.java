@@ -0,0 +1,115 @@
+package com.madgag.defer.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * Records measurements in memory, per queue and task class, with
+ * {@link StripedCounter}s and {@link Histogram}s.
+ * 
+ * <p>The first measurement for a queue and task class creates its
+ * {@link TaskMetrics}; after that, recording is a pair of hash lookups and
+ * a few atomic additions, with no locking and no allocation.
+ */
+public class RecordingDeferMetrics implements DeferMetrics {
+	
+	/**
+	 * The queue name recorded for tasks executed from an unknown queue.
+	 */
+	public static final String UNKNOWN_QUEUE = "(unknown)";
+	
+	private final ConcurrentMap<String, ConcurrentMap<Class<? extends Deferrable>, TaskMetrics>> taskMetricsByQueue =
+			new ConcurrentHashMap<String, ConcurrentMap<Class<? extends Deferrable>, TaskMetrics>>();
+	private final Histogram[] storeOperationNanos = new Histogram[StoreOperation.values().length];
+	private final StripedCounter[] storeOperationEntities = new StripedCounter[StoreOperation.values().length];
+	
+	public RecordingDeferMetrics() {
+		for (int i = 0; i < storeOperationNanos.length; i++) {
+			storeOperationNanos[i] = new Histogram();
+			storeOperationEntities[i] = new StripedCounter();
+		}
+	}
+
+	public void taskDeferred(String queueName, Class<? extends Deferrable> taskClass, int payloadBytes, boolean spilled, long elapsedNanos) {
+		TaskMetrics taskMetrics = taskMetricsFor(queueName, taskClass);
+		taskMetrics.deferred.increment();
+		if (spilled) {
+			taskMetrics.spilled.increment();
+		}
+		if (payloadBytes >= 0) {
+			taskMetrics.payloadBytes.record(payloadBytes);
+		}
+		taskMetrics.deferNanos.record(elapsedNanos);
+	}
+
+	public void taskExecuted(String queueName, Class<? extends Deferrable> taskClass, TaskOutcome outcome, long elapsedNanos) {
+		taskMetricsFor(queueName, taskClass).executed(outcome, elapsedNanos);
+	}
+
+	public void taskStoreOperation(StoreOperation operation, int entities, long elapsedNanos) {
+		storeOperationNanos[operation.ordinal()].record(elapsedNanos);
+		storeOperationEntities[operation.ordinal()].add(entities);
+	}
+	
+	/**
+	 * @return The measurements of tasks of the given class on the given
+	 * queue, or null if there are none.
+	 */
+	public TaskMetrics getTaskMetrics(String queueName, Class<? extends Deferrable> taskClass) {
+		ConcurrentMap<Class<? extends Deferrable>, TaskMetrics> taskMetricsByClass = taskMetricsByQueue.get(queueName);
+		return taskMetricsByClass == null ? null : taskMetricsByClass.get(taskClass);
+	}
+	
+	/**
+	 * @return The measurements of every queue and task class seen so far.
+	 */
+	public List<TaskMetrics> getAllTaskMetrics() {
+		List<TaskMetrics> allTaskMetrics = new ArrayList<TaskMetrics>();
+		for (ConcurrentMap<Class<? extends Deferrable>, TaskMetrics> taskMetricsByClass : taskMetricsByQueue.values()) {
+			allTaskMetrics.addAll(taskMetricsByClass.values());
+		}
+		return allTaskMetrics;
+	}
+	
+	/**
+	 * @return How long each store operation of the given kind took, in nanoseconds.
+	 */
+	public Histogram getStoreOperationNanos(StoreOperation operation) {
+		return storeOperationNanos[operation.ordinal()];
+	}
+	
+	/**
+	 * @return The number of entities operated on by store operations of the
+	 * given kind.
+	 */
+	public long getStoreOperationEntities(StoreOperation operation) {
+		return storeOperationEntities[operation.ordinal()].sum();
+	}
+	
+	private TaskMetrics taskMetricsFor(String queueName, Class<? extends Deferrable> taskClass) {
+		if (queueName == null) {
+			queueName = UNKNOWN_QUEUE;
+		}
+		ConcurrentMap<Class<? extends Deferrable>, TaskMetrics> taskMetricsByClass = taskMetricsByQueue.get(queueName);
+		if (taskMetricsByClass == null) {
+			taskMetricsByClass = new ConcurrentHashMap<Class<? extends Deferrable>, TaskMetrics>();
+			ConcurrentMap<Class<? extends Deferrable>, TaskMetrics> existing = taskMetricsByQueue.putIfAbsent(queueName, taskMetricsByClass);
+			if (existing != null) {
+				taskMetricsByClass = existing;
+			}
+		}
+		TaskMetrics taskMetrics = taskMetricsByClass.get(taskClass);
+		if (taskMetrics == null) {
+			taskMetrics = new TaskMetrics(queueName, taskClass);
+			TaskMetrics existing = taskMetricsByClass.putIfAbsent(taskClass, taskMetrics);
+			if (existing != null) {
+				taskMetrics = existing;
+			}
+		}
+		return taskMetrics;
+	}
+}
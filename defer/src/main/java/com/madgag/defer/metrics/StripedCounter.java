@@ -0,0 +1,42 @@
+package com.madgag.defer.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment at once without contending on a
+ * single memory location. Each thread adds to one of several stripes, chosen
+ * by its id, each stripe on its own cache line; reading the counter sums
+ * the stripes.
+ */
+public class StripedCounter {
+	
+	/** Longs per stripe, so that each stripe has a 64-byte cache line to itself. */
+	private static final int PADDING = 8;
+	private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	
+	public void increment() {
+		add(1);
+	}
+	
+	public void add(long delta) {
+		cells.getAndAdd(stripe() * PADDING, delta);
+	}
+	
+	/**
+	 * @return The sum of all additions - exact when the counter is not being
+	 * added to concurrently.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			sum += cells.get(stripe * PADDING);
+		}
+		return sum;
+	}
+	
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+}
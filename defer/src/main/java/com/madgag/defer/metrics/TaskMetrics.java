@@ -0,0 +1,82 @@
+package com.madgag.defer.metrics;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.metrics.DeferMetrics.TaskOutcome;
+
+/**
+ * The measurements of tasks of one class, on one queue, recorded by a
+ * {@link RecordingDeferMetrics}.
+ */
+public class TaskMetrics {
+	
+	private final String queueName;
+	private final Class<? extends Deferrable> taskClass;
+	
+	final StripedCounter deferred = new StripedCounter();
+	final StripedCounter spilled = new StripedCounter();
+	private final StripedCounter[] executions = new StripedCounter[TaskOutcome.values().length];
+	final Histogram deferNanos = new Histogram();
+	final Histogram payloadBytes = new Histogram();
+	final Histogram executionNanos = new Histogram();
+	
+	TaskMetrics(String queueName, Class<? extends Deferrable> taskClass) {
+		this.queueName = queueName;
+		this.taskClass = taskClass;
+		for (int i = 0; i < executions.length; i++) {
+			executions[i] = new StripedCounter();
+		}
+	}
+	
+	void executed(TaskOutcome outcome, long elapsedNanos) {
+		executions[outcome.ordinal()].increment();
+		executionNanos.record(elapsedNanos);
+	}
+	
+	public String getQueueName() {
+		return queueName;
+	}
+	
+	public Class<? extends Deferrable> getTaskClass() {
+		return taskClass;
+	}
+	
+	public long getDeferred() {
+		return deferred.sum();
+	}
+	
+	/**
+	 * @return The number of tasks that were stored in the datastore rather
+	 * than queued inline.
+	 */
+	public long getSpilled() {
+		return spilled.sum();
+	}
+	
+	/**
+	 * @return The number of execution attempts with the given outcome.
+	 */
+	public long getExecutions(TaskOutcome outcome) {
+		return executions[outcome.ordinal()].sum();
+	}
+	
+	/**
+	 * @return How long deferring each task took, in nanoseconds.
+	 */
+	public Histogram getDeferNanos() {
+		return deferNanos;
+	}
+	
+	/**
+	 * @return The size of each serialized task payload, in bytes.
+	 */
+	public Histogram getPayloadBytes() {
+		return payloadBytes;
+	}
+	
+	/**
+	 * @return How long each execution attempt took, in nanoseconds.
+	 */
+	public Histogram getExecutionNanos() {
+		return executionNanos;
+	}
+}
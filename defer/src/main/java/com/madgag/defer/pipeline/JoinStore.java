@@ -0,0 +1,36 @@
+package com.madgag.defer.pipeline;
+
+import java.util.List;
+
+/**
+ * Holds the steps of started pipelines that are waiting for their
+ * predecessors to run, counting each predecessor in as it finishes.
+ *
+ * <p>Many predecessors of a wide join finish at once, so implementations
+ * should spread their arrivals over independent counters or shards, rather
+ * than have every predecessor contend for a single one.
+ */
+public interface JoinStore {
+
+	/**
+	 * Stores steps that wait for predecessors - called before any of their
+	 * predecessors is deferred.
+	 */
+	void createJoins(List<PipelineStep> steps);
+
+	/**
+	 * Counts a predecessor of a step in. A predecessor that arrives again -
+	 * because it was retried - is only counted once.
+	 *
+	 * @return The step, to the predecessor whose arrival completes the join -
+	 * again if that predecessor arrives again before the step is
+	 * {@link #release(PipelineStep) released}, in case it failed to defer the
+	 * step the first time - or otherwise null.
+	 */
+	PipelineStep arrive(String pipelineId, int stepId, int predecessorId);
+
+	/**
+	 * Discards a completed join, once its step has been deferred.
+	 */
+	void release(PipelineStep step);
+}
@@ -0,0 +1,134 @@
+package com.madgag.defer.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.madgag.defer.Deferrable;
+
+/**
+ * A workflow of tasks, each of which runs once all the steps it comes
+ * {@link Step#after(Step...) after} have run - so steps can be chained,
+ * fanned out to run in parallel, and joined again:
+ * <blockquote><pre>
+ * Pipeline pipeline = new Pipeline();
+ * Pipeline.Step fetch = pipeline.step(new FetchFeeds());
+ * List&lt;Pipeline.Step> resizes = pipeline.fanOut(fetch, resizeTasks);
+ * pipeline.join(new PublishAlbum(), resizes);
+ * pipelines.start(pipeline);
+ * </pre></blockquote>
+ *
+ * <p>A step may only come after steps added to the pipeline before it, so
+ * a pipeline can never contain a cycle. Once started, a pipeline shouldn't
+ * be changed.
+ */
+public class Pipeline {
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * Adds a step with no predecessors, which will run as soon as the
+	 * pipeline is started - unless it is given some with {@link Step#after(Step...)}.
+	 */
+	public Step step(Deferrable task) {
+		Step step = new Step(steps.size(), task);
+		steps.add(step);
+		return step;
+	}
+
+	/**
+	 * Adds steps to run one after another, the first as soon as the pipeline
+	 * is started.
+	 *
+	 * @return The last step of the chain.
+	 */
+	public Step chain(Deferrable... tasks) {
+		Step last = null;
+		for (Deferrable task : tasks) {
+			Step step = step(task);
+			last = last == null ? step : step.after(last);
+		}
+		return last;
+	}
+
+	/**
+	 * Adds steps to run in parallel once <code>predecessor</code> has run.
+	 */
+	public List<Step> fanOut(Step predecessor, Collection<? extends Deferrable> tasks) {
+		List<Step> fannedOut = new ArrayList<Step>(tasks.size());
+		for (Deferrable task : tasks) {
+			fannedOut.add(step(task).after(predecessor));
+		}
+		return fannedOut;
+	}
+
+	/**
+	 * Adds a step to run once all <code>predecessors</code> have run.
+	 */
+	public Step join(Deferrable task, Collection<Step> predecessors) {
+		return step(task).after(predecessors.toArray(new Step[predecessors.size()]));
+	}
+
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+
+	public class Step {
+		private final int id;
+		private final Deferrable task;
+		private final List<Step> predecessors = new ArrayList<Step>();
+		private String queueName;
+
+		Step(int id, Deferrable task) {
+			this.id = id;
+			this.task = task;
+		}
+
+		/**
+		 * Makes this step wait for others to run first.
+		 *
+		 * @throws IllegalArgumentException If a predecessor belongs to another
+		 * pipeline, or was added to this one after this step.
+		 */
+		public Step after(Step... predecessors) {
+			for (Step predecessor : predecessors) {
+				if (predecessor.getPipeline() != Pipeline.this || predecessor.id >= id) {
+					throw new IllegalArgumentException("A step can only come after steps added before it to the same pipeline");
+				}
+			}
+			this.predecessors.addAll(Arrays.asList(predecessors));
+			return this;
+		}
+
+		/**
+		 * @param queueName The queue to defer this step to, or null for the
+		 * deferrer's default queue.
+		 */
+		public Step onQueue(String queueName) {
+			this.queueName = queueName;
+			return this;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public Deferrable getTask() {
+			return task;
+		}
+
+		public List<Step> getPredecessors() {
+			return Collections.unmodifiableList(predecessors);
+		}
+
+		public String getQueueName() {
+			return queueName;
+		}
+
+		private Pipeline getPipeline() {
+			return Pipeline.this;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.madgag.defer.pipeline;
+
+import com.madgag.defer.Deferrable;
+import com.madgag.defer.DeferrableWrapper;
+
+/**
+ * A step of a started pipeline, as deferred: its own task, and just the
+ * ids of the steps that come after it - not the rest of the pipeline, which
+ * waits in the {@link JoinStore} until its turn comes.
+ *
+ * <p>Running a step needs the {@link Pipelines} that coordinates it. Steps
+ * deferred by a <code>Pipelines</code> are attached to it, but a step that
+ * has been serialized - to a task queue, say - must be attached again, with
+ * {@link Pipelines#attach(PipelineStep)}, before it is run.
+ */
+public class PipelineStep implements DeferrableWrapper {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String pipelineId;
+	private final int stepId;
+	private final int predecessorCount;
+	private final int[] successorIds;
+	private final String queueName;
+	private final Deferrable task;
+	private transient Pipelines pipelines;
+
+	PipelineStep(String pipelineId, int stepId, int predecessorCount, int[] successorIds, String queueName, Deferrable task) {
+		this.pipelineId = pipelineId;
+		this.stepId = stepId;
+		this.predecessorCount = predecessorCount;
+		this.successorIds = successorIds;
+		this.queueName = queueName;
+		this.task = task;
+	}
+
+	public String getPipelineId() {
+		return pipelineId;
+	}
+
+	public int getStepId() {
+		return stepId;
+	}
+
+	/**
+	 * @return The number of steps that must run before this one.
+	 */
+	public int getPredecessorCount() {
+		return predecessorCount;
+	}
+
+	int[] getSuccessorIds() {
+		return successorIds;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public Deferrable getTask() {
+		return task;
+	}
+
+	void attach(Pipelines pipelines) {
+		this.pipelines = pipelines;
+	}
+
+	/**
+	 * Runs the task, then lets each step that comes after it know.
+	 *
+	 * @throws IllegalStateException If the step isn't attached to a {@link Pipelines}.
+	 */
+	public void run() {
+		if (pipelines == null) {
+			throw new IllegalStateException("Step " + stepId + " of pipeline " + pipelineId + " isn't attached to a Pipelines");
+		}
+		pipelines.run(this);
+	}
+}
@@ -0,0 +1,103 @@
+package com.madgag.defer.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.madgag.defer.DeferOptions;
+import com.madgag.defer.Deferrer;
+import com.madgag.defer.PermanentTaskFailure;
+
+/**
+ * Starts {@link Pipeline}s, and coordinates their steps as they run.
+ *
+ * <p>Starting a pipeline stores the steps that wait for others in the
+ * {@link JoinStore}, and defers the steps that don't. Each step that runs
+ * successfully counts itself in to the join of each step after it, and the
+ * step whose arrival completes a join defers the step waiting on it, then
+ * releases the join - so the steps of a fan-out run in parallel, each
+ * carrying only its own task, and coordination costs one arrival per edge
+ * of the pipeline.
+ *
+ * <p>A step that fails is retried like any other task, and if its task ran
+ * but counting it in failed, its task runs again - so steps, like all
+ * deferred tasks, should be idempotent. A step that throws a
+ * {@link PermanentTaskFailure} stops the pipeline: the steps after it never
+ * run.
+ */
+public class Pipelines {
+
+	private final Deferrer<?> deferrer;
+	private final JoinStore joinStore;
+
+	public Pipelines(Deferrer<?> deferrer, JoinStore joinStore) {
+		this.deferrer = deferrer;
+		this.joinStore = joinStore;
+	}
+
+	/**
+	 * @return The id of the started pipeline.
+	 * @throws IllegalArgumentException If the pipeline has no steps.
+	 */
+	public String start(Pipeline pipeline) {
+		List<Pipeline.Step> steps = pipeline.getSteps();
+		if (steps.isEmpty()) {
+			throw new IllegalArgumentException("A pipeline needs at least one step");
+		}
+		String pipelineId = UUID.randomUUID().toString();
+		List<List<Integer>> successors = new ArrayList<List<Integer>>(steps.size());
+		for (int i = 0; i < steps.size(); i++) {
+			successors.add(new ArrayList<Integer>());
+		}
+		for (Pipeline.Step step : steps) {
+			for (Pipeline.Step predecessor : step.getPredecessors()) {
+				successors.get(predecessor.getId()).add(step.getId());
+			}
+		}
+		List<PipelineStep> roots = new ArrayList<PipelineStep>();
+		List<PipelineStep> joins = new ArrayList<PipelineStep>();
+		for (Pipeline.Step step : steps) {
+			PipelineStep pipelineStep = new PipelineStep(pipelineId, step.getId(), step.getPredecessors().size(),
+					toArray(successors.get(step.getId())), step.getQueueName(), step.getTask());
+			(step.getPredecessors().isEmpty() ? roots : joins).add(pipelineStep);
+		}
+		if (!joins.isEmpty()) {
+			joinStore.createJoins(joins);
+		}
+		for (PipelineStep root : roots) {
+			defer(root);
+		}
+		return pipelineId;
+	}
+
+	/**
+	 * Attaches a step that has been deserialized to this, so it can be run.
+	 */
+	public void attach(PipelineStep step) {
+		step.attach(this);
+	}
+
+	void run(PipelineStep step) {
+		step.getTask().run();
+		for (int successorId : step.getSuccessorIds()) {
+			PipelineStep successor = joinStore.arrive(step.getPipelineId(), successorId, step.getStepId());
+			if (successor != null) {
+				defer(successor);
+				joinStore.release(successor);
+			}
+		}
+	}
+
+	private void defer(PipelineStep step) {
+		step.attach(this);
+		deferrer.defer(step, DeferOptions.Builder.queueName(step.getQueueName()));
+	}
+
+	private static int[] toArray(List<Integer> integers) {
+		int[] array = new int[integers.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = integers.get(i);
+		}
+		return array;
+	}
+}
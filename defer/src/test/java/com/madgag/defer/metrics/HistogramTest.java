@@ -0,0 +1,43 @@
+package com.madgag.defer.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	
+	private final Histogram histogram = new Histogram();
+	
+	@Test
+	public void shouldPlaceEveryValueInABucketWhoseBoundsContainIt() {
+		long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = Histogram.bucketOf(value);
+			assertThat(Histogram.lowestValueIn(bucket), lessThanOrEqualTo(value));
+			assertThat(Histogram.highestValueIn(bucket), greaterThanOrEqualTo(value));
+		}
+	}
+	
+	@Test
+	public void shouldKnowEveryValueToWithinAnEighth() {
+		for (int bucket = 8; bucket < Histogram.BUCKETS; bucket++) {
+			long lowest = Histogram.lowestValueIn(bucket);
+			assertThat(Histogram.highestValueIn(bucket) - lowest, lessThanOrEqualTo(lowest / 8));
+		}
+	}
+	
+	@Test
+	public void shouldReportPercentilesCountAndMean() {
+		for (int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+		
+		assertThat(histogram.getCount(), equalTo(100L));
+		assertThat(histogram.getMean(), equalTo(50.5));
+		assertThat(histogram.getValueAtPercentile(50), equalTo(51L)); // 50 shares a bucket with 48..51
+		assertThat(histogram.getMax(), equalTo(103L));
+	}
+}